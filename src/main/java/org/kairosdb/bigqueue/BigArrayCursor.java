@@ -0,0 +1,250 @@
+package org.kairosdb.bigqueue;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.NoSuchElementException;
+
+import org.kairosdb.bigqueue.codec.ItemCodecs;
+import org.kairosdb.bigqueue.page.IMappedPage;
+import org.kairosdb.bigqueue.page.IMappedPageFactory;
+import org.kairosdb.bigqueue.utils.Calculator;
+import org.kairosdb.bigqueue.utils.Crc32c;
+
+/**
+ * Sequential cursor over a big array,
+ *
+ * the current index page and data page stay pinned in the page cache, the cursor only moves to another page at page boundaries.
+ * Items appended concurrently become visible to hasNext, items removed from the tail while the cursor lags behind are skipped,
+ * as are the slots of failed concurrent appends, see {@link BigArrayImpl#isSkipped(long)}.
+ *
+ * A cursor is meant to be used by a single thread and must be closed to unpin its pages.
+ *
+ * @see BigArrayImpl#cursor()
+ */
+public class BigArrayCursor implements Closeable {
+
+	private final BigArrayImpl array;
+	// index of the item returned by the next call to next
+	private long index;
+
+	// pinned pages, with the factories they were acquired from
+	private IMappedPageFactory indexPageFactory;
+	private long indexPageIndex = -1L;
+	private IMappedPage indexPage;
+	private IMappedPageFactory dataPageFactory;
+	private long dataPageIndex = -1L;
+	private IMappedPage dataPage;
+	private ByteBuffer dataPageBuffer;
+
+	private boolean closed = false;
+
+	BigArrayCursor(BigArrayImpl array, long index) {
+		this.array = array;
+		this.index = index;
+	}
+
+	/**
+	 * @return the index of the item returned by the next call to next
+	 */
+	public long getIndex() {
+		return index;
+	}
+
+	/**
+	 * Move the cursor to specific index
+	 *
+	 * @param index a valid data index, or the head index to only read items appended from now on
+	 */
+	public void seek(long index) {
+		try {
+			array.arrayReadLock.lock();
+			if (index != array.arrayHeadIndex.get()) {
+				array.validateIndex(index);
+			}
+			this.index = index;
+		} finally {
+			array.arrayReadLock.unlock();
+		}
+	}
+
+	/**
+	 * Move the cursor to the item appended closest to a timestamp, see {@link BigArrayImpl#findClosestIndex(long)}
+	 *
+	 * @param timestamp the timestamp to search for
+	 * @throws IOException exception thrown if there was any IO error during the search
+	 */
+	public void seekToTimestamp(long timestamp) throws IOException {
+		long closestIndex = array.findClosestIndex(timestamp);
+		if (closestIndex == BigArrayImpl.NOT_FOUND) {
+			closestIndex = array.getHeadIndex(); // empty
+		}
+		this.index = closestIndex;
+	}
+
+	/**
+	 * @return true if there is an item at the cursor
+	 * @throws UncheckedIOException if there was any IO error reading past skipped slots
+	 */
+	public boolean hasNext() {
+		try {
+			array.arrayReadLock.lock();
+			skipEmptySlots();
+			return index != array.arrayHeadIndex.get();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		} finally {
+			array.arrayReadLock.unlock();
+		}
+	}
+
+	/**
+	 * Read the item at the cursor and move the cursor to the next item
+	 *
+	 * @return the item data
+	 * @throws NoSuchElementException if the cursor reached the head of the array
+	 * @throws IOException exception thrown if there was any IO error during the read
+	 */
+	public byte[] next() throws IOException {
+		try {
+			array.arrayReadLock.lock();
+			ByteBuffer item = readItem();
+			byte[] data = new byte[item.remaining()];
+			item.get(data);
+			index++;
+			return data;
+		} finally {
+			array.arrayReadLock.unlock();
+		}
+	}
+
+	/**
+	 * Read the item at the cursor into a caller supplied buffer and move the cursor to the next item,
+	 * the cursor does not move if the item does not fit
+	 *
+	 * @param dst the buffer receiving the data, its position is advanced past the data
+	 * @return the length of the data
+	 * @throws NoSuchElementException if the cursor reached the head of the array
+	 * @throws BufferOverflowException if the item does not fit into the buffer
+	 * @throws IOException exception thrown if there was any IO error during the read
+	 */
+	public int next(ByteBuffer dst) throws IOException {
+		try {
+			array.arrayReadLock.lock();
+			ByteBuffer item = readItem();
+			int length = item.remaining();
+			if (dst.remaining() < length) {
+				throw new BufferOverflowException();
+			}
+			dst.put(item);
+			index++;
+			return length;
+		} finally {
+			array.arrayReadLock.unlock();
+		}
+	}
+
+	// the item at the cursor as a buffer over the pinned data page or a decompressed copy, caller holds the array read lock
+	private ByteBuffer readItem() throws IOException {
+		if (closed) {
+			throw new IllegalStateException("cursor is closed");
+		}
+		skipEmptySlots();
+		if (index == array.arrayHeadIndex.get()) {
+			throw new NoSuchElementException();
+		}
+
+		int indexItemOffset = BigArrayImpl.indexItemOffset(index);
+		long itemDataPageIndex = indexPage.getLong(indexItemOffset + BigArrayImpl.INDEX_ITEM_DATA_PAGE_INDEX_OFFSET);
+		int dataItemOffset = indexPage.getInt(indexItemOffset + BigArrayImpl.INDEX_ITEM_DATA_ITEM_OFFSET_OFFSET);
+		int dataItemLength = indexPage.getInt(indexItemOffset + BigArrayImpl.INDEX_ITEM_DATA_ITEM_LENGTH_OFFSET);
+		int codecId = indexPage.getByte(indexItemOffset + BigArrayImpl.INDEX_ITEM_CODEC_OFFSET);
+		int checksum = indexPage.getInt(indexItemOffset + BigArrayImpl.INDEX_ITEM_CHECKSUM_OFFSET);
+
+		if (itemDataPageIndex != dataPageIndex || dataPageFactory != array.dataPageFactory) {
+			unpinDataPage();
+			IMappedPage dataPage = array.dataPageFactory.acquirePage(itemDataPageIndex);
+			dataPageFactory = array.dataPageFactory;
+			dataPageIndex = itemDataPageIndex;
+			this.dataPage = dataPage;
+			// a private view, returned items are read between its position and limit
+			dataPageBuffer = dataPage.slice(0, dataPage.size());
+		}
+		dataPageBuffer.limit(dataItemOffset + dataItemLength);
+		dataPageBuffer.position(dataItemOffset);
+		if (array.verifyChecksums && index >= array.checksumFromIndex && Crc32c.compute(dataPageBuffer) != checksum) {
+			throw new IOException("checksum mismatch for item " + index + " of array " + array.arrayName);
+		}
+		if (codecId == ItemCodecs.NONE_ID) {
+			return dataPageBuffer;
+		}
+		byte[] stored = new byte[dataItemLength];
+		dataPageBuffer.get(stored);
+		return ByteBuffer.wrap(array.decode(codecId, stored));
+	}
+
+	// move past the skipped slots at the cursor, leaves the index page of the cursor pinned unless it reached the head,
+	// a closed cursor pins no page
+	private void skipEmptySlots() throws IOException {
+		adjustIndex();
+		while (!closed && index != array.arrayHeadIndex.get()) {
+			pinIndexPage();
+			if (!BigArrayImpl.isSkipped(indexPage, BigArrayImpl.indexItemOffset(index))) {
+				return;
+			}
+			index++;
+		}
+	}
+
+	private void pinIndexPage() throws IOException {
+		long itemIndexPageIndex = Calculator.div(index, BigArrayImpl.INDEX_ITEMS_PER_PAGE_BITS);
+		if (itemIndexPageIndex != indexPageIndex || indexPageFactory != array.indexPageFactory) {
+			unpinIndexPage();
+			IMappedPage indexPage = array.indexPageFactory.acquirePage(itemIndexPageIndex);
+			indexPageFactory = array.indexPageFactory;
+			indexPageIndex = itemIndexPageIndex;
+			this.indexPage = indexPage;
+		}
+	}
+
+	// skip items removed from the tail, and move back to the head if the array was emptied or truncated
+	private void adjustIndex() {
+		long tail = array.arrayTailIndex.get();
+		long head = array.arrayHeadIndex.get();
+		if (tail <= head && (index < tail || index > head)) {
+			index = index < tail ? tail : head;
+		}
+	}
+
+	// released by page, the page may have been removed from the array since it was pinned
+	private void unpinIndexPage() {
+		if (indexPageFactory != null) {
+			indexPageFactory.releasePage(indexPage);
+			indexPageFactory = null;
+			indexPageIndex = -1L;
+			indexPage = null;
+		}
+	}
+
+	private void unpinDataPage() {
+		if (dataPageFactory != null) {
+			dataPageFactory.releasePage(dataPage);
+			dataPageFactory = null;
+			dataPageIndex = -1L;
+			dataPage = null;
+			dataPageBuffer = null;
+		}
+	}
+
+	/**
+	 * Unpin the pages of the cursor, closing a cursor twice has no effect
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		unpinIndexPage();
+		unpinDataPage();
+	}
+}
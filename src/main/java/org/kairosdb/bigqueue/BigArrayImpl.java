@@ -2,24 +2,50 @@ package org.kairosdb.bigqueue;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.LongConsumer;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
+import org.kairosdb.bigqueue.codec.ItemCodec;
+import org.kairosdb.bigqueue.codec.ItemCodecs;
 import org.kairosdb.bigqueue.metrics.BigArrayStats;
 import org.kairosdb.bigqueue.page.IMappedPage;
 import org.kairosdb.bigqueue.page.IMappedPageFactory;
+import org.kairosdb.bigqueue.page.MappedMemoryBudget;
 import org.kairosdb.bigqueue.page.MappedPageFactoryImpl;
+import org.kairosdb.bigqueue.page.PageReclaimer;
 import org.kairosdb.bigqueue.utils.Calculator;
+import org.kairosdb.bigqueue.utils.Crc32c;
 import org.kairosdb.bigqueue.utils.FileUtil;
 import org.kairosdb.bigqueue.utils.Clock;
+import org.kairosdb.bigqueue.utils.DaemonThreadFactory;
 import org.kairosdb.bigqueue.utils.SystemClockImpl;
 import org.kairosdb.metrics4j.MetricSourceManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * A big array implementation supporting sequential append and random read.
@@ -38,7 +64,10 @@ import org.kairosdb.metrics4j.MetricSourceManager;
  *
  */
 public class BigArrayImpl implements IBigArray {
+	private final static Logger logger = LoggerFactory.getLogger(BigArrayImpl.class);
 	private final BigArrayStats stats = MetricSourceManager.getSource(BigArrayStats.class);
+	// epochs covering the reads of index pages after they are released
+	private static final PageReclaimer reclaimer = PageReclaimer.getInstance();
 
 	// folder name for index page
 	final static String INDEX_PAGE_FOLDER = "index";
@@ -46,6 +75,8 @@ public class BigArrayImpl implements IBigArray {
 	final static String DATA_PAGE_FOLDER = "data";
 	// folder name for meta data page
 	final static String META_DATA_PAGE_FOLDER = "meta_data";
+	// folder name for format header page
+	final static String FORMAT_PAGE_FOLDER = "format";
 	
 	// 2 ^ 17 = 1024 * 128
 	final static int INDEX_ITEMS_PER_PAGE_BITS = 17; // 1024 * 128
@@ -73,12 +104,37 @@ public class BigArrayImpl implements IBigArray {
 	final static int META_DATA_ITEM_LENGTH_BITS = 4;
 	// size in bytes of a meta data page
 	final static int META_DATA_PAGE_SIZE = 1 << META_DATA_ITEM_LENGTH_BITS;
+	// size in bytes of the format header page, format version, codec id and first checksummed index
+	final static int FORMAT_PAGE_SIZE = 16;
+	// format version written to the format header page, 0 means no header was written yet,
+	// version 1 headers have no first checksummed index
+	final static int FORMAT_VERSION = 2;
 	
-//	private final static int INDEX_ITEM_DATA_PAGE_INDEX_OFFSET = 0;
-//	private final static int INDEX_ITEM_DATA_ITEM_OFFSET_OFFSET = 8;
-	private final static int INDEX_ITEM_DATA_ITEM_LENGTH_OFFSET = 12;
+	final static int INDEX_ITEM_DATA_PAGE_INDEX_OFFSET = 0;
+	final static int INDEX_ITEM_DATA_ITEM_OFFSET_OFFSET = 8;
+	final static int INDEX_ITEM_DATA_ITEM_LENGTH_OFFSET = 12;
 	// timestamp offset of an data item within an index item
 	final static int INDEX_ITEM_DATA_ITEM_TIMESTAMP_OFFSET = 16;
+	// codec id offset of an data item within an index item, 0 for uncompressed data items
+	final static int INDEX_ITEM_CODEC_OFFSET = 24;
+	// flags offset of an data item within an index item, 0 in index items written before flags were introduced
+	final static int INDEX_ITEM_FLAGS_OFFSET = 25;
+	// flag of a slot reserved by a concurrent append whose data could not be written, readers skip it
+	final static int INDEX_ITEM_FLAG_SKIPPED = 1;
+	// CRC32C offset of an data item within an index item, the checksum covers the data item as stored
+	final static int INDEX_ITEM_CHECKSUM_OFFSET = 28;
+	// compressed data items start with their original length
+	final static int COMPRESSED_ITEM_HEADER_LENGTH = 4;
+	// largest per thread buffer kept for reads into caller supplied buffers
+	final static int MAX_SCRATCH_BUFFER_SIZE = 1024 * 1024;
+	// yields of a concurrent append waiting for the preceding items before it starts parking
+	final static int PUBLISH_YIELDS = 64;
+	// nanoseconds, longest park of a concurrent append waiting for the preceding items, the park doubles up to it
+	final static long MAX_PUBLISH_PARK_NANOS = 1000 * 1000;
+	
+	// per thread buffers for compressed items read into caller supplied buffers
+	private static final ThreadLocal<byte[]> storedScratch = new ThreadLocal<byte[]>();
+	private static final ThreadLocal<byte[]> decodedScratch = new ThreadLocal<byte[]>();
 	
 	// directory to persist array data
 	String arrayDirectory;
@@ -91,9 +147,24 @@ public class BigArrayImpl implements IBigArray {
 	IMappedPageFactory dataPageFactory;
 	// factory for meta data page management(acquire, release, cache)
 	IMappedPageFactory metaPageFactory;
+	// factory for format header page management
+	IMappedPageFactory formatPageFactory;
+	// lowest and highest timestamp of every index page, for time seeks
+	TimestampIndex timestampIndex;
+	// first array index of every data page, for size truncation
+	PageStartIndex pageStartIndex;
+	
+	// codec compressing appended items, null to store them uncompressed
+	volatile ItemCodec codec;
+	// items before this index were appended without checksum
+	volatile long checksumFromIndex;
+	// verify the checksum of every item read by get
+	volatile boolean verifyChecksums = false;
 	
 	// only use the first page
 	static final long META_DATA_PAGE_INDEX = 0;
+	// only use the first page
+	static final long FORMAT_PAGE_INDEX = 0;
 	
 	// head index of the big array, this is the read write barrier.
 	// readers can only read items before this index, and writes can write this index or after
@@ -106,16 +177,58 @@ public class BigArrayImpl implements IBigArray {
 	long headDataPageIndex;
 	// head offset of the data page, this is the to be appended data offset
 	int headDataItemOffset;
+	
+	// next to be reserved position in concurrent append mode,
+	// replaces the head data page index and offset above while that mode is enabled
+	final AtomicReference<AppendPosition> appendPosition = new AtomicReference<AppendPosition>();
+	// append mode, see setConcurrentAppend
+	volatile boolean concurrentAppend = false;
 
 	Clock clock = new SystemClockImpl();
 	
 	// lock for appending state management
 	final Lock appendLock = new ReentrantLock();
 	
+	// applies the durability policy, see setDurabilityPolicy
+	final GroupCommitFlusher flusher = new GroupCommitFlusher(this);
+	// extra pages forced together with the array by the flusher, e.g. queue front indexes
+	final List<Runnable> flushHooks = new CopyOnWriteArrayList<Runnable>();
+	
+	// fill ratio of the head page from which the next page is mapped in the background, 0 disables pre-mapping
+	volatile double premapThreshold = 0;
+	// head data offset and index item position from which the next page is pre-mapped
+	volatile int premapDataOffset = Integer.MAX_VALUE;
+	volatile long premapIndexItem = Long.MAX_VALUE;
+	// highest data and index page requested from the pre-mapper
+	final AtomicLong premapRequestedDataPageIndex = new AtomicLong(-1L);
+	final AtomicLong premapRequestedIndexPageIndex = new AtomicLong(-1L);
+	// pages kept acquired by the pre-mapper until the next page is pre-mapped, guarded by premapLock
+	long premappedDataPageIndex = -1L;
+	long premappedIndexPageIndex = -1L;
+	final Object premapLock = new Object();
+	// single background thread of the pre-mapper, guarded by premapLock
+	ExecutorService premapExecutor;
+	private static final ThreadFactory premapThreadFactory = new DaemonThreadFactory("bigqueue-premap");
+	
+	// back file size limit enforced in the background, 0 when disabled, see setBackFileSizeLimit
+	volatile long backFileSizeLimit = 0L;
+	// receives the size of the back files deleted by the background size limit, may be null
+	volatile LongConsumer truncationListener;
+	// set when the head moved to a new data page since the limit was last checked
+	volatile boolean backFileSizeCheckDue = false;
+	final AtomicBoolean backFileSizeCheckScheduled = new AtomicBoolean(false);
+	// run under the array write lock once the limit moved the tail in the background, e.g. to adjust queue fronts
+	final List<Runnable> retentionHooks = new CopyOnWriteArrayList<Runnable>();
+	// single background thread shared by all arrays, its thread is only started by the first check
+	private static final ExecutorService retentionExecutor = Executors.newSingleThreadExecutor(new DaemonThreadFactory("bigqueue-retention"));
+	
 	// global lock for array read and write management
     final ReadWriteLock arrayReadWritelock = new ReentrantReadWriteLock();
     final Lock arrayReadLock = arrayReadWritelock.readLock();
     final Lock arrayWriteLock = arrayReadWritelock.writeLock();
+    
+	// guards the head and tail index against exclusive moves other than appends, so size and isEmpty can read them optimistically
+	final StampedLock indexLock = new StampedLock();
 
 	/**
 	 * 
@@ -158,7 +271,19 @@ public class BigArrayImpl implements IBigArray {
 		
 		DATA_PAGE_SIZE = pageSize;
 		
+		// the format header survives removeAll, it is only read once
+		this.formatPageFactory = new MappedPageFactoryImpl(FORMAT_PAGE_SIZE,
+				this.arrayDirectory + FORMAT_PAGE_FOLDER,
+				10 * 1000/*does not matter*/);
+		boolean checksummed = initFormat();
+		
 		this.commonInit();
+		
+		if (!checksummed) {
+			// items appended from now on carry a checksum
+			this.checksumFromIndex = this.arrayHeadIndex.get();
+			writeFormat();
+		}
 
 		//register callback to get array size for stats
 		Map<String, String> tags = new HashMap<>();
@@ -175,105 +300,547 @@ public class BigArrayImpl implements IBigArray {
 		this.clock = clock;
 	}
 	
+	/**
+	 * Set when appended items are forced to disk, see {@link DurabilityPolicy}.
+	 * 
+	 * Any policy other than NONE runs a background flusher thread for this array,
+	 * which is stopped by close or by switching back to NONE.
+	 * 
+	 * @param policy the durability policy
+	 */
+	public void setDurabilityPolicy(DurabilityPolicy policy) {
+		if (policy == null) {
+			throw new IllegalArgumentException("durability policy can't be null");
+		}
+		flusher.setPolicy(policy);
+	}
+	
+	public DurabilityPolicy getDurabilityPolicy() {
+		return flusher.getPolicy();
+	}
+	
+	/**
+	 * Map the next data and index page on a background thread once the head page is filled
+	 * above the threshold, so the appender rolling over to the next page finds it already created and mapped.
+	 * 
+	 * The pre-mapped page files count toward the back file size.
+	 * 
+	 * @param threshold fill ratio of the head page between 0 and 1, 0 disables pre-mapping
+	 */
+	public void setPremapThreshold(double threshold) {
+		if (threshold < 0 || threshold > 1) {
+			throw new IllegalArgumentException("invalid pre-map threshold : " + threshold);
+		}
+		synchronized (premapLock) {
+			this.premapThreshold = threshold;
+			if (threshold > 0) {
+				this.premapDataOffset = (int) (DATA_PAGE_SIZE * threshold);
+				this.premapIndexItem = (long) (INDEX_ITEMS_PER_PAGE * threshold);
+				if (premapExecutor == null) {
+					premapExecutor = Executors.newSingleThreadExecutor(premapThreadFactory);
+				}
+			} else {
+				this.premapDataOffset = Integer.MAX_VALUE;
+				this.premapIndexItem = Long.MAX_VALUE;
+				stopPremap();
+			}
+		}
+	}
+	
+	public double getPremapThreshold() {
+		return premapThreshold;
+	}
+	
+	// request the pages following the head pages once the head has passed the threshold, never blocks
+	private void premapAhead(long dataPageIndex, int dataItemEnd, long arrayIndex) {
+		if (dataItemEnd >= premapDataOffset) {
+			long next = dataPageIndex + 1;
+			long requested = premapRequestedDataPageIndex.get();
+			if (requested < next && premapRequestedDataPageIndex.compareAndSet(requested, next)) {
+				submitPremap(this.dataPageFactory, next, true);
+			}
+		}
+		if (Calculator.mod(arrayIndex, INDEX_ITEMS_PER_PAGE_BITS) >= premapIndexItem) {
+			long next = Calculator.div(arrayIndex, INDEX_ITEMS_PER_PAGE_BITS) + 1;
+			long requested = premapRequestedIndexPageIndex.get();
+			if (requested < next && premapRequestedIndexPageIndex.compareAndSet(requested, next)) {
+				submitPremap(this.indexPageFactory, next, false);
+			}
+		}
+	}
+	
+	private void submitPremap(final IMappedPageFactory factory, final long pageIndex, final boolean dataPage) {
+		synchronized (premapLock) {
+			if (premapExecutor == null) {
+				return;
+			}
+			premapExecutor.execute(() -> premap(factory, pageIndex, dataPage));
+		}
+	}
+	
+	// runs on the pre-mapper thread
+	private void premap(IMappedPageFactory factory, long pageIndex, boolean dataPage) {
+		try {
+			arrayReadLock.lock(); // the array is not closed or emptied meanwhile
+			if (factory != (dataPage ? this.dataPageFactory : this.indexPageFactory)) {
+				return; // array was emptied since the request
+			}
+			// the page stays acquired, so it is not swapped out before the head reaches it
+			factory.acquirePage(pageIndex);
+			synchronized (premapLock) {
+				if (premapExecutor == null) {
+					factory.releasePage(pageIndex); // pre-mapping was disabled meanwhile
+					return;
+				}
+				long previous = dataPage ? premappedDataPageIndex : premappedIndexPageIndex;
+				if (previous >= 0) {
+					factory.releasePage(previous);
+				}
+				if (dataPage) {
+					premappedDataPageIndex = pageIndex;
+				} else {
+					premappedIndexPageIndex = pageIndex;
+				}
+			}
+		} catch (IOException e) {
+			logger.warn("fail to pre-map page " + pageIndex + " of array " + arrayName, e);
+		} finally {
+			arrayReadLock.unlock();
+		}
+	}
+	
+	// release the pre-mapped pages and stop the pre-mapper thread, guarded by premapLock
+	private void stopPremap() {
+		if (premapExecutor != null) {
+			premapExecutor.shutdown();
+			premapExecutor = null;
+		}
+		if (premappedDataPageIndex >= 0) {
+			this.dataPageFactory.releasePage(premappedDataPageIndex);
+			premappedDataPageIndex = -1L;
+		}
+		if (premappedIndexPageIndex >= 0) {
+			this.indexPageFactory.releasePage(premappedIndexPageIndex);
+			premappedIndexPageIndex = -1L;
+		}
+		premapRequestedDataPageIndex.set(-1L);
+		premapRequestedIndexPageIndex.set(-1L);
+	}
+	
+	// pages forced along with the array whenever the flusher commits
+	void addFlushHook(Runnable hook) {
+		flushHooks.add(hook);
+	}
+	
+	@Override
+	public void setBackFileSizeLimit(long sizeLimit) {
+		setBackFileSizeLimit(sizeLimit, null);
+	}
+	
+	@Override
+	public void setBackFileSizeLimit(long sizeLimit, LongConsumer truncationListener) {
+		if (sizeLimit < 0) {
+			throw new IllegalArgumentException("invalid back file size limit : " + sizeLimit);
+		}
+		this.truncationListener = truncationListener;
+		this.backFileSizeLimit = sizeLimit;
+		if (sizeLimit > 0) {
+			scheduleBackFileSizeCheck();
+		}
+	}
+	
+	@Override
+	public long getBackFileSizeLimit() {
+		return backFileSizeLimit;
+	}
+	
+	// hooks run after the background size limit moved the tail
+	void addRetentionHook(Runnable hook) {
+		retentionHooks.add(hook);
+	}
+	
+	// check the size limit on the retention thread, never blocks
+	private void scheduleBackFileSizeCheck() {
+		backFileSizeCheckDue = false;
+		if (backFileSizeLimit > 0 && backFileSizeCheckScheduled.compareAndSet(false, true)) {
+			retentionExecutor.execute(this::checkBackFileSize);
+		}
+	}
+	
+	// runs on the retention thread
+	private void checkBackFileSize() {
+		backFileSizeCheckScheduled.set(false);
+		long truncatedSize = 0L;
+		LongConsumer listener = null;
+		try {
+			arrayWriteLock.lock();
+			long sizeLimit = this.backFileSizeLimit; // disabled by close
+			if (sizeLimit > 0) {
+				long tailIndex = this.arrayTailIndex.get();
+				truncatedSize = truncateToSize(sizeLimit);
+				listener = this.truncationListener;
+				if (this.arrayTailIndex.get() != tailIndex) {
+					for (Runnable hook : retentionHooks) {
+						hook.run();
+					}
+				}
+			}
+		} catch (IOException | UncheckedIOException e) {
+			logger.error("fail to limit back file size of array " + arrayName, e);
+		} finally {
+			arrayWriteLock.unlock();
+		}
+		if (truncatedSize > 0 && listener != null) {
+			listener.accept(truncatedSize);
+		}
+	}
+	
 	public String getArrayDirectory() {
 		return this.arrayDirectory;
 	}
 	
 	
 	void commonInit() throws IOException {
-		// initialize page factories
-		this.indexPageFactory = new MappedPageFactoryImpl(INDEX_PAGE_SIZE,
+		// initialize page factories, data pages are evicted first when the mapped memory budget is exceeded
+		MappedPageFactoryImpl indexPages = new MappedPageFactoryImpl(INDEX_PAGE_SIZE,
 				this.arrayDirectory + INDEX_PAGE_FOLDER, 
 				INDEX_PAGE_CACHE_TTL);
+		indexPages.setEvictionPriority(MappedMemoryBudget.INDEX_PAGE_PRIORITY);
+		this.indexPageFactory = indexPages;
 		this.dataPageFactory = new MappedPageFactoryImpl(DATA_PAGE_SIZE, 
 				this.arrayDirectory + DATA_PAGE_FOLDER, 
 				DATA_PAGE_CACHE_TTL);
 		// the ttl does not matter here since meta data page is always cached
-		this.metaPageFactory = new MappedPageFactoryImpl(META_DATA_PAGE_SIZE, 
+		MappedPageFactoryImpl metaPages = new MappedPageFactoryImpl(META_DATA_PAGE_SIZE, 
 				this.arrayDirectory + META_DATA_PAGE_FOLDER, 
 				10 * 1000/*does not matter*/);
+		metaPages.setEvictionPriority(MappedMemoryBudget.META_PAGE_PRIORITY);
+		this.metaPageFactory = metaPages;
+		this.timestampIndex = new TimestampIndex(this.arrayDirectory);
+		this.pageStartIndex = new PageStartIndex(this.arrayDirectory);
 		
 		// initialize array indexes
 		initArrayIndex();
+		
+		// the meta page may have been forced ahead of the index and data pages before a crash
+		recoverHeadIndex();
+		
+		// fill in the timestamp index of arrays written before it existed
+		initTimestampIndex();
 
 		// initialize data page indexes
 		initDataPageIndex();
+		
+		// whatever is on disk now counts as durable
+		flusher.reset(arrayHeadIndex.get());
 	}
 
 	@Override
 	public void removeAll() throws IOException {
 		try {
 			arrayWriteLock.lock();
+			synchronized (premapLock) {
+				// unpin before the pages are deleted, a deleted page still pinned stays mapped
+				if (premappedDataPageIndex >= 0) {
+					this.dataPageFactory.releasePage(premappedDataPageIndex);
+					premappedDataPageIndex = -1L;
+				}
+				if (premappedIndexPageIndex >= 0) {
+					this.indexPageFactory.releasePage(premappedIndexPageIndex);
+					premappedIndexPageIndex = -1L;
+				}
+				premapRequestedDataPageIndex.set(-1L);
+				premapRequestedIndexPageIndex.set(-1L);
+			}
 			this.indexPageFactory.deleteAllPages();
 			this.dataPageFactory.deleteAllPages();
 			this.metaPageFactory.deleteAllPages();
+			this.timestampIndex.deleteAll();
+			this.pageStartIndex.deleteAll();
 			//FileUtil.deleteDirectory(new File(this.arrayDirectory));
 			
 			this.commonInit();
+			
+			// every item of the emptied array carries a checksum
+			if (this.checksumFromIndex != 0L) {
+				this.checksumFromIndex = 0L;
+				writeFormat();
+			}
 		} finally {
 			arrayWriteLock.unlock();
 		}
 	}
 	
 	@Override
-	public void removeBeforeIndex(long index) throws IOException {
+	public long removeBeforeIndex(long index) throws IOException {
     try {
       arrayWriteLock.lock();
+      reclaimer.enter();
 
       validateIndex(index);
 
-      long indexPageIndex = Calculator.div(index, INDEX_ITEMS_PER_PAGE_BITS);
-
-      ByteBuffer indexItemBuffer = this.getIndexItemBuffer(index);
-      long dataPageIndex = indexItemBuffer.getLong();
+      long dataPageIndex = this.getIndexPage(index).getLong(indexItemOffset(index) + INDEX_ITEM_DATA_PAGE_INDEX_OFFSET);
 
-      if (indexPageIndex > 0L) {
-          this.indexPageFactory.deletePagesBeforePageIndex(indexPageIndex);
-      }
-      if (dataPageIndex > 0L) {
-          this.dataPageFactory.deletePagesBeforePageIndex(dataPageIndex);
-      }
-
-      // advance the tail to index
-      this.arrayTailIndex.set(index);
+      return advanceTailIndex(index, dataPageIndex);
     } finally {
+      reclaimer.exit();
       arrayWriteLock.unlock();
     }
 	}
 	
+	// delete the pages before index and advance the tail to index, caller holds the array write lock,
+	// returns the size of the deleted index and data pages, the back file size they were counted in
+	private long advanceTailIndex(long index, long dataPageIndex) throws IOException {
+		long deletedSize = 0L;
+		long indexPageIndex = Calculator.div(index, INDEX_ITEMS_PER_PAGE_BITS);
+		if (indexPageIndex > 0L) {
+			deletedSize += this.indexPageFactory.deletePagesBeforePageIndex(indexPageIndex);
+			this.timestampIndex.deleteBefore(indexPageIndex);
+		}
+		if (dataPageIndex > 0L) {
+			deletedSize += this.dataPageFactory.deletePagesBeforePageIndex(dataPageIndex);
+			this.pageStartIndex.deleteBefore(dataPageIndex);
+		}
 
+		long stamp = indexLock.writeLock();
+		try {
+			this.arrayTailIndex.set(index);
+		} finally {
+			indexLock.unlockWrite(stamp);
+		}
+		return deletedSize;
+	}
 
 	@Override
-	public void removeBefore(long timestamp) throws IOException {
+	public long removeBefore(long timestamp) throws IOException {
 		try {
 			arrayWriteLock.lock();
-			long firstIndexPageIndex = this.indexPageFactory.getFirstPageIndexBefore(timestamp);
-			if (firstIndexPageIndex >= 0) {
-//				long nextIndexPageIndex = firstIndexPageIndex;
-//				if (nextIndexPageIndex == Long.MAX_VALUE) { //wrap
-//					nextIndexPageIndex = 0L;
-//				} else {
-//					nextIndexPageIndex++;
-//				}
-				long toRemoveBeforeIndex = Calculator.mul(firstIndexPageIndex, INDEX_ITEMS_PER_PAGE_BITS);
-				removeBeforeIndex(toRemoveBeforeIndex);
-			}
-		} catch (IndexOutOfBoundsException ex) {
-			// ignore
+			long tailIndex = this.arrayTailIndex.get();
+			long headIndex = this.arrayHeadIndex.get();
+			if (tailIndex < 0L || tailIndex >= headIndex) {
+				return 0L; // empty, or the index space wrapped around
+			}
+			long index = findFirstIndexFrom(tailIndex, headIndex, timestamp);
+			if (index == tailIndex) {
+				return 0L; // nothing to remove
+			}
+			if (index < headIndex) {
+				return removeBeforeIndex(index);
+			} else {
+				// all items are older, the head data page is the next to be appended to
+				long headDataPage = this.concurrentAppend ? this.appendPosition.get().dataPageIndex : this.headDataPageIndex;
+				return advanceTailIndex(headIndex, headDataPage);
+			}
 		} finally {
 			arrayWriteLock.unlock();
 		}	
 	}
 	
+	// find out the codec and the first checksummed index from the format header, returns false if the header has no first checksummed index
+	boolean initFormat() throws IOException {
+		IMappedPage formatPage = this.formatPageFactory.acquirePage(FORMAT_PAGE_INDEX);
+		int version = formatPage.getInt(0);
+		int codecId = formatPage.getInt(4);
+		long firstChecksummedIndex = formatPage.getLong(8);
+		if (version > FORMAT_VERSION) {
+			throw new IOException("unsupported array format version " + version + " in " + arrayDirectory);
+		}
+		this.codec = codecId == ItemCodecs.NONE_ID ? null : ItemCodecs.forId(codecId);
+		if (version < 2) {
+			// none of the existing items has a checksum
+			this.checksumFromIndex = Long.MAX_VALUE;
+			return false;
+		}
+		this.checksumFromIndex = firstChecksummedIndex;
+		return true;
+	}
+	
+	// persist the format header and force it to disk
+	private void writeFormat() throws IOException {
+		IMappedPage formatPage = this.formatPageFactory.acquirePage(FORMAT_PAGE_INDEX);
+		formatPage.putInt(0, FORMAT_VERSION);
+		formatPage.putInt(4, this.codec == null ? ItemCodecs.NONE_ID : this.codec.getId());
+		formatPage.putLong(8, this.checksumFromIndex);
+		formatPage.setDirty(true);
+		formatPage.flush();
+	}
+	
+	/**
+	 * Set the codec compressing the items appended from now on, the codec is recorded in the
+	 * format header of the array and used again when the array is reopened.
+	 * 
+	 * Items are stored uncompressed when the codec does not make them smaller, or when they are appended by an item writer.
+	 * Items keep the codec they were appended with, so changing the codec never affects existing items.
+	 * 
+	 * @param codec the codec, see {@link ItemCodecs}, null to stop compressing items
+	 * @throws IOException exception thrown if the format header could not be written
+	 */
+	public void setCodec(ItemCodec codec) throws IOException {
+		try {
+			arrayWriteLock.lock();
+			this.codec = codec;
+			writeFormat();
+		} finally {
+			arrayWriteLock.unlock();
+		}
+	}
+	
+	public ItemCodec getCodec() {
+		return this.codec;
+	}
+	
 	// find out array head/tail from the meta data
 	void initArrayIndex() throws IOException {
 		IMappedPage metaDataPage = this.metaPageFactory.acquirePage(META_DATA_PAGE_INDEX);
-		ByteBuffer metaBuf = metaDataPage.getLocal(0);
-		long head = metaBuf.getLong();
-		long tail = metaBuf.getLong();
+		long head = metaDataPage.getLong(0);
+		long tail = metaDataPage.getLong(8);
 		
-		arrayHeadIndex.set(head);
-		arrayTailIndex.set(tail);
+		long stamp = indexLock.writeLock();
+		try {
+			arrayHeadIndex.set(head);
+			arrayTailIndex.set(tail);
+		} finally {
+			indexLock.unlockWrite(stamp);
+		}
+	}
+	
+	// walk back from the head until the last index item is consistent with its data item,
+	// bounded by one index page worth of items so that opening the array does not depend on its size
+	void recoverHeadIndex() throws IOException {
+		long head = arrayHeadIndex.get();
+		long tail = arrayTailIndex.get();
+		long lowest = Math.max(tail, head - INDEX_ITEMS_PER_PAGE);
+		long recoveredHead = head;
+		while (recoveredHead > lowest && !isConsistentIndexItem(recoveredHead - 1, tail)) {
+			recoveredHead--;
+		}
+		if (recoveredHead == head) {
+			return;
+		}
+		
+		if (recoveredHead > tail && !isConsistentIndexItem(recoveredHead - 1, tail)) {
+			logger.error("array " + arrayName + " has no consistent item between " + lowest + " and head " + head
+					+ ", dropping items from " + recoveredHead);
+		} else {
+			logger.warn("recovered array " + arrayName + ", moving head from " + head + " back to " + recoveredHead);
+		}
+		setHeadIndexBack(recoveredHead);
+		persistMetaData(recoveredHead);
+		this.metaPageFactory.flush();
+	}
+	
+	// an index item is consistent when it was completely written: it has a timestamp, its data item lies within
+	// a data page that exists, it follows the previous item and its checksum matches
+	private boolean isConsistentIndexItem(long index, long tail) throws IOException {
+		long indexPageIndex = Calculator.div(index, INDEX_ITEMS_PER_PAGE_BITS);
+		if (this.indexPageFactory.getPageFileLastModifiedTime(indexPageIndex) < 0) {
+			return false;
+		}
+		IMappedPage indexPage = this.indexPageFactory.acquirePage(indexPageIndex);
+		long dataPageIndex;
+		int dataItemOffset;
+		int dataItemLength;
+		long timestamp;
+		int checksum;
+		try {
+			int indexItemOffset = indexItemOffset(index);
+			dataPageIndex = indexPage.getLong(indexItemOffset + INDEX_ITEM_DATA_PAGE_INDEX_OFFSET);
+			dataItemOffset = indexPage.getInt(indexItemOffset + INDEX_ITEM_DATA_ITEM_OFFSET_OFFSET);
+			dataItemLength = indexPage.getInt(indexItemOffset + INDEX_ITEM_DATA_ITEM_LENGTH_OFFSET);
+			timestamp = indexPage.getLong(indexItemOffset + INDEX_ITEM_DATA_ITEM_TIMESTAMP_OFFSET);
+			checksum = indexPage.getInt(indexItemOffset + INDEX_ITEM_CHECKSUM_OFFSET);
+		} finally {
+			this.indexPageFactory.releasePage(indexPageIndex);
+		}
+		// a zero filled index item was never written
+		if (timestamp == 0L) {
+			return false;
+		}
+		if (dataPageIndex < 0 || dataItemOffset < 0 || dataItemLength < 0 || dataItemLength > DATA_PAGE_SIZE - dataItemOffset) {
+			return false;
+		}
+		
+		// data items are laid out in index order, an item failed in concurrent append mode may leave a gap
+		if (index > tail) {
+			long previousIndexPageIndex = Calculator.div(index - 1, INDEX_ITEMS_PER_PAGE_BITS);
+			IMappedPage previousIndexPage = this.indexPageFactory.acquirePage(previousIndexPageIndex);
+			try {
+				int previousIndexItemOffset = indexItemOffset(index - 1);
+				long previousDataPageIndex = previousIndexPage.getLong(previousIndexItemOffset + INDEX_ITEM_DATA_PAGE_INDEX_OFFSET);
+				int previousDataItemEnd = previousIndexPage.getInt(previousIndexItemOffset + INDEX_ITEM_DATA_ITEM_OFFSET_OFFSET)
+						+ previousIndexPage.getInt(previousIndexItemOffset + INDEX_ITEM_DATA_ITEM_LENGTH_OFFSET);
+				if (dataPageIndex < previousDataPageIndex || (dataPageIndex == previousDataPageIndex && dataItemOffset < previousDataItemEnd)) {
+					return false;
+				}
+			} finally {
+				this.indexPageFactory.releasePage(previousIndexPageIndex);
+			}
+		}
+		
+		if (dataItemLength == 0) {
+			return true;
+		}
+		if (this.dataPageFactory.getPageFileLastModifiedTime(dataPageIndex) < 0) {
+			return false;
+		}
+		if (index < checksumFromIndex) {
+			return true;
+		}
+		IMappedPage dataPage = this.dataPageFactory.acquirePage(dataPageIndex);
+		try {
+			return Crc32c.compute(dataPage.slice(dataItemOffset, dataItemLength)) == checksum;
+		} finally {
+			this.dataPageFactory.releasePage(dataPageIndex);
+		}
+	}
+	
+	// set the timestamp index entries missing between tail and head, and redo the entry of the head index page
+	// which may have been left ahead of the recovered head or behind the index page by a crash
+	void initTimestampIndex() throws IOException {
+		long tail = arrayTailIndex.get();
+		long head = arrayHeadIndex.get();
+		if (tail < 0L || tail > head) {
+			return; // the index space wrapped around
+		}
+		if (tail == head) {
+			summarizeIndexPage(Calculator.div(head, INDEX_ITEMS_PER_PAGE_BITS), tail, head); // clears the entry
+			return;
+		}
+		long firstIndexPageIndex = Calculator.div(tail, INDEX_ITEMS_PER_PAGE_BITS);
+		long lastIndexPageIndex = Calculator.div(head - 1, INDEX_ITEMS_PER_PAGE_BITS);
+		for (long indexPageIndex = firstIndexPageIndex; indexPageIndex <= lastIndexPageIndex; indexPageIndex++) {
+			if (indexPageIndex == lastIndexPageIndex || this.timestampIndex.getMin(indexPageIndex) == 0L) {
+				summarizeIndexPage(indexPageIndex, tail, head);
+			}
+		}
+	}
+	
+	// set the timestamp index entry of an index page from its items within [tail, head)
+	private void summarizeIndexPage(long indexPageIndex, long tail, long head) throws IOException {
+		long from = Math.max(tail, Calculator.mul(indexPageIndex, INDEX_ITEMS_PER_PAGE_BITS));
+		long to = Math.min(head, Calculator.mul(indexPageIndex + 1, INDEX_ITEMS_PER_PAGE_BITS));
+		long min = 0L;
+		long max = 0L;
+		if (from < to) {
+			IMappedPage indexPage = this.indexPageFactory.acquirePage(indexPageIndex);
+			try {
+				min = Long.MAX_VALUE;
+				max = Long.MIN_VALUE;
+				for (long index = from; index < to; index++) {
+					long timestamp = timestampAt(indexPage, index);
+					min = Math.min(min, timestamp);
+					max = Math.max(max, timestamp);
+				}
+			} finally {
+				this.indexPageFactory.releasePage(indexPageIndex);
+			}
+		}
+		this.timestampIndex.put(indexPageIndex, min, max);
+	}
+	
+	// timestamp of an item read from its index page
+	private static long timestampAt(IMappedPage indexPage, long index) {
+		return indexPage.getLong(indexItemOffset(index) + INDEX_ITEM_DATA_ITEM_TIMESTAMP_OFFSET);
 	}
 	
 	// find out data page head index and offset
@@ -289,11 +856,10 @@ public class BigArrayImpl implements IBigArray {
 				long previousIndex = this.arrayHeadIndex.get() - 1;
 				previousIndexPageIndex = Calculator.div(previousIndex, INDEX_ITEMS_PER_PAGE_BITS); // shift optimization
 				previousIndexPage = this.indexPageFactory.acquirePage(previousIndexPageIndex);
-				int previousIndexPageOffset = (int) (Calculator.mul(Calculator.mod(previousIndex, INDEX_ITEMS_PER_PAGE_BITS), INDEX_ITEM_LENGTH_BITS));
-				ByteBuffer previousIndexItemBuffer = previousIndexPage.getLocal(previousIndexPageOffset);
-				long previousDataPageIndex = previousIndexItemBuffer.getLong();
-				int previousDataItemOffset = previousIndexItemBuffer.getInt();
-				int perviousDataItemLength = previousIndexItemBuffer.getInt();
+				int previousIndexPageOffset = indexItemOffset(previousIndex);
+				long previousDataPageIndex = previousIndexPage.getLong(previousIndexPageOffset + INDEX_ITEM_DATA_PAGE_INDEX_OFFSET);
+				int previousDataItemOffset = previousIndexPage.getInt(previousIndexPageOffset + INDEX_ITEM_DATA_ITEM_OFFSET_OFFSET);
+				int perviousDataItemLength = previousIndexPage.getInt(previousIndexPageOffset + INDEX_ITEM_DATA_ITEM_LENGTH_OFFSET);
 				
 				headDataPageIndex = previousDataPageIndex;
 				headDataItemOffset = previousDataItemOffset + perviousDataItemLength;
@@ -303,168 +869,1063 @@ public class BigArrayImpl implements IBigArray {
 				}
 			}
 		}
+		
+		appendPosition.set(new AppendPosition(arrayHeadIndex.get(), headDataPageIndex, headDataItemOffset));
+	}
+
+	/**
+	 * Append the data into the head of the array
+	 */
+	public long append(byte[] data) throws IOException {
+		return appendItem(data, 0, data.length);
+	}
+
+	/**
+	 * Append a slice of a byte array into the head of the array,
+	 * the bytes are copied straight from the source array into the data page.
+	 */
+	@Override
+	public long append(byte[] buf, int off, int len) throws IOException {
+		if (off < 0 || len < 0 || len > buf.length - off) {
+			throw new IndexOutOfBoundsException();
+		}
+		return appendItem(buf, off, len);
+	}
+
+	/**
+	 * Append the remaining bytes of a buffer into the head of the array,
+	 * the bytes are copied straight from the source buffer into the data page.
+	 */
+	@Override
+	public long append(ByteBuffer src) throws IOException {
+		if (this.codec == null) {
+			return appendItem(null, 0, src, null, src.remaining(), ItemCodecs.NONE_ID);
+		}
+		// the codec works on arrays
+		int length = src.remaining();
+		long index;
+		if (src.hasArray()) {
+			index = appendItem(src.array(), src.arrayOffset() + src.position(), length);
+		} else {
+			byte[] data = new byte[length];
+			src.duplicate().get(data);
+			index = appendItem(data, 0, length);
+		}
+		src.position(src.limit());
+		return index;
+	}
+
+	/**
+	 * Append an item of known length by letting the writer serialize it straight into the data page,
+	 * the index item and the array head are only published once the writer has returned.
+	 */
+	@Override
+	public long append(int length, ItemWriter writer) throws IOException {
+		if (length < 0) {
+			throw new IllegalArgumentException("invalid data item length : " + length);
+		}
+		return appendItem(null, 0, null, writer, length, ItemCodecs.NONE_ID);
+	}
+
+	// append an item taken from a byte array slice, compressed when the array has a codec
+	private long appendItem(byte[] buf, int off, int len) throws IOException {
+		ItemCodec current = this.codec;
+		if (current != null) {
+			checkItemLength(len);
+			// compress before taking any lock
+			byte[] encoded = new byte[COMPRESSED_ITEM_HEADER_LENGTH + current.maxCompressedLength(len)];
+			int encodedLength = encode(current, buf, off, len, encoded);
+			if (encodedLength >= 0) {
+				return appendItem(encoded, 0, null, null, encodedLength, current.getId());
+			}
+		}
+		return appendItem(buf, off, null, null, len, ItemCodecs.NONE_ID);
+	}
+	
+	// compress an item into dest behind its original length, returns the encoded length or -1 if it should be stored uncompressed
+	private static int encode(ItemCodec codec, byte[] buf, int off, int len, byte[] dest) {
+		int encodedLength = COMPRESSED_ITEM_HEADER_LENGTH + codec.compress(buf, off, len, dest, COMPRESSED_ITEM_HEADER_LENGTH);
+		if (encodedLength >= len) {
+			return -1; // compression does not pay off
+		}
+		ByteBuffer.wrap(dest).putInt(len);
+		return encodedLength;
+	}
+
+	// append an item taken from a byte array slice, from the remaining bytes of a buffer or from an item writer
+	private long appendItem(byte[] srcArray, int srcOffset, ByteBuffer srcBuffer, ItemWriter writer, int length, int codecId) throws IOException {
+		long index = writeItem(srcArray, srcOffset, srcBuffer, writer, length, codecId);
+		if (backFileSizeCheckDue) {
+			scheduleBackFileSizeCheck();
+		}
+		// outside of the array lock, this may wait for the flusher
+		flusher.appended(index + 1);
+		return index;
+	}
+	
+	private long writeItem(byte[] srcArray, int srcOffset, ByteBuffer srcBuffer, ItemWriter writer, int length, int codecId) throws IOException {
+		checkItemLength(length);
+		// checksum the source before taking any lock, items from a writer are checksummed once written
+		int checksum = 0;
+		if (srcArray != null) {
+			checksum = Crc32c.compute(srcArray, srcOffset, length);
+		} else if (srcBuffer != null) {
+			checksum = Crc32c.compute(srcBuffer);
+		}
+		try {
+			stats.appendData(arrayName).put(length);
+			arrayReadLock.lock(); 
+			// the append mode can only change under the array write lock
+			boolean concurrent = this.concurrentAppend;
+			IMappedPage toAppendDataPage = null;
+			IMappedPage toAppendIndexPage = null;
+			long toAppendIndexPageIndex = -1L;
+			long toAppendDataPageIndex;
+			int toAppendDataItemOffset;
+			long toAppendArrayIndex;
+			
+			if (concurrent) {
+				AppendPosition position = reserve(length);
+				toAppendArrayIndex = position.arrayIndex;
+				toAppendDataPageIndex = position.dataPageIndex;
+				toAppendDataItemOffset = position.dataItemOffset;
+			} else {
+				appendLock.lock(); // only one thread can append
+				toAppendArrayIndex = this.arrayHeadIndex.get();
+				toAppendDataPageIndex = this.headDataPageIndex;
+				toAppendDataItemOffset = this.headDataItemOffset;
+			}
+			
+			long timestamp = clock.getTime();
+			boolean written = false;
+			try {
+				// prepare the data pointer
+				if (toAppendDataItemOffset + length > DATA_PAGE_SIZE) { // not enough space
+					toAppendDataPageIndex++;
+					toAppendDataItemOffset = 0;
+				}
+				if (toAppendDataItemOffset == 0) {
+					backFileSizeCheckDue = true; // a new data page
+					this.pageStartIndex.put(toAppendDataPageIndex, toAppendArrayIndex);
+				}
+				
+				// append data
+				toAppendDataPage = this.dataPageFactory.acquirePage(toAppendDataPageIndex);
+				if (srcArray != null) {
+					toAppendDataPage.copyFrom(toAppendDataItemOffset, srcArray, srcOffset, length);
+				} else if (srcBuffer != null) {
+					toAppendDataPage.copyFrom(toAppendDataItemOffset, srcBuffer);
+				} else {
+					ByteBuffer itemBuffer = toAppendDataPage.slice(toAppendDataItemOffset, length);
+					writer.write(itemBuffer.duplicate());
+					checksum = Crc32c.compute(itemBuffer);
+				}
+				toAppendDataPage.setDirty(toAppendDataItemOffset, length);
+				
+				toAppendIndexPageIndex = Calculator.div(toAppendArrayIndex, INDEX_ITEMS_PER_PAGE_BITS); // shift optimization
+				toAppendIndexPage = this.indexPageFactory.acquirePage(toAppendIndexPageIndex);
+				int toAppendIndexItemOffset = indexItemOffset(toAppendArrayIndex);
+				
+				// update index
+				putIndexItem(toAppendIndexPage, toAppendIndexItemOffset, toAppendDataPageIndex, toAppendDataItemOffset, length, timestamp, codecId, checksum);
+				toAppendIndexPage.setDirty(toAppendIndexItemOffset, INDEX_ITEM_LENGTH);
+				written = true;
+				
+				premapAhead(toAppendDataPageIndex, toAppendDataItemOffset + length, toAppendArrayIndex);
+			} finally {
+				try {
+					if (concurrent) {
+						if (!written) {
+							// the slot is reserved and later items may already be waiting for it, publish it empty
+							putEmptyIndexItem(toAppendArrayIndex, toAppendDataPageIndex, toAppendDataItemOffset, timestamp);
+						}
+						publish(toAppendArrayIndex, 1, timestamp);
+					} else if (written) {
+						// update to next, only once the data has been written
+						this.headDataPageIndex = toAppendDataPageIndex;
+						this.headDataItemOffset = toAppendDataItemOffset + length;
+						publish(toAppendArrayIndex, 1, timestamp);
+					}
+				} finally {
+					if (!concurrent) {
+						appendLock.unlock();
+					}
+					
+					if (toAppendDataPage != null) {
+						this.dataPageFactory.releasePage(toAppendDataPageIndex);
+					}
+					if (toAppendIndexPage != null) {
+						this.indexPageFactory.releasePage(toAppendIndexPageIndex);
+					}
+				}
+			}
+			
+			return toAppendArrayIndex;
+		
+		} finally {
+			arrayReadLock.unlock();
+		}
+	}
+
+	/**
+	 * Append a batch of data into the head of the array.
+	 *
+	 * The append lock is taken once for the whole batch, each data and index page is acquired once,
+	 * and the array head and meta data are only updated after the last item has been written.
+	 */
+	@Override
+	public long appendBatch(List<byte[]> items) throws IOException {
+		if (items.isEmpty()) {
+			return NOT_FOUND;
+		}
+		long firstIndex;
+		ItemCodec current = this.codec;
+		if (current == null) {
+			firstIndex = writeBatch(items, null);
+		} else {
+			// compress before taking any lock
+			List<byte[]> encodedItems = new ArrayList<byte[]>(items.size());
+			byte[] codecIds = new byte[items.size()];
+			for (int i = 0; i < items.size(); i++) {
+				byte[] data = items.get(i);
+				checkItemLength(data.length);
+				byte[] encoded = new byte[COMPRESSED_ITEM_HEADER_LENGTH + current.maxCompressedLength(data.length)];
+				int encodedLength = encode(current, data, 0, data.length, encoded);
+				if (encodedLength >= 0) {
+					encodedItems.add(Arrays.copyOf(encoded, encodedLength));
+					codecIds[i] = (byte) current.getId();
+				} else {
+					encodedItems.add(data);
+				}
+			}
+			firstIndex = writeBatch(encodedItems, codecIds);
+		}
+		if (backFileSizeCheckDue) {
+			scheduleBackFileSizeCheck();
+		}
+		// outside of the array lock, this may wait for the flusher
+		flusher.appended(firstIndex + items.size());
+		return firstIndex;
+	}
+	
+	// codecIds holds the codec id of each item, null when all items are uncompressed
+	private long writeBatch(List<byte[]> items, byte[] codecIds) throws IOException {
+		// checksum before taking any lock
+		int[] checksums = new int[items.size()];
+		for (int i = 0; i < items.size(); i++) {
+			byte[] data = items.get(i);
+			checkItemLength(data.length);
+			checksums[i] = Crc32c.compute(data, 0, data.length);
+		}
+		try {
+			arrayReadLock.lock();
+			// the append mode can only change under the array write lock
+			boolean concurrent = this.concurrentAppend;
+			IMappedPage toAppendDataPage = null;
+			IMappedPage toAppendIndexPage = null;
+			long toAppendDataPageIndex = -1L;
+			long toAppendIndexPageIndex = -1L;
+
+			long firstArrayIndex;
+			long dataPageIndex;
+			int dataItemOffset;
+
+			if (concurrent) {
+				AppendPosition position = reserve(items);
+				firstArrayIndex = position.arrayIndex;
+				dataPageIndex = position.dataPageIndex;
+				dataItemOffset = position.dataItemOffset;
+			} else {
+				appendLock.lock(); // only one thread can append
+				firstArrayIndex = this.arrayHeadIndex.get();
+				dataPageIndex = this.headDataPageIndex;
+				dataItemOffset = this.headDataItemOffset;
+			}
+
+			long toAppendArrayIndex = firstArrayIndex;
+			// all items of a batch share the same append timestamp
+			long currentTime = clock.getTime();
+			boolean written = false;
+			try {
+
+				for (byte[] data : items) {
+					stats.appendData(arrayName).put(data.length);
+
+					// prepare the data pointer
+					if (dataItemOffset + data.length > DATA_PAGE_SIZE) { // not enough space
+						dataPageIndex++;
+						dataItemOffset = 0;
+					}
+					if (dataItemOffset == 0) {
+						backFileSizeCheckDue = true; // a new data page
+						this.pageStartIndex.put(dataPageIndex, toAppendArrayIndex);
+					}
+
+					// switch data page only when crossing a page boundary
+					if (toAppendDataPageIndex != dataPageIndex) {
+						if (toAppendDataPage != null) {
+							this.dataPageFactory.releasePage(toAppendDataPageIndex);
+							toAppendDataPage = null;
+						}
+						toAppendDataPageIndex = dataPageIndex;
+						toAppendDataPage = this.dataPageFactory.acquirePage(toAppendDataPageIndex);
+					}
+
+					// append data
+					toAppendDataPage.copyFrom(dataItemOffset, data, 0, data.length);
+					toAppendDataPage.setDirty(dataItemOffset, data.length);
+
+					// switch index page only when crossing a page boundary
+					long indexPageIndex = Calculator.div(toAppendArrayIndex, INDEX_ITEMS_PER_PAGE_BITS); // shift optimization
+					if (toAppendIndexPageIndex != indexPageIndex) {
+						if (toAppendIndexPage != null) {
+							this.indexPageFactory.releasePage(toAppendIndexPageIndex);
+							toAppendIndexPage = null;
+						}
+						toAppendIndexPageIndex = indexPageIndex;
+						toAppendIndexPage = this.indexPageFactory.acquirePage(toAppendIndexPageIndex);
+					}
+					int toAppendIndexItemOffset = indexItemOffset(toAppendArrayIndex);
+
+					// update index
+					int batchIndex = (int) (toAppendArrayIndex - firstArrayIndex);
+					int codecId = codecIds == null ? ItemCodecs.NONE_ID : codecIds[batchIndex];
+					putIndexItem(toAppendIndexPage, toAppendIndexItemOffset, dataPageIndex, dataItemOffset, data.length, currentTime, codecId, checksums[batchIndex]);
+					toAppendIndexPage.setDirty(toAppendIndexItemOffset, INDEX_ITEM_LENGTH);
+
+					// update to next
+					dataItemOffset += data.length;
+					toAppendArrayIndex++;
+				}
+				written = true;
+
+				premapAhead(dataPageIndex, dataItemOffset, toAppendArrayIndex - 1);
+			} finally {
+				try {
+					if (concurrent) {
+						// the slots are reserved and later items may already be waiting for them, publish the rest empty
+						for (long index = toAppendArrayIndex; index < firstArrayIndex + items.size(); index++) {
+							putEmptyIndexItem(index, dataPageIndex, dataItemOffset, currentTime);
+						}
+						publish(firstArrayIndex, items.size(), currentTime);
+					} else if (written) {
+						this.headDataPageIndex = dataPageIndex;
+						this.headDataItemOffset = dataItemOffset;
+						// advance the head, the whole batch becomes visible at once
+						publish(firstArrayIndex, items.size(), currentTime);
+					}
+				} finally {
+					if (!concurrent) {
+						appendLock.unlock();
+					}
+
+					if (toAppendDataPage != null) {
+						this.dataPageFactory.releasePage(toAppendDataPageIndex);
+					}
+					if (toAppendIndexPage != null) {
+						this.indexPageFactory.releasePage(toAppendIndexPageIndex);
+					}
+				}
+			}
+
+			return firstArrayIndex;
+
+		} finally {
+			arrayReadLock.unlock();
+		}
+	}
+
+	/**
+	 * Switch between the default append mode and the concurrent append mode.
+	 *
+	 * In the default mode appends are serialized by a single lock which is held while the data is copied.
+	 * In the concurrent mode producers atomically reserve an index slot and a data page range,
+	 * copy their data in parallel, and then publish their items in index order, so readers never observe an
+	 * item before all preceding items are complete. In this mode an item whose write fails, including
+	 * an item writer throwing, is published as a skipped slot since later items may already depend on it,
+	 * see {@link #isSkipped(long)}.
+	 *
+	 * @param concurrentAppend true to enable the concurrent append mode
+	 */
+	public void setConcurrentAppend(boolean concurrentAppend) {
+		try {
+			arrayWriteLock.lock(); // no append is in flight while the mode changes
+			if (concurrentAppend && !this.concurrentAppend) {
+				this.appendPosition.set(new AppendPosition(this.arrayHeadIndex.get(), this.headDataPageIndex, this.headDataItemOffset));
+			} else if (!concurrentAppend && this.concurrentAppend) {
+				AppendPosition position = this.appendPosition.get();
+				this.headDataPageIndex = position.dataPageIndex;
+				this.headDataItemOffset = position.dataItemOffset;
+			}
+			this.concurrentAppend = concurrentAppend;
+		} finally {
+			arrayWriteLock.unlock();
+		}
+	}
+
+	public boolean isConcurrentAppend() {
+		return this.concurrentAppend;
+	}
+
+	// reserve an index slot and a data page range for one item, returns the position before the reservation
+	private AppendPosition reserve(int length) {
+		while (true) {
+			AppendPosition current = this.appendPosition.get();
+			long dataPageIndex = current.dataPageIndex;
+			int dataItemOffset = current.dataItemOffset;
+			if (dataItemOffset + length > DATA_PAGE_SIZE) { // not enough space
+				dataPageIndex++;
+				dataItemOffset = 0;
+			}
+			AppendPosition next = new AppendPosition(current.arrayIndex + 1, dataPageIndex, dataItemOffset + length);
+			if (this.appendPosition.compareAndSet(current, next)) {
+				return current;
+			}
+		}
+	}
+
+	// reserve consecutive index slots and data page ranges for a batch, returns the position before the reservation
+	private AppendPosition reserve(List<byte[]> items) {
+		while (true) {
+			AppendPosition current = this.appendPosition.get();
+			long dataPageIndex = current.dataPageIndex;
+			int dataItemOffset = current.dataItemOffset;
+			for (byte[] data : items) {
+				if (dataItemOffset + data.length > DATA_PAGE_SIZE) { // not enough space
+					dataPageIndex++;
+					dataItemOffset = 0;
+				}
+				dataItemOffset += data.length;
+			}
+			AppendPosition next = new AppendPosition(current.arrayIndex + items.size(), dataPageIndex, dataItemOffset);
+			if (this.appendPosition.compareAndSet(current, next)) {
+				return current;
+			}
+		}
+	}
+
+	// make items [firstArrayIndex, firstArrayIndex + count) visible to readers, strictly in index order,
+	// the caller holds the array read lock while it waits, so a slow producer also delays writers
+	private void publish(long firstArrayIndex, int count, long timestamp) throws IOException {
+		int yields = 0;
+		long parkNanos = 1000;
+		while (this.arrayHeadIndex.get() != firstArrayIndex) {
+			// wait for the producers of the preceding items, never happens in the default append mode,
+			// a short wait yields, a producer stalled on a page fault or a full disk is waited for by parking
+			if (yields < PUBLISH_YIELDS) {
+				yields++;
+				Thread.yield();
+			} else {
+				LockSupport.parkNanos(parkNanos);
+				parkNanos = Math.min(parkNanos * 2, MAX_PUBLISH_PARK_NANOS);
+			}
+		}
+		long nextArrayIndex = firstArrayIndex + count;
+		try {
+			// publishing is serialized, so is the timestamp index update of the index pages taking the items
+			long firstIndexPageIndex = Calculator.div(firstArrayIndex, INDEX_ITEMS_PER_PAGE_BITS);
+			long lastIndexPageIndex = Calculator.div(nextArrayIndex - 1, INDEX_ITEMS_PER_PAGE_BITS);
+			for (long indexPageIndex = firstIndexPageIndex; indexPageIndex <= lastIndexPageIndex; indexPageIndex++) {
+				boolean first = indexPageIndex > firstIndexPageIndex || Calculator.mod(firstArrayIndex, INDEX_ITEMS_PER_PAGE_BITS) == 0;
+				this.timestampIndex.update(indexPageIndex, timestamp, first);
+			}
+			// meta data is written before the head moves, so the next producer never races on the meta data page
+			persistMetaData(nextArrayIndex);
+		} finally {
+			this.arrayHeadIndex.set(nextArrayIndex);
+		}
+	}
+
+	// best effort write of a zero length index item flagged as skipped for a reserved slot whose data could not be written
+	private void putEmptyIndexItem(long arrayIndex, long dataPageIndex, int dataItemOffset, long timestamp) {
+		long indexPageIndex = Calculator.div(arrayIndex, INDEX_ITEMS_PER_PAGE_BITS); // shift optimization
+		try {
+			IMappedPage indexPage = this.indexPageFactory.acquirePage(indexPageIndex);
+			try {
+				int indexItemOffset = indexItemOffset(arrayIndex);
+				// the checksum of an empty item is 0
+				putIndexItem(indexPage, indexItemOffset, dataPageIndex, dataItemOffset, 0, timestamp, ItemCodecs.NONE_ID, 0);
+				indexPage.putByte(indexItemOffset + INDEX_ITEM_FLAGS_OFFSET, (byte) INDEX_ITEM_FLAG_SKIPPED);
+				indexPage.setDirty(indexItemOffset, INDEX_ITEM_LENGTH);
+			} finally {
+				this.indexPageFactory.releasePage(indexPageIndex);
+			}
+		} catch (IOException e) {
+			logger.error("fail to write empty index item for index " + arrayIndex + " of array " + arrayName, e);
+		}
+	}
+
+	// a data item must fit into a single data page
+	private void checkItemLength(int length) {
+		if (length > DATA_PAGE_SIZE) {
+			throw new IllegalArgumentException("data item length " + length + " exceeds data page size " + DATA_PAGE_SIZE);
+		}
+	}
+
+	// write an index item at an offset of the index page
+	private static void putIndexItem(IMappedPage indexPage, int indexItemOffset, long dataPageIndex, int dataItemOffset, int dataItemLength, long timestamp, int codecId, int checksum) {
+		indexPage.putLong(indexItemOffset + INDEX_ITEM_DATA_PAGE_INDEX_OFFSET, dataPageIndex);
+		indexPage.putInt(indexItemOffset + INDEX_ITEM_DATA_ITEM_OFFSET_OFFSET, dataItemOffset);
+		indexPage.putInt(indexItemOffset + INDEX_ITEM_DATA_ITEM_LENGTH_OFFSET, dataItemLength);
+		indexPage.putLong(indexItemOffset + INDEX_ITEM_DATA_ITEM_TIMESTAMP_OFFSET, timestamp);
+		indexPage.putByte(indexItemOffset + INDEX_ITEM_CODEC_OFFSET, (byte) codecId);
+		indexPage.putByte(indexItemOffset + INDEX_ITEM_FLAGS_OFFSET, (byte) 0);
+		indexPage.putInt(indexItemOffset + INDEX_ITEM_CHECKSUM_OFFSET, checksum);
+	}
+	
+	// true if the index item at an offset of the index page is a skipped slot
+	static boolean isSkipped(IMappedPage indexPage, int indexItemOffset) {
+		return (indexPage.getByte(indexItemOffset + INDEX_ITEM_FLAGS_OFFSET) & INDEX_ITEM_FLAG_SKIPPED) != 0;
+	}
+
+	// persist array head and tail into the meta data page
+	private void persistMetaData(long headIndex) throws IOException {
+		IMappedPage metaDataPage = this.metaPageFactory.acquirePage(META_DATA_PAGE_INDEX);
+		metaDataPage.putLong(0, headIndex);
+		metaDataPage.putLong(8, this.arrayTailIndex.get());
+		metaDataPage.setDirty(true);
+	}
+
+	@Override
+	public void flush() {
+		try {
+			arrayReadLock.lock(); 
+			
+			// items before the head are completely written, they are durable once the pages are forced
+			long generation = flusher.getGeneration();
+			long durableHead = this.arrayHeadIndex.get();
+			
+//			try {
+//				appendLock.lock(); // make flush and append mutually exclusive
+				
+				// data before index before meta, so the persisted head never points to unforced items
+				this.dataPageFactory.flush();
+				this.indexPageFactory.flush();
+				this.timestampIndex.flush();
+				this.pageStartIndex.flush();
+				this.metaPageFactory.flush();
+				
+//			} finally {	
+//				appendLock.unlock();
+//			}
+			
+			flusher.markDurable(generation, durableHead);
+		} finally {
+			arrayReadLock.unlock();
+		}
+		
+	}
+	
+	@Override
+	public CompletableFuture<Long> appendDurable(byte[] data) throws IOException {
+		long index = append(data);
+		return flusher.whenDurable(index);
+	}
+	
+	// called by the flusher thread, forces the hooked pages and the array
+	void flushForCommit() {
+		for (Runnable hook : flushHooks) {
+			hook.run();
+		}
+		flush();
+	}
+
+	public byte[] get(long index) throws IOException {
+		try {
+			arrayReadLock.lock();
+			reclaimer.enter();
+			validateIndex(index);
+			
+			IMappedPage dataPage = null;
+			long dataPageIndex = -1L;
+			try {
+				IMappedPage indexPage = this.getIndexPage(index);
+				int indexItemOffset = indexItemOffset(index);
+				int codecId = indexPage.getByte(indexItemOffset + INDEX_ITEM_CODEC_OFFSET);
+				int checksum = indexPage.getInt(indexItemOffset + INDEX_ITEM_CHECKSUM_OFFSET);
+				dataPageIndex = indexPage.getLong(indexItemOffset + INDEX_ITEM_DATA_PAGE_INDEX_OFFSET);
+				int dataItemOffset = indexPage.getInt(indexItemOffset + INDEX_ITEM_DATA_ITEM_OFFSET_OFFSET);
+				int dataItemLength = indexPage.getInt(indexItemOffset + INDEX_ITEM_DATA_ITEM_LENGTH_OFFSET);
+				dataPage = this.dataPageFactory.acquirePage(dataPageIndex);
+				byte[] data = new byte[dataItemLength];
+				dataPage.copyTo(dataItemOffset, data, 0, dataItemLength);
+				if (verifyChecksums && index >= checksumFromIndex && Crc32c.compute(data, 0, data.length) != checksum) {
+					throw new IOException("checksum mismatch for item " + index + " of array " + arrayName);
+				}
+				if (codecId != ItemCodecs.NONE_ID) {
+					data = decode(codecId, data);
+				}
+				stats.getData(arrayName).put(data.length);
+				return data;
+			} finally {
+				if (dataPage != null) {
+					this.dataPageFactory.releasePage(dataPageIndex);
+				}
+			}
+		} finally {
+			reclaimer.exit();
+			arrayReadLock.unlock();
+		}
+	}
+	
+	@Override
+	public int get(long index, ByteBuffer dst) throws IOException {
+		try {
+			arrayReadLock.lock();
+			reclaimer.enter();
+			validateIndex(index);
+			
+			IMappedPage dataPage = null;
+			long dataPageIndex = -1L;
+			try {
+				IMappedPage indexPage = this.getIndexPage(index);
+				int indexItemOffset = indexItemOffset(index);
+				int codecId = indexPage.getByte(indexItemOffset + INDEX_ITEM_CODEC_OFFSET);
+				int checksum = indexPage.getInt(indexItemOffset + INDEX_ITEM_CHECKSUM_OFFSET);
+				dataPageIndex = indexPage.getLong(indexItemOffset + INDEX_ITEM_DATA_PAGE_INDEX_OFFSET);
+				int dataItemOffset = indexPage.getInt(indexItemOffset + INDEX_ITEM_DATA_ITEM_OFFSET_OFFSET);
+				int dataItemLength = indexPage.getInt(indexItemOffset + INDEX_ITEM_DATA_ITEM_LENGTH_OFFSET);
+				dataPage = this.dataPageFactory.acquirePage(dataPageIndex);
+				boolean verify = verifyChecksums && index >= checksumFromIndex;
+				
+				int length;
+				if (codecId == ItemCodecs.NONE_ID) {
+					if (dst.remaining() < dataItemLength) {
+						throw new BufferOverflowException();
+					}
+					int start = dst.position();
+					dataPage.copyTo(dataItemOffset, dst, dataItemLength);
+					if (verify && checksumOf(dst, start, dataItemLength) != checksum) {
+						dst.position(start);
+						throw new IOException("checksum mismatch for item " + index + " of array " + arrayName);
+					}
+					length = dataItemLength;
+				} else {
+					byte[] stored = scratchBuffer(storedScratch, dataItemLength);
+					dataPage.copyTo(dataItemOffset, stored, 0, dataItemLength);
+					if (verify && Crc32c.compute(stored, 0, dataItemLength) != checksum) {
+						throw new IOException("checksum mismatch for item " + index + " of array " + arrayName);
+					}
+					length = decode(codecId, stored, dataItemLength, dst);
+				}
+				stats.getData(arrayName).put(length);
+				return length;
+			} finally {
+				if (dataPage != null) {
+					this.dataPageFactory.releasePage(dataPageIndex);
+				}
+			}
+		} finally {
+			reclaimer.exit();
+			arrayReadLock.unlock();
+		}
+	}
+	
+	@Override
+	public int get(long index, byte[] dst, int offset) throws IOException {
+		return get(index, ByteBuffer.wrap(dst, offset, dst.length - offset));
 	}
-
-	/**
-	 * Append the data into the head of the array
-	 */
-	public long append(byte[] data) throws IOException {
+	
+	@Override
+	public ItemLease lease(long index) throws IOException {
 		try {
-			stats.appendData(arrayName).put(data.length);
-			arrayReadLock.lock(); 
-			IMappedPage toAppendDataPage = null;
-			IMappedPage toAppendIndexPage = null;
-			long toAppendIndexPageIndex = -1L;
-			long toAppendDataPageIndex = -1L;
-			
-			long toAppendArrayIndex = -1L;
+			arrayReadLock.lock();
+			reclaimer.enter();
+			validateIndex(index);
 			
+			IMappedPageFactory pageFactory = this.dataPageFactory;
+			IMappedPage dataPage = null;
+			long dataPageIndex = -1L;
 			try {
-				appendLock.lock(); // only one thread can append
-				
-				// prepare the data pointer
-				if (this.headDataItemOffset + data.length > DATA_PAGE_SIZE) { // not enough space
-					this.headDataPageIndex++;
-					this.headDataItemOffset = 0;
+				IMappedPage indexPage = this.getIndexPage(index);
+				int indexItemOffset = indexItemOffset(index);
+				int codecId = indexPage.getByte(indexItemOffset + INDEX_ITEM_CODEC_OFFSET);
+				int checksum = indexPage.getInt(indexItemOffset + INDEX_ITEM_CHECKSUM_OFFSET);
+				dataPageIndex = indexPage.getLong(indexItemOffset + INDEX_ITEM_DATA_PAGE_INDEX_OFFSET);
+				int dataItemOffset = indexPage.getInt(indexItemOffset + INDEX_ITEM_DATA_ITEM_OFFSET_OFFSET);
+				int dataItemLength = indexPage.getInt(indexItemOffset + INDEX_ITEM_DATA_ITEM_LENGTH_OFFSET);
+				dataPage = pageFactory.acquirePage(dataPageIndex);
+				ByteBuffer view = dataPage.slice(dataItemOffset, dataItemLength);
+				if (verifyChecksums && index >= checksumFromIndex && Crc32c.compute(view) != checksum) {
+					throw new IOException("checksum mismatch for item " + index + " of array " + arrayName);
 				}
 				
-				toAppendDataPageIndex = this.headDataPageIndex;
-				int toAppendDataItemOffset  = this.headDataItemOffset;
-				
-				toAppendArrayIndex = this.arrayHeadIndex.get();
-				
-				// append data
-				toAppendDataPage = this.dataPageFactory.acquirePage(toAppendDataPageIndex);
-				ByteBuffer toAppendDataPageBuffer = toAppendDataPage.getLocal(toAppendDataItemOffset);
-				toAppendDataPageBuffer.put(data);
-				toAppendDataPage.setDirty(true);
-				// update to next
-				this.headDataItemOffset += data.length;
-				
-				toAppendIndexPageIndex = Calculator.div(toAppendArrayIndex, INDEX_ITEMS_PER_PAGE_BITS); // shift optimization
-				toAppendIndexPage = this.indexPageFactory.acquirePage(toAppendIndexPageIndex);
-				int toAppendIndexItemOffset = (int) (Calculator.mul(Calculator.mod(toAppendArrayIndex, INDEX_ITEMS_PER_PAGE_BITS), INDEX_ITEM_LENGTH_BITS));
-				
-				// update index
-				ByteBuffer toAppendIndexPageBuffer = toAppendIndexPage.getLocal(toAppendIndexItemOffset);
-				toAppendIndexPageBuffer.putLong(toAppendDataPageIndex);
-				toAppendIndexPageBuffer.putInt(toAppendDataItemOffset);
-				toAppendIndexPageBuffer.putInt(data.length);
-				long currentTime = clock.getTime();
-				toAppendIndexPageBuffer.putLong(currentTime);
-				toAppendIndexPage.setDirty(true);
-				
-				// advance the head
-				this.arrayHeadIndex.incrementAndGet();
-				
-				// update meta data
-				IMappedPage metaDataPage = this.metaPageFactory.acquirePage(META_DATA_PAGE_INDEX);
-				ByteBuffer metaDataBuf = metaDataPage.getLocal(0);
-				metaDataBuf.putLong(this.arrayHeadIndex.get());
-				metaDataBuf.putLong(this.arrayTailIndex.get());
-				metaDataPage.setDirty(true);
-	
-			} finally {
-				
-				appendLock.unlock();
-				
-				if (toAppendDataPage != null) {
-					this.dataPageFactory.releasePage(toAppendDataPageIndex);
+				ItemLease lease;
+				if (codecId == ItemCodecs.NONE_ID) {
+					// the lease takes over the page reference
+					lease = new ItemLease(index, view.asReadOnlyBuffer(), pageFactory, dataPage);
+					dataPage = null;
+				} else {
+					byte[] stored = new byte[dataItemLength];
+					view.get(stored);
+					lease = new ItemLease(index, ByteBuffer.wrap(decode(codecId, stored)).asReadOnlyBuffer(), null, null);
 				}
-				if (toAppendIndexPage != null) {
-					this.indexPageFactory.releasePage(toAppendIndexPageIndex);
+				stats.getData(arrayName).put(lease.getLength());
+				return lease;
+			} finally {
+				if (dataPage != null) {
+					pageFactory.releasePage(dataPageIndex);
 				}
 			}
-			
-			return toAppendArrayIndex;
-		
 		} finally {
+			reclaimer.exit();
 			arrayReadLock.unlock();
 		}
 	}
-
+	
 	@Override
-	public void flush() {
+	public Stream<byte[]> stream(long fromIndex, long toIndex) {
 		try {
-			arrayReadLock.lock(); 
-			
-//			try {
-//				appendLock.lock(); // make flush and append mutually exclusive
-				
-				this.metaPageFactory.flush();
-				this.indexPageFactory.flush();
-				this.dataPageFactory.flush();
-				
-//			} finally {	
-//				appendLock.unlock();
-//			}
-			
+			arrayReadLock.lock();
+			if (fromIndex > toIndex || fromIndex < this.arrayTailIndex.get() || toIndex > this.arrayHeadIndex.get()) {
+				throw new IndexOutOfBoundsException("range [" + fromIndex + ", " + toIndex + ") is not within the array");
+			}
 		} finally {
 			arrayReadLock.unlock();
 		}
-		
+		return StreamSupport.stream(new BigArraySpliterator(this, fromIndex, toIndex), false);
 	}
-
-	public byte[] get(long index) throws IOException {
+	
+	@Override
+	public BigArrayCursor cursor() {
+		return new BigArrayCursor(this, this.arrayTailIndex.get());
+	}
+	
+	@Override
+	public List<byte[]> getRange(long fromIndex, int maxItems, long maxBytes) throws IOException {
+		final List<byte[]> items = new ArrayList<byte[]>(Math.max(0, Math.min(maxItems, 1024)));
+		getRange(fromIndex, maxItems, maxBytes, (index, data) -> {
+			byte[] item = new byte[data.remaining()];
+			data.get(item);
+			items.add(item);
+		});
+		return items;
+	}
+	
+	@Override
+	public int getRange(long fromIndex, int maxItems, long maxBytes, ItemVisitor visitor) throws IOException {
 		try {
 			arrayReadLock.lock();
-			validateIndex(index);
+			long head = this.arrayHeadIndex.get();
+			if (fromIndex == head || maxItems <= 0) {
+				return 0;
+			}
+			validateIndex(fromIndex);
+			long count = Math.min(maxItems, head - fromIndex);
 			
+			IMappedPage indexPage = null;
+			long indexPageIndex = -1L;
 			IMappedPage dataPage = null;
 			long dataPageIndex = -1L;
+			ByteBuffer dataPageView = null;
 			try {
-				ByteBuffer indexItemBuffer = this.getIndexItemBuffer(index);
-				dataPageIndex = indexItemBuffer.getLong();
-				int dataItemOffset = indexItemBuffer.getInt();
-				int dataItemLength = indexItemBuffer.getInt();
-				dataPage = this.dataPageFactory.acquirePage(dataPageIndex);
-				byte[] data = dataPage.getLocal(dataItemOffset, dataItemLength);
-				stats.getData(arrayName).put(data.length);
-				return data;
+				int visited = 0;
+				int skipped = 0;
+				long bytes = 0L;
+				for (long index = fromIndex; visited + skipped < count; index++) {
+					// index and data pages are switched only when the range crosses them
+					long itemIndexPageIndex = Calculator.div(index, INDEX_ITEMS_PER_PAGE_BITS);
+					if (itemIndexPageIndex != indexPageIndex) {
+						if (indexPage != null) {
+							this.indexPageFactory.releasePage(indexPageIndex);
+							indexPage = null;
+							if (dataPage != null) {
+								this.dataPageFactory.releasePage(dataPageIndex);
+								dataPage = null;
+								dataPageIndex = -1L;
+							}
+							// the lock is released between index pages, so a long range or a slow visitor
+							// does not hold up writers, the range ends early if its next item was removed meanwhile
+							arrayReadLock.unlock();
+							arrayReadLock.lock();
+							try {
+								validateIndex(index);
+							} catch (IndexOutOfBoundsException ex) {
+								break;
+							}
+						}
+						indexPageIndex = itemIndexPageIndex;
+						indexPage = this.indexPageFactory.acquirePage(indexPageIndex);
+					}
+					int indexItemOffset = indexItemOffset(index);
+					if (isSkipped(indexPage, indexItemOffset)) {
+						skipped++;
+						continue;
+					}
+					long itemDataPageIndex = indexPage.getLong(indexItemOffset + INDEX_ITEM_DATA_PAGE_INDEX_OFFSET);
+					int dataItemOffset = indexPage.getInt(indexItemOffset + INDEX_ITEM_DATA_ITEM_OFFSET_OFFSET);
+					int dataItemLength = indexPage.getInt(indexItemOffset + INDEX_ITEM_DATA_ITEM_LENGTH_OFFSET);
+					int codecId = indexPage.getByte(indexItemOffset + INDEX_ITEM_CODEC_OFFSET);
+					int checksum = indexPage.getInt(indexItemOffset + INDEX_ITEM_CHECKSUM_OFFSET);
+					
+					if (itemDataPageIndex != dataPageIndex) {
+						if (dataPage != null) {
+							this.dataPageFactory.releasePage(dataPageIndex);
+							dataPage = null;
+						}
+						dataPageIndex = itemDataPageIndex;
+						dataPage = this.dataPageFactory.acquirePage(dataPageIndex);
+						// a private view, visitors see the item between its position and limit
+						dataPageView = dataPage.slice(0, dataPage.size()).asReadOnlyBuffer();
+					}
+					dataPageView.limit(dataItemOffset + dataItemLength);
+					dataPageView.position(dataItemOffset);
+					if (verifyChecksums && index >= checksumFromIndex && Crc32c.compute(dataPageView) != checksum) {
+						throw new IOException("checksum mismatch for item " + index + " of array " + arrayName);
+					}
+					
+					ByteBuffer item = dataPageView;
+					if (codecId != ItemCodecs.NONE_ID) {
+						byte[] stored = new byte[dataItemLength];
+						dataPageView.get(stored);
+						item = ByteBuffer.wrap(decode(codecId, stored)).asReadOnlyBuffer();
+					}
+					bytes += item.remaining();
+					if (bytes > maxBytes && visited > 0) {
+						break; // a first item longer than maxBytes is still visited, so a range always makes progress
+					}
+					stats.getData(arrayName).put(item.remaining());
+					visitor.visit(index, item);
+					visited++;
+				}
+				return visited + skipped;
 			} finally {
 				if (dataPage != null) {
 					this.dataPageFactory.releasePage(dataPageIndex);
 				}
+				if (indexPage != null) {
+					this.indexPageFactory.releasePage(indexPageIndex);
+				}
+			}
+		} finally {
+			arrayReadLock.unlock();
+		}
+	}
+	
+	private static int checksumOf(ByteBuffer buf, int position, int length) {
+		if (buf.hasArray()) {
+			return Crc32c.compute(buf.array(), buf.arrayOffset() + position, length);
+		}
+		ByteBuffer item = buf.duplicate();
+		item.position(position);
+		item.limit(position + length);
+		return Crc32c.compute(item);
+	}
+	
+	// per thread buffer reused by reads into caller supplied buffers, large items are not retained
+	private static byte[] scratchBuffer(ThreadLocal<byte[]> scratch, int length) {
+		byte[] buffer = scratch.get();
+		if (buffer == null || buffer.length < length) {
+			buffer = new byte[length];
+			if (length <= MAX_SCRATCH_BUFFER_SIZE) {
+				scratch.set(buffer);
 			}
+		}
+		return buffer;
+	}
+	
+	/**
+	 * Verify the checksum of every item read by get, a corrupted item makes get throw an IOException.
+	 * 
+	 * Items appended before checksums were introduced are never verified.
+	 * 
+	 * @param verifyChecksums true to verify checksums on get
+	 */
+	public void setVerifyChecksums(boolean verifyChecksums) {
+		this.verifyChecksums = verifyChecksums;
+	}
+	
+	public boolean isVerifyChecksums() {
+		return this.verifyChecksums;
+	}
+	
+	/**
+	 * Verify the checksums of all items in the array, scanning index pages in parallel.
+	 * 
+	 * When truncate is set, the corrupted item and all items after it are removed by moving the head back,
+	 * which is how a torn tail left by a crash is repaired.
+	 * 
+	 * @param truncate true to remove the first corrupted item and all items after it
+	 * @return the index of the first corrupted item, or {@link #NOT_FOUND} if all items are valid
+	 * @throws IOException exception thrown if there was any IO error during the verification
+	 */
+	public long verify(boolean truncate) throws IOException {
+		long corruptedIndex;
+		try {
+			arrayReadLock.lock();
+			corruptedIndex = findFirstCorruptedIndex(this.arrayTailIndex.get(), this.arrayHeadIndex.get());
 		} finally {
 			arrayReadLock.unlock();
 		}
+		if (corruptedIndex == NOT_FOUND || !truncate) {
+			return corruptedIndex;
+		}
+		
+		try {
+			arrayWriteLock.lock();
+			// double check, the item may have been removed meanwhile
+			if (corruptedIndex >= this.arrayTailIndex.get() && corruptedIndex < this.arrayHeadIndex.get()) {
+				logger.warn("truncating array " + arrayName + " from corrupted item " + corruptedIndex + " to head " + this.arrayHeadIndex.get());
+				truncateHead(corruptedIndex);
+			}
+		} finally {
+			arrayWriteLock.unlock();
+		}
+		return corruptedIndex;
+	}
+	
+	// move the head back to index, dropping index and all items after it, caller holds the array write lock
+	private void truncateHead(long index) throws IOException {
+		setHeadIndexBack(index);
+		initDataPageIndex();
+		long tail = this.arrayTailIndex.get();
+		// the entry of the new head index page, cleared if the array is now empty
+		summarizeIndexPage(Calculator.div(index > tail ? index - 1 : index, INDEX_ITEMS_PER_PAGE_BITS), tail, index);
+		persistMetaData(index);
+		flusher.reset(index);
+	}
+	
+	// one task per index page, returns NOT_FOUND when all items in [fromIndex, toIndex) are valid
+	private long findFirstCorruptedIndex(long fromIndex, long toIndex) throws IOException {
+		final long from = Math.max(fromIndex, this.checksumFromIndex);
+		final long to = toIndex;
+		if (from >= to) {
+			return NOT_FOUND;
+		}
+		long firstIndexPageIndex = Calculator.div(from, INDEX_ITEMS_PER_PAGE_BITS);
+		long lastIndexPageIndex = Calculator.div(to - 1, INDEX_ITEMS_PER_PAGE_BITS);
+		try {
+			long corruptedIndex = LongStream.rangeClosed(firstIndexPageIndex, lastIndexPageIndex).parallel()
+					.map(indexPageIndex -> {
+						long pageFrom = Math.max(from, Calculator.mul(indexPageIndex, INDEX_ITEMS_PER_PAGE_BITS));
+						long pageTo = Math.min(to, Calculator.mul(indexPageIndex + 1, INDEX_ITEMS_PER_PAGE_BITS));
+						try {
+							return findFirstCorruptedIndexInPage(indexPageIndex, pageFrom, pageTo);
+						} catch (IOException e) {
+							throw new UncheckedIOException(e);
+						}
+					})
+					.min().getAsLong();
+			return corruptedIndex == Long.MAX_VALUE ? NOT_FOUND : corruptedIndex;
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+	}
+	
+	// returns Long.MAX_VALUE when all items in [fromIndex, toIndex) of the index page are valid
+	private long findFirstCorruptedIndexInPage(long indexPageIndex, long fromIndex, long toIndex) throws IOException {
+		IMappedPage indexPage = this.indexPageFactory.acquirePage(indexPageIndex);
+		IMappedPage dataPage = null;
+		long dataPageIndex = -1L;
+		ByteBuffer dataPageView = null;
+		try {
+			for (long index = fromIndex; index < toIndex; index++) {
+				int indexItemOffset = indexItemOffset(index);
+				long itemDataPageIndex = indexPage.getLong(indexItemOffset + INDEX_ITEM_DATA_PAGE_INDEX_OFFSET);
+				int dataItemOffset = indexPage.getInt(indexItemOffset + INDEX_ITEM_DATA_ITEM_OFFSET_OFFSET);
+				int dataItemLength = indexPage.getInt(indexItemOffset + INDEX_ITEM_DATA_ITEM_LENGTH_OFFSET);
+				int checksum = indexPage.getInt(indexItemOffset + INDEX_ITEM_CHECKSUM_OFFSET);
+				if (itemDataPageIndex < 0 || dataItemOffset < 0 || dataItemLength < 0 || dataItemLength > DATA_PAGE_SIZE - dataItemOffset) {
+					return index;
+				}
+				if (itemDataPageIndex != dataPageIndex) {
+					if (dataPage != null) {
+						this.dataPageFactory.releasePage(dataPageIndex);
+						dataPage = null;
+					}
+					dataPageIndex = itemDataPageIndex;
+					if (this.dataPageFactory.getPageFileLastModifiedTime(dataPageIndex) < 0) {
+						return index; // never map a missing data page, it would be created empty
+					}
+					dataPage = this.dataPageFactory.acquirePage(dataPageIndex);
+					dataPageView = dataPage.slice(0, dataPage.size());
+				}
+				dataPageView.limit(dataItemOffset + dataItemLength);
+				dataPageView.position(dataItemOffset);
+				if (Crc32c.compute(dataPageView) != checksum) {
+					return index;
+				}
+			}
+			return Long.MAX_VALUE;
+		} finally {
+			if (dataPage != null) {
+				this.dataPageFactory.releasePage(dataPageIndex);
+			}
+			this.indexPageFactory.releasePage(indexPageIndex);
+		}
+	}
+	
+	// decompress a stored data item
+	byte[] decode(int codecId, byte[] stored) throws IOException {
+		int originalLength = originalLength(stored);
+		byte[] data = new byte[originalLength];
+		ItemCodecs.forId(codecId).decompress(stored, COMPRESSED_ITEM_HEADER_LENGTH, stored.length - COMPRESSED_ITEM_HEADER_LENGTH, data, 0, originalLength);
+		return data;
+	}
+	
+	// decompress the first storedLength bytes of stored into the destination buffer, returns the original length
+	private int decode(int codecId, byte[] stored, int storedLength, ByteBuffer dst) throws IOException {
+		if (storedLength < COMPRESSED_ITEM_HEADER_LENGTH) {
+			throw new IOException("corrupted data item, stored length " + storedLength + " is shorter than the header");
+		}
+		int originalLength = originalLength(stored);
+		if (dst.remaining() < originalLength) {
+			throw new BufferOverflowException();
+		}
+		ItemCodec itemCodec = ItemCodecs.forId(codecId);
+		if (dst.hasArray()) {
+			itemCodec.decompress(stored, COMPRESSED_ITEM_HEADER_LENGTH, storedLength - COMPRESSED_ITEM_HEADER_LENGTH, dst.array(), dst.arrayOffset() + dst.position(), originalLength);
+			dst.position(dst.position() + originalLength);
+		} else {
+			byte[] data = scratchBuffer(decodedScratch, originalLength);
+			itemCodec.decompress(stored, COMPRESSED_ITEM_HEADER_LENGTH, storedLength - COMPRESSED_ITEM_HEADER_LENGTH, data, 0, originalLength);
+			dst.put(data, 0, originalLength);
+		}
+		return originalLength;
+	}
+	
+	private int originalLength(byte[] stored) throws IOException {
+		int originalLength = (stored[0] & 0xFF) << 24 | (stored[1] & 0xFF) << 16 | (stored[2] & 0xFF) << 8 | (stored[3] & 0xFF);
+		if (originalLength < 0 || originalLength > DATA_PAGE_SIZE) {
+			throw new IOException("corrupted data item, invalid original length " + originalLength);
+		}
+		return originalLength;
 	}
 	
 	public long getTimestamp(long index) throws IOException {
 		try {
 			arrayReadLock.lock();
+			reclaimer.enter();
 			validateIndex(index);
 			
-			ByteBuffer indexItemBuffer = this.getIndexItemBuffer(index);
-			// position to the timestamp
-			int position = indexItemBuffer.position();
-			indexItemBuffer.position(position + INDEX_ITEM_DATA_ITEM_TIMESTAMP_OFFSET);
-			long ts = indexItemBuffer.getLong();
-			return ts;
+			return this.getIndexPage(index).getLong(indexItemOffset(index) + INDEX_ITEM_DATA_ITEM_TIMESTAMP_OFFSET);
 		} finally {
+			reclaimer.exit();
 			arrayReadLock.unlock();
 		}
 	}
 	
-	ByteBuffer getIndexItemBuffer(long index) throws IOException {
+	// the index page of an item, released on return, callers read the page inside a reclaimer epoch
+	IMappedPage getIndexPage(long index) throws IOException {
 		
 		IMappedPage indexPage = null;
 		long indexPageIndex = -1L;
 		try {
 			indexPageIndex = Calculator.div(index, INDEX_ITEMS_PER_PAGE_BITS); // shift optimization
 			indexPage = this.indexPageFactory.acquirePage(indexPageIndex);
-			int indexItemOffset = (int) (Calculator.mul(Calculator.mod(index, INDEX_ITEMS_PER_PAGE_BITS), INDEX_ITEM_LENGTH_BITS));
-			
-			ByteBuffer indexItemBuffer = indexPage.getLocal(indexItemOffset);
-			return indexItemBuffer;
+			return indexPage;
 		} finally {
 			if (indexPage != null) {
 				this.indexPageFactory.releasePage(indexPageIndex);
 			}
 		}
 	}
-	
+
+	// offset of an index item within its index page
+	static int indexItemOffset(long index) {
+		return (int) (Calculator.mul(Calculator.mod(index, INDEX_ITEMS_PER_PAGE_BITS), INDEX_ITEM_LENGTH_BITS));
+	}
+
 	void validateIndex(long index) {
 		if (this.arrayTailIndex.get() <= this.arrayHeadIndex.get()) {
 			if (index < this.arrayTailIndex.get() || index >= this.arrayHeadIndex.get()) {
@@ -478,39 +1939,47 @@ public class BigArrayImpl implements IBigArray {
 	}
 
 	public long size() {
-		try {
-			arrayReadLock.lock();
-			return (this.arrayHeadIndex.get() - this.arrayTailIndex.get());
-		} finally {
-			arrayReadLock.unlock();
-		}
+		return headMinusTail();
 	}
 
 	public long getHeadIndex() {
-		try {
-			arrayReadLock.lock();
-			return arrayHeadIndex.get();
-		} finally {
-			arrayReadLock.unlock();
-		}
+		return arrayHeadIndex.get();
 	}
 
 	public long getTailIndex() {
-		try {
-			arrayReadLock.lock();
-			return arrayTailIndex.get();
-		} finally {
-			arrayReadLock.unlock();
-		}
+		return arrayTailIndex.get();
 	}
 
 	@Override
 	public boolean isEmpty() {
+		return headMinusTail() == 0L;
+	}
+	
+	// head and tail read as a consistent pair without taking a lock unless an exclusive move is in progress,
+	// appends only move the head forward, so reading the tail first never yields a negative size
+	private long headMinusTail() {
+		long stamp = indexLock.tryOptimisticRead();
+		long tail = this.arrayTailIndex.get();
+		long head = this.arrayHeadIndex.get();
+		if (!indexLock.validate(stamp)) {
+			stamp = indexLock.readLock();
+			try {
+				tail = this.arrayTailIndex.get();
+				head = this.arrayHeadIndex.get();
+			} finally {
+				indexLock.unlockRead(stamp);
+			}
+		}
+		return head - tail;
+	}
+	
+	// move the head back, caller holds the array write lock
+	private void setHeadIndexBack(long index) {
+		long stamp = indexLock.writeLock();
 		try {
-			arrayReadLock.lock();
-			return this.arrayHeadIndex.get() == this.arrayTailIndex.get();
+			this.arrayHeadIndex.set(index);
 		} finally {
-			arrayReadLock.unlock();
+			indexLock.unlockWrite(stamp);
 		}
 	}
 
@@ -521,10 +1990,28 @@ public class BigArrayImpl implements IBigArray {
 		return false;
 	}
 
+	// stop the durability flusher, its final commit takes the array read lock, so wrappers closing the array
+	// under the array write lock call this first
+	void stopFlusher() {
+		flusher.shutdown();
+	}
+	
 	@Override
 	public void close() throws IOException {
+		// the flusher thread takes the array read lock, stop it before locking
+		stopFlusher();
+		// a pending size limit check finds the limit disabled
+		this.backFileSizeLimit = 0L;
 		try {
 			arrayWriteLock.lock();
+			synchronized (premapLock) {
+				this.premapThreshold = 0;
+				this.premapDataOffset = Integer.MAX_VALUE;
+				this.premapIndexItem = Long.MAX_VALUE;
+				stopPremap();
+			}
+			long generation = flusher.getGeneration();
+			long durableHead = this.arrayHeadIndex.get();
 			if (this.metaPageFactory != null) {
 				this.metaPageFactory.releaseCachedPages();
 			}
@@ -534,6 +2021,17 @@ public class BigArrayImpl implements IBigArray {
 			if (this.dataPageFactory != null) {
 				this.dataPageFactory.releaseCachedPages();
 			}
+			if (this.formatPageFactory != null) {
+				this.formatPageFactory.releaseCachedPages();
+			}
+			if (this.timestampIndex != null) {
+				this.timestampIndex.releaseCachedPages();
+			}
+			if (this.pageStartIndex != null) {
+				this.pageStartIndex.releaseCachedPages();
+			}
+			// released pages were forced when closed
+			flusher.markDurable(generation, durableHead);
 		} finally {
 			arrayWriteLock.unlock();
 		}
@@ -552,6 +2050,9 @@ public class BigArrayImpl implements IBigArray {
 			long tailIndex = this.arrayTailIndex.get();
 			long headIndex = this.arrayHeadIndex.get();
 			if (tailIndex == headIndex) return closestIndex; // empty
+			if (tailIndex >= 0L && tailIndex < headIndex) {
+				return closestIndexFromTimestampIndex(tailIndex, headIndex, timestamp);
+			}
 			long lastIndex = headIndex;
 			if (lastIndex < 0) {
 				lastIndex = Long.MAX_VALUE;
@@ -575,6 +2076,90 @@ public class BigArrayImpl implements IBigArray {
 		}
 	}
 	
+	// the timestamp index resolves the seek to a single index page, caller holds the array read lock
+	private long closestIndexFromTimestampIndex(long tailIndex, long headIndex, long timestamp) throws IOException {
+		long indexPageIndex = findIndexPage(tailIndex, headIndex, timestamp);
+		if (indexPageIndex < 0L) {
+			return headIndex - 1; // all items are older
+		}
+		long pageFrom = Math.max(tailIndex, Calculator.mul(indexPageIndex, INDEX_ITEMS_PER_PAGE_BITS));
+		long pageTo = Math.min(headIndex, Calculator.mul(indexPageIndex + 1, INDEX_ITEMS_PER_PAGE_BITS));
+		if (pageFrom > tailIndex) {
+			long min = this.timestampIndex.getMin(indexPageIndex);
+			if (timestamp < min) {
+				// between two index pages, the closest item is the last of the previous page or the first of this one
+				long previousMax = this.timestampIndex.getMax(indexPageIndex - 1);
+				return timestamp - previousMax <= min - timestamp ? pageFrom - 1 : pageFrom;
+			}
+		}
+		
+		IMappedPage indexPage = this.indexPageFactory.acquirePage(indexPageIndex);
+		try {
+			// same search as closestBinarySearch, within one index page
+			long low = pageFrom;
+			long high = pageTo;
+			while (true) {
+				long mid = (high - low) / 2 + low;
+				long midTimestamp = timestampAt(indexPage, mid);
+				if (midTimestamp < timestamp) {
+					if (mid + 1 >= high) {
+						return mid;
+					}
+					low = mid;
+				} else if (midTimestamp > timestamp) {
+					if (mid - 1 <= low) {
+						return low;
+					}
+					high = mid;
+				} else {
+					return mid;
+				}
+			}
+		} finally {
+			this.indexPageFactory.releasePage(indexPageIndex);
+		}
+	}
+	
+	// index of the first item appended at or after timestamp, the head index if all items are older
+	private long findFirstIndexFrom(long tailIndex, long headIndex, long timestamp) throws IOException {
+		long indexPageIndex = findIndexPage(tailIndex, headIndex, timestamp);
+		if (indexPageIndex < 0L) {
+			return headIndex;
+		}
+		long low = Math.max(tailIndex, Calculator.mul(indexPageIndex, INDEX_ITEMS_PER_PAGE_BITS));
+		long high = Math.min(headIndex, Calculator.mul(indexPageIndex + 1, INDEX_ITEMS_PER_PAGE_BITS));
+		IMappedPage indexPage = this.indexPageFactory.acquirePage(indexPageIndex);
+		try {
+			while (low < high) {
+				long mid = (high - low) / 2 + low;
+				if (timestampAt(indexPage, mid) < timestamp) {
+					low = mid + 1;
+				} else {
+					high = mid;
+				}
+			}
+			return low;
+		} finally {
+			this.indexPageFactory.releasePage(indexPageIndex);
+		}
+	}
+	
+	// first index page between tail and head whose highest timestamp is not older than timestamp, -1 if there is none
+	private long findIndexPage(long tailIndex, long headIndex, long timestamp) throws IOException {
+		long low = Calculator.div(tailIndex, INDEX_ITEMS_PER_PAGE_BITS);
+		long lastIndexPageIndex = Calculator.div(headIndex - 1, INDEX_ITEMS_PER_PAGE_BITS);
+		long high = lastIndexPageIndex + 1;
+		while (low < high) {
+			long mid = (high - low) / 2 + low;
+			if (this.timestampIndex.getMax(mid) < timestamp) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low > lastIndexPageIndex ? -1L : low;
+	}
+	
 	private long closestBinarySearch(long low, long high, long timestamp) throws IOException {    		
         long mid;
         /*long sum = low + high;
@@ -646,52 +2231,156 @@ public class BigArrayImpl implements IBigArray {
 				return; // can't do anything
 			}
 			
-			long tailIndex = this.arrayTailIndex.get();
-			long headIndex = this.arrayHeadIndex.get();
-			long totalLength = 0L;
-			while(true) {
-				if (tailIndex == headIndex) break;
-				totalLength += this.getDataItemLength(tailIndex);
-				if (totalLength > toTruncateSize) break;
-				
-				tailIndex++;
-				
-				if (Calculator.mod(tailIndex, INDEX_ITEMS_PER_PAGE_BITS) == 0) { // take index page into account
-					totalLength += INDEX_PAGE_SIZE;
-				}
-			}
-			this.removeBeforeIndex(tailIndex);
+			truncateToSize(sizeLimit);
 		} finally {
 			arrayWriteLock.unlock();
 		}
 		
 	}
+	
+	// remove whole data pages from the tail until the back files fit into the size limit, keeping the page of the last item,
+	// returns the size of the deleted back files, caller holds the array write lock
+	private long truncateToSize(long sizeLimit) throws IOException {
+		long toTruncateSize = this._getBackFileSize() - sizeLimit;
+		long tailIndex = this.arrayTailIndex.get();
+		long headIndex = this.arrayHeadIndex.get();
+		if (toTruncateSize < DATA_PAGE_SIZE || tailIndex < 0L || tailIndex >= headIndex) {
+			return 0L; // can't do anything
+		}
+		
+		long tailDataPageIndex = dataPageIndexOf(tailIndex);
+		long lastDataPageIndex = dataPageIndexOf(headIndex - 1);
+		long tailIndexPageIndex = Calculator.div(tailIndex, INDEX_ITEMS_PER_PAGE_BITS);
+		long toRemoveBeforeIndex = tailIndex;
+		for (long dataPageIndex = tailDataPageIndex + 1; dataPageIndex <= lastDataPageIndex; dataPageIndex++) {
+			toRemoveBeforeIndex = firstIndexOfDataPage(dataPageIndex, tailIndex, headIndex);
+			// the data pages before and the index pages before the first item of the data page are freed
+			long freedSize = (dataPageIndex - tailDataPageIndex) * DATA_PAGE_SIZE
+					+ (Calculator.div(toRemoveBeforeIndex, INDEX_ITEMS_PER_PAGE_BITS) - tailIndexPageIndex) * INDEX_PAGE_SIZE;
+			if (freedSize >= toTruncateSize) {
+				break;
+			}
+		}
+		if (toRemoveBeforeIndex == tailIndex) {
+			return 0L;
+		}
+		return this.removeBeforeIndex(toRemoveBeforeIndex);
+	}
+	
+	private long dataPageIndexOf(long index) throws IOException {
+		try {
+			reclaimer.enter();
+			return this.getIndexPage(index).getLong(indexItemOffset(index) + INDEX_ITEM_DATA_PAGE_INDEX_OFFSET);
+		} finally {
+			reclaimer.exit();
+		}
+	}
+	
+	// the first index in (fromIndex, toIndex) whose data item lies in or after a data page, fromIndex lying before it,
+	// looked up in the page start index and checked against the index items on both sides of it.
+	// Data items are laid out in index order, so a binary search over the index items is left for arrays written
+	// before the page start index, entries left stale by crash recovery and pages started by an empty item.
+	private long firstIndexOfDataPage(long dataPageIndex, long fromIndex, long toIndex) throws IOException {
+		long index = this.pageStartIndex.get(dataPageIndex);
+		if (index > fromIndex && index < toIndex
+				&& dataPageIndexOf(index) >= dataPageIndex && dataPageIndexOf(index - 1) < dataPageIndex) {
+			return index;
+		}
+		long low = fromIndex;
+		long high = toIndex;
+		while (low < high) {
+			long mid = (high - low) / 2 + low;
+			if (dataPageIndexOf(mid) < dataPageIndex) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
 
 	@Override
 	public int getItemLength(long index) throws IOException {
 		try {
 			arrayReadLock.lock();
+			reclaimer.enter();
+			validateIndex(index);
+			
+			IMappedPage indexPage = this.getIndexPage(index);
+			int indexItemOffset = indexItemOffset(index);
+			int codecId = indexPage.getByte(indexItemOffset + INDEX_ITEM_CODEC_OFFSET);
+			if (codecId == ItemCodecs.NONE_ID) {
+				return indexPage.getInt(indexItemOffset + INDEX_ITEM_DATA_ITEM_LENGTH_OFFSET);
+			}
+			
+			// the original length prefixes the compressed data item
+			long dataPageIndex = indexPage.getLong(indexItemOffset + INDEX_ITEM_DATA_PAGE_INDEX_OFFSET);
+			int dataItemOffset = indexPage.getInt(indexItemOffset + INDEX_ITEM_DATA_ITEM_OFFSET_OFFSET);
+			IMappedPage dataPage = this.dataPageFactory.acquirePage(dataPageIndex);
+			try {
+				return dataPage.getInt(dataItemOffset);
+			} finally {
+				this.dataPageFactory.releasePage(dataPageIndex);
+			}
+
+		} finally {
+			reclaimer.exit();
+			arrayReadLock.unlock();
+		}
+	}
+	
+	@Override
+	public int getStoredItemLength(long index) throws IOException {
+		try {
+			arrayReadLock.lock();
+			reclaimer.enter();
 			validateIndex(index);
 			
 			return getDataItemLength(index);
 
 		} finally {
+			reclaimer.exit();
+			arrayReadLock.unlock();
+		}
+	}
+	
+	@Override
+	public boolean isSkipped(long index) throws IOException {
+		try {
+			arrayReadLock.lock();
+			reclaimer.enter();
+			validateIndex(index);
+			
+			return isSkipped(this.getIndexPage(index), indexItemOffset(index));
+		} finally {
+			reclaimer.exit();
 			arrayReadLock.unlock();
 		}
 	}
 	
 	private int getDataItemLength(long index) throws IOException {
 		
-		ByteBuffer indexItemBuffer = this.getIndexItemBuffer(index);
-		// position to the data item length
-		int position = indexItemBuffer.position();
-		indexItemBuffer.position(position + INDEX_ITEM_DATA_ITEM_LENGTH_OFFSET);
-		int length = indexItemBuffer.getInt();
-		return length;
+		return this.getIndexPage(index).getInt(indexItemOffset(index) + INDEX_ITEM_DATA_ITEM_LENGTH_OFFSET);
 	}
 	
 	// inner getBackFileSize
 	private long _getBackFileSize() throws IOException {	
 		return this.indexPageFactory.getBackPageFileSize() + this.dataPageFactory.getBackPageFileSize();
 	}
+
+	// immutable head position used for slot reservation in concurrent append mode
+	static final class AppendPosition {
+		// next to be appended array index
+		final long arrayIndex;
+		// next to be appended data page index
+		final long dataPageIndex;
+		// next to be appended data offset within the data page
+		final int dataItemOffset;
+		
+		AppendPosition(long arrayIndex, long dataPageIndex, int dataItemOffset) {
+			this.arrayIndex = arrayIndex;
+			this.dataPageIndex = dataPageIndex;
+			this.dataItemOffset = dataItemOffset;
+		}
+	}
 }
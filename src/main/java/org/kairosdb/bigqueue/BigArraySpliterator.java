@@ -0,0 +1,103 @@
+package org.kairosdb.bigqueue;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+import org.kairosdb.bigqueue.utils.Calculator;
+
+/**
+ * Spliterator over a range of a big array, split on index page boundaries so that each worker of a parallel stream reads its own pages.
+ *
+ * The remaining items of a split are read through a cursor, items removed from the tail while the stream runs are skipped,
+ * as are the slots of failed concurrent appends.
+ */
+class BigArraySpliterator implements Spliterator<byte[]> {
+
+	private final BigArrayImpl array;
+	// range [index, toIndex) still to be read
+	private long index;
+	private final long toIndex;
+
+	BigArraySpliterator(BigArrayImpl array, long fromIndex, long toIndex) {
+		this.array = array;
+		this.index = fromIndex;
+		this.toIndex = toIndex;
+	}
+
+	@Override
+	public boolean tryAdvance(Consumer<? super byte[]> action) {
+		while (index < toIndex) {
+			byte[] data;
+			boolean skipped;
+			try {
+				data = array.get(index);
+				// only an empty item can be a skipped slot
+				skipped = data.length == 0 && array.isSkipped(index);
+			} catch (IndexOutOfBoundsException ex) {
+				// the item was removed from the tail meanwhile
+				long tailIndex = array.getTailIndex();
+				if (tailIndex <= index) {
+					throw ex;
+				}
+				index = tailIndex;
+				continue;
+			} catch (IOException ex) {
+				throw new UncheckedIOException(ex);
+			}
+			index++;
+			if (skipped) {
+				continue;
+			}
+			action.accept(data);
+			return true;
+		}
+		return false;
+	}
+
+	@Override
+	public void forEachRemaining(Consumer<? super byte[]> action) {
+		if (index >= toIndex) {
+			return;
+		}
+		try (BigArrayCursor cursor = new BigArrayCursor(array, index)) {
+			while (cursor.hasNext() && cursor.getIndex() < toIndex) {
+				byte[] data = cursor.next();
+				if (cursor.getIndex() > toIndex) {
+					break; // a concurrent tail truncation moved the cursor past the range
+				}
+				index = cursor.getIndex();
+				action.accept(data);
+			}
+		} catch (IOException ex) {
+			throw new UncheckedIOException(ex);
+		}
+		index = toIndex;
+	}
+
+	@Override
+	public Spliterator<byte[]> trySplit() {
+		long firstPage = Calculator.div(index, BigArrayImpl.INDEX_ITEMS_PER_PAGE_BITS);
+		long lastPage = Calculator.div(toIndex - 1, BigArrayImpl.INDEX_ITEMS_PER_PAGE_BITS);
+		if (index >= toIndex || firstPage == lastPage) {
+			return null; // a single index page is not split further
+		}
+		// the prefix takes the first half of the pages
+		long splitIndex = Calculator.mul(firstPage + (lastPage - firstPage + 1) / 2, BigArrayImpl.INDEX_ITEMS_PER_PAGE_BITS);
+		BigArraySpliterator prefix = new BigArraySpliterator(array, index, splitIndex);
+		index = splitIndex;
+		return prefix;
+	}
+
+	@Override
+	public long estimateSize() {
+		return Math.max(0L, toIndex - index);
+	}
+
+	@Override
+	public int characteristics() {
+		// not SIZED, items removed from the tail meanwhile are skipped
+		return ORDERED | NONNULL;
+	}
+}
@@ -3,15 +3,19 @@ package org.kairosdb.bigqueue;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongConsumer;
 
+import org.kairosdb.bigqueue.codec.ItemCodec;
 import org.kairosdb.bigqueue.metrics.BigQueueStats;
 import org.kairosdb.bigqueue.page.IMappedPage;
 import org.kairosdb.bigqueue.page.IMappedPageFactory;
+import org.kairosdb.bigqueue.page.MappedMemoryBudget;
 import org.kairosdb.bigqueue.page.MappedPageFactoryImpl;
 import org.kairosdb.metrics4j.MetricSourceManager;
 
@@ -84,24 +88,80 @@ public class BigQueueImpl implements IBigQueue {
         this.queueName = queueName;
 
         // the ttl does not matter here since queue front index page is always cached
-        this.queueFrontIndexPageFactory = new MappedPageFactoryImpl(QUEUE_FRONT_INDEX_PAGE_SIZE,
+        MappedPageFactoryImpl queueFrontPages = new MappedPageFactoryImpl(QUEUE_FRONT_INDEX_PAGE_SIZE,
                 ((BigArrayImpl) innerArray).getArrayDirectory() + QUEUE_FRONT_INDEX_PAGE_FOLDER,
                 10 * 1000/*does not matter*/);
+        queueFrontPages.setEvictionPriority(MappedMemoryBudget.META_PAGE_PRIORITY);
+        this.queueFrontIndexPageFactory = queueFrontPages;
         IMappedPage queueFrontIndexPage = this.queueFrontIndexPageFactory.acquirePage(QUEUE_FRONT_PAGE_INDEX);
 
-        ByteBuffer queueFrontIndexBuffer = queueFrontIndexPage.getLocal(0);
-        long front = queueFrontIndexBuffer.getLong();
+        long front = queueFrontIndexPage.getLong(0);
+        // the array head may have been moved back by crash recovery
+        if (front > innerArray.getHeadIndex()) {
+            front = innerArray.getHeadIndex();
+            queueFrontIndexPage.putLong(0, front);
+            queueFrontIndexPage.setDirty(0, 8);
+        }
         queueFrontIndex.set(front);
 
+        // the queue front is forced together with the array by the durability flusher
+        ((BigArrayImpl) innerArray).addFlushHook(() -> this.queueFrontIndexPageFactory.flush());
+
         //register callback to get array size for stats
         Map<String, String> tags = new HashMap<>();
         tags.put("name", queueName);
         MetricSourceManager.addSource(BigQueueStats.class.getName(), "queueSize", tags, "Reports size of the queue", () -> size());
     }
 
+    /**
+     * Enable or disable concurrent enqueue by multiple producers, see {@link BigArrayImpl#setConcurrentAppend(boolean)}
+     *
+     * @param concurrentAppend true to enable the concurrent append mode of the inner array
+     */
+    public void setConcurrentAppend(boolean concurrentAppend) {
+        ((BigArrayImpl) innerArray).setConcurrentAppend(concurrentAppend);
+    }
+
+    /**
+     * Set when enqueued items and the queue front are forced to disk, see {@link BigArrayImpl#setDurabilityPolicy(DurabilityPolicy)}
+     *
+     * @param policy the durability policy
+     */
+    public void setDurabilityPolicy(DurabilityPolicy policy) {
+        ((BigArrayImpl) innerArray).setDurabilityPolicy(policy);
+    }
+
+    /**
+     * Map the next back pages ahead of the head, see {@link BigArrayImpl#setPremapThreshold(double)}
+     *
+     * @param threshold fill ratio of the head page between 0 and 1, 0 disables pre-mapping
+     */
+    public void setPremapThreshold(double threshold) {
+        ((BigArrayImpl) innerArray).setPremapThreshold(threshold);
+    }
+
+    /**
+     * Set the codec compressing enqueued items, see {@link BigArrayImpl#setCodec(ItemCodec)}
+     *
+     * @param codec the codec, null to stop compressing items
+     * @throws IOException exception thrown if the format header could not be written
+     */
+    public void setCodec(ItemCodec codec) throws IOException {
+        ((BigArrayImpl) innerArray).setCodec(codec);
+    }
+
+    /**
+     * Verify the checksum of every dequeued item, see {@link BigArrayImpl#setVerifyChecksums(boolean)}
+     *
+     * @param verifyChecksums true to verify checksums on read
+     */
+    public void setVerifyChecksums(boolean verifyChecksums) {
+        ((BigArrayImpl) innerArray).setVerifyChecksums(verifyChecksums);
+    }
+
     @Override
     public boolean isEmpty() {
-        return this.queueFrontIndex.get() == this.innerArray.getHeadIndex();
+        return this.frontIndex() == this.innerArray.getHeadIndex();
     }
 
     @Override
@@ -111,34 +171,120 @@ public class BigQueueImpl implements IBigQueue {
         this.completeFutures();
     }
 
+    @Override
+    public void enqueue(byte[] buf, int off, int len) throws IOException {
+        this.innerArray.append(buf, off, len);
+
+        this.completeFutures();
+    }
+
+    @Override
+    public void enqueue(ByteBuffer src) throws IOException {
+        this.innerArray.append(src);
+
+        this.completeFutures();
+    }
+
+    @Override
+    public void enqueueBatch(List<byte[]> items) throws IOException {
+        this.innerArray.appendBatch(items);
+
+        this.completeFutures();
+    }
+
+    @Override
+    public CompletableFuture<Void> enqueueDurable(byte[] data) throws IOException {
+        CompletableFuture<Long> durable = this.innerArray.appendDurable(data);
+
+        this.completeFutures();
+        return durable.thenAccept(index -> {});
+    }
+
 
     @Override
     public byte[] dequeue() throws IOException {
         long queueFrontIndex = -1L;
         try {
             queueFrontWriteLock.lock();
-            if (this.isEmpty()) {
-                return null;
+            // skipped slots of failed concurrent appends are consumed on the way, only an empty item can be one
+            while (!this.isEmpty()) {
+                queueFrontIndex = this.frontIndex();
+                byte[] data;
+                try {
+                    data = this.innerArray.get(queueFrontIndex);
+                } catch (IndexOutOfBoundsException ex) {
+                    if (this.frontIndex() == queueFrontIndex) {
+                        throw ex;
+                    }
+                    continue; // removed by the background size limit meanwhile, retry from the new tail
+                }
+                this.advanceQueueFront(queueFrontIndex);
+                if (data.length > 0 || !this.innerArray.isSkipped(queueFrontIndex)) {
+                    return data;
+                }
             }
-            queueFrontIndex = this.queueFrontIndex.get();
-            byte[] data = this.innerArray.get(queueFrontIndex);
-            long nextQueueFrontIndex = queueFrontIndex;
-            if (nextQueueFrontIndex == Long.MAX_VALUE) {
-                nextQueueFrontIndex = 0L; // wrap
-            } else {
-                nextQueueFrontIndex++;
+            return null;
+        } finally {
+            queueFrontWriteLock.unlock();
+        }
+
+    }
+
+    @Override
+    public int dequeue(ByteBuffer dst) throws IOException {
+        try {
+            queueFrontWriteLock.lock();
+            // see dequeue()
+            while (!this.isEmpty()) {
+                long queueFrontIndex = this.frontIndex();
+                int length;
+                try {
+                    length = this.innerArray.get(queueFrontIndex, dst);
+                } catch (IndexOutOfBoundsException ex) {
+                    if (this.frontIndex() == queueFrontIndex) {
+                        throw ex;
+                    }
+                    continue;
+                }
+                this.advanceQueueFront(queueFrontIndex);
+                if (length > 0 || !this.innerArray.isSkipped(queueFrontIndex)) {
+                    return length;
+                }
             }
-            this.queueFrontIndex.set(nextQueueFrontIndex);
-            // persist the queue front
-            IMappedPage queueFrontIndexPage = this.queueFrontIndexPageFactory.acquirePage(QUEUE_FRONT_PAGE_INDEX);
-            ByteBuffer queueFrontIndexBuffer = queueFrontIndexPage.getLocal(0);
-            queueFrontIndexBuffer.putLong(nextQueueFrontIndex);
-            queueFrontIndexPage.setDirty(true);
-            return data;
+            return -1;
         } finally {
             queueFrontWriteLock.unlock();
         }
+    }
 
+    // the queue front, or the array tail when items not dequeued yet were removed by the background size limit,
+    // the limit runs under the array write lock only, so the queue front follows the tail lazily
+    private long frontIndex() {
+        long index = this.queueFrontIndex.get();
+        long tailIndex = this.innerArray.getTailIndex();
+        if (index < tailIndex && tailIndex <= this.innerArray.getHeadIndex()) {
+            return tailIndex;
+        }
+        return index;
+    }
+
+    // move the queue front past the dequeued item and persist it, caller holds the queue front write lock
+    private void advanceQueueFront(long queueFrontIndex) throws IOException {
+        long nextQueueFrontIndex = queueFrontIndex;
+        if (nextQueueFrontIndex == Long.MAX_VALUE) {
+            nextQueueFrontIndex = 0L; // wrap
+        } else {
+            nextQueueFrontIndex++;
+        }
+        this.setQueueFront(nextQueueFrontIndex);
+    }
+
+    // move the queue front and persist it, caller holds the queue front write lock
+    private void setQueueFront(long queueFrontIndex) throws IOException {
+        this.queueFrontIndex.set(queueFrontIndex);
+        IMappedPage queueFrontIndexPage = this.queueFrontIndexPageFactory.acquirePage(QUEUE_FRONT_PAGE_INDEX);
+        queueFrontIndexPage.putLong(0, queueFrontIndex);
+        queueFrontIndexPage.setDirty(0, 8);
     }
 
     @Override
@@ -154,25 +300,86 @@ public class BigQueueImpl implements IBigQueue {
         try {
             queueFrontWriteLock.lock();
             this.innerArray.removeAll();
-            this.queueFrontIndex.set(0L);
-            IMappedPage queueFrontIndexPage = this.queueFrontIndexPageFactory.acquirePage(QUEUE_FRONT_PAGE_INDEX);
-            ByteBuffer queueFrontIndexBuffer = queueFrontIndexPage.getLocal(0);
-            queueFrontIndexBuffer.putLong(0L);
-            queueFrontIndexPage.setDirty(true);
+            this.setQueueFront(0L);
+        } finally {
+            queueFrontWriteLock.unlock();
+        }
+    }
+
+    @Override
+    public long removeBefore(long timestamp) throws IOException {
+        try {
+            queueFrontWriteLock.lock();
+            long deletedSize = this.innerArray.removeBefore(timestamp);
+            // expired items not dequeued yet are dropped
+            long tailIndex = this.innerArray.getTailIndex();
+            if (this.queueFrontIndex.get() < tailIndex) {
+                this.setQueueFront(tailIndex);
+            }
+            return deletedSize;
+        } finally {
+            queueFrontWriteLock.unlock();
+        }
+    }
+
+    @Override
+    public void limitBackFileSize(long sizeLimit) throws IOException {
+        try {
+            queueFrontWriteLock.lock();
+            this.innerArray.limitBackFileSize(sizeLimit);
+            // truncated items not dequeued yet are dropped
+            long tailIndex = this.innerArray.getTailIndex();
+            if (this.queueFrontIndex.get() < tailIndex) {
+                this.setQueueFront(tailIndex);
+            }
         } finally {
             queueFrontWriteLock.unlock();
         }
     }
 
+    @Override
+    public void setBackFileSizeLimit(long sizeLimit) {
+        this.innerArray.setBackFileSizeLimit(sizeLimit);
+    }
+
+    @Override
+    public void setBackFileSizeLimit(long sizeLimit, LongConsumer truncationListener) {
+        this.innerArray.setBackFileSizeLimit(sizeLimit, truncationListener);
+    }
+
+    @Override
+    public long getBackFileSize() throws IOException {
+        return this.innerArray.getBackFileSize();
+    }
+
     @Override
     public byte[] peek() throws IOException {
-        if (this.isEmpty()) {
+        long index = this.firstItemIndex();
+        if (index == this.innerArray.getHeadIndex()) {
             return null;
         }
-        byte[] data = this.innerArray.get(this.queueFrontIndex.get());
+        byte[] data = this.innerArray.get(index);
         return data;
     }
 
+    @Override
+    public int peekLength() throws IOException {
+        long index = this.firstItemIndex();
+        if (index == this.innerArray.getHeadIndex()) {
+            return -1;
+        }
+        return this.innerArray.getItemLength(index);
+    }
+
+    // index of the first item at or after the queue front, past the skipped slots of failed concurrent appends
+    private long firstItemIndex() throws IOException {
+        long index = this.frontIndex();
+        while (index != this.innerArray.getHeadIndex() && this.innerArray.isSkipped(index)) {
+            index++;
+        }
+        return index;
+    }
+
     @Override
     public CompletableFuture<byte[]> peekAsync() {
         this.initializePeekFutureIfNecessary();
@@ -193,9 +400,13 @@ public class BigQueueImpl implements IBigQueue {
                 return;
             }
 
-            long index = this.queueFrontIndex.get();
-            for (long i = index; i < this.innerArray.size(); i++) {
-                iterator.forEach(this.innerArray.get(i));
+            // items enqueued while iterating are not visited
+            long headIndex = this.innerArray.getHeadIndex();
+            try (BigArrayCursor cursor = this.innerArray.cursor()) {
+                cursor.seek(this.frontIndex());
+                while (cursor.getIndex() != headIndex && cursor.hasNext()) {
+                    iterator.forEach(cursor.next());
+                }
             }
         } finally {
             queueFrontWriteLock.unlock();
@@ -225,7 +436,7 @@ public class BigQueueImpl implements IBigQueue {
     }
 
     @Override
-    public void gc() throws IOException {
+    public long gc() throws IOException {
         stats.gcCount(queueName).put(1);
         long beforeIndex = this.queueFrontIndex.get();
         if (beforeIndex == 0L) { // wrap
@@ -234,9 +445,9 @@ public class BigQueueImpl implements IBigQueue {
             beforeIndex--;
         }
         try {
-            this.innerArray.removeBeforeIndex(beforeIndex);
+            return this.innerArray.removeBeforeIndex(beforeIndex);
         } catch (IndexOutOfBoundsException ex) {
-            // ignore
+            return 0L; // ignore
         }
     }
 
@@ -254,7 +465,7 @@ public class BigQueueImpl implements IBigQueue {
 
     @Override
     public long size() {
-        long qFront = this.queueFrontIndex.get();
+        long qFront = this.frontIndex();
         long qRear = this.innerArray.getHeadIndex();
         if (qFront <= qRear) {
             return (qRear - qFront);
@@ -0,0 +1,89 @@
+package org.kairosdb.bigqueue;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides when appended items are forced to disk by the background group commit flusher.
+ *
+ * Whatever the policy, a call to flush makes all items appended so far durable.
+ *
+ * @see BigArrayImpl#setDurabilityPolicy(DurabilityPolicy)
+ */
+public final class DurabilityPolicy {
+
+	public static enum Mode {
+		/** only explicit flush calls, page replacement and the OS persist the data */
+		NONE,
+		/** force appended items at a fixed interval */
+		PERIODIC,
+		/** force once a number of items has been appended since the last force */
+		EVERY_N_ITEMS,
+		/** every append waits until its item is forced, concurrent appends share one force */
+		SYNC_ON_APPEND
+	}
+
+	public static final DurabilityPolicy NONE = new DurabilityPolicy(Mode.NONE, 0L, 0);
+
+	public static final DurabilityPolicy SYNC_ON_APPEND = new DurabilityPolicy(Mode.SYNC_ON_APPEND, 0L, 1);
+
+	private final Mode mode;
+	private final long intervalMillis;
+	private final int items;
+
+	private DurabilityPolicy(Mode mode, long intervalMillis, int items) {
+		this.mode = mode;
+		this.intervalMillis = intervalMillis;
+		this.items = items;
+	}
+
+	/**
+	 * Force appended items at a fixed interval, bounding data loss to the interval.
+	 *
+	 * @param interval interval between two forces
+	 * @param unit time unit of the interval
+	 * @return the policy
+	 */
+	public static DurabilityPolicy periodic(long interval, TimeUnit unit) {
+		long intervalMillis = unit.toMillis(interval);
+		if (intervalMillis <= 0) {
+			throw new IllegalArgumentException("invalid flush interval : " + interval + " " + unit);
+		}
+		return new DurabilityPolicy(Mode.PERIODIC, intervalMillis, 0);
+	}
+
+	/**
+	 * Force appended items once n items have been appended since the last force, bounding data loss to n items.
+	 *
+	 * @param n number of items
+	 * @return the policy
+	 */
+	public static DurabilityPolicy everyNItems(int n) {
+		if (n <= 0) {
+			throw new IllegalArgumentException("invalid number of items : " + n);
+		}
+		return new DurabilityPolicy(Mode.EVERY_N_ITEMS, 0L, n);
+	}
+
+	public Mode getMode() {
+		return mode;
+	}
+
+	public long getIntervalMillis() {
+		return intervalMillis;
+	}
+
+	public int getItems() {
+		return items;
+	}
+
+	public String toString() {
+		switch (mode) {
+			case PERIODIC:
+				return "PERIODIC(" + intervalMillis + "ms)";
+			case EVERY_N_ITEMS:
+				return "EVERY_N_ITEMS(" + items + ")";
+			default:
+				return mode.name();
+		}
+	}
+}
@@ -1,15 +1,29 @@
 package org.kairosdb.bigqueue;
 
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongConsumer;
+import java.util.stream.Stream;
 
+import org.kairosdb.bigqueue.codec.ItemCodec;
 import org.kairosdb.bigqueue.page.IMappedPage;
 import org.kairosdb.bigqueue.page.IMappedPageFactory;
+import org.kairosdb.bigqueue.page.MappedMemoryBudget;
 import org.kairosdb.bigqueue.page.MappedPageFactoryImpl;
 import org.kairosdb.bigqueue.utils.FolderNameValidator;
 
@@ -44,7 +58,13 @@ public class FanOutQueueImpl implements IFanOutQueue {
 	// folder name prefix for queue front index page
 	final static String QUEUE_FRONT_INDEX_PAGE_FOLDER_PREFIX = "front_index_";
 	
+	// file name of the manifest listing the fan outs of the queue
+	final static String FANOUT_MANIFEST_FILE_NAME = "fanouts";
+	
 	final ConcurrentMap<String, QueueFront> queueFrontMap = new ConcurrentHashMap<String, QueueFront>();
+	
+	// fan outs with a queue front on disk, loaded in queueFrontMap or not, guarded by itself for manifest writes
+	final Set<String> knownFanoutIds = ConcurrentHashMap.newKeySet();
 
 	/**
 	 * A big, fast and persistent queue implementation with fandout support.
@@ -57,6 +77,21 @@ public class FanOutQueueImpl implements IFanOutQueue {
 	public FanOutQueueImpl(String queueDir, String queueName, int pageSize)
 			throws IOException {
 		innerArray = new BigArrayImpl(queueDir, queueName, pageSize);
+		this.loadKnownFanouts();
+		// queue fronts are forced together with the array by the durability flusher
+		innerArray.addFlushHook(() -> {
+			for(QueueFront qf : this.queueFrontMap.values()) {
+				qf.indexPageFactory.flush();
+			}
+		});
+		// queue fronts lagging behind the tail moved by the background size limit follow it
+		innerArray.addRetentionHook(() -> {
+			try {
+				this.validateQueueFronts();
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		});
 	}
 
 	/**
@@ -71,6 +106,128 @@ public class FanOutQueueImpl implements IFanOutQueue {
 		this(queueDir, queueName, BigArrayImpl.DEFAULT_DATA_PAGE_SIZE);
 	}
 	
+	/**
+	 * Enable or disable concurrent enqueue by multiple producers, see {@link BigArrayImpl#setConcurrentAppend(boolean)}
+	 * 
+	 * @param concurrentAppend true to enable the concurrent append mode of the inner array
+	 */
+	public void setConcurrentAppend(boolean concurrentAppend) {
+		innerArray.setConcurrentAppend(concurrentAppend);
+	}
+	
+	/**
+	 * Set when enqueued items and queue fronts are forced to disk, see {@link BigArrayImpl#setDurabilityPolicy(DurabilityPolicy)}
+	 * 
+	 * @param policy the durability policy
+	 */
+	public void setDurabilityPolicy(DurabilityPolicy policy) {
+		innerArray.setDurabilityPolicy(policy);
+	}
+	
+	/**
+	 * Map the next back pages ahead of the head, see {@link BigArrayImpl#setPremapThreshold(double)}
+	 * 
+	 * @param threshold fill ratio of the head page between 0 and 1, 0 disables pre-mapping
+	 */
+	public void setPremapThreshold(double threshold) {
+		innerArray.setPremapThreshold(threshold);
+	}
+	
+	/**
+	 * Set the codec compressing enqueued items, see {@link BigArrayImpl#setCodec(ItemCodec)}
+	 * 
+	 * @param codec the codec, null to stop compressing items
+	 * @throws IOException exception thrown if the format header could not be written
+	 */
+	public void setCodec(ItemCodec codec) throws IOException {
+		innerArray.setCodec(codec);
+	}
+
+	/**
+	 * Verify the checksum of every dequeued item, see {@link BigArrayImpl#setVerifyChecksums(boolean)}
+	 * 
+	 * @param verifyChecksums true to verify checksums on read
+	 */
+	public void setVerifyChecksums(boolean verifyChecksums) {
+		innerArray.setVerifyChecksums(verifyChecksums);
+	}
+	
+	// load the fan outs from the manifest, the directory is only listed to create a missing manifest
+	private void loadKnownFanouts() throws IOException {
+		File manifest = new File(this.innerArray.arrayDirectory + FANOUT_MANIFEST_FILE_NAME);
+		if (manifest.exists()) {
+			for(String fanoutId : Files.readAllLines(manifest.toPath(), StandardCharsets.UTF_8)) {
+				if (!fanoutId.isEmpty()) {
+					this.knownFanoutIds.add(fanoutId);
+				}
+			}
+			return;
+		}
+		File[] frontDirs = new File(this.innerArray.arrayDirectory).listFiles();
+		if (frontDirs != null) {
+			for(File frontDir : frontDirs) {
+				if (frontDir.isDirectory() && frontDir.getName().startsWith(QUEUE_FRONT_INDEX_PAGE_FOLDER_PREFIX)) {
+					this.knownFanoutIds.add(frontDir.getName().substring(QUEUE_FRONT_INDEX_PAGE_FOLDER_PREFIX.length()));
+				}
+			}
+		}
+		if (!this.knownFanoutIds.isEmpty()) {
+			synchronized (this.knownFanoutIds) {
+				this.writeKnownFanouts();
+			}
+		}
+	}
+	
+	// record a new fan out before its queue front directory is created, so the manifest never misses a front
+	private void addKnownFanout(String fanoutId) throws IOException {
+		synchronized (this.knownFanoutIds) {
+			if (this.knownFanoutIds.add(fanoutId)) {
+				try {
+					this.writeKnownFanouts();
+				} catch (IOException ex) {
+					this.knownFanoutIds.remove(fanoutId);
+					throw ex;
+				}
+			}
+		}
+	}
+	
+	// caller holds the knownFanoutIds monitor
+	private void writeKnownFanouts() throws IOException {
+		File tmp = new File(this.innerArray.arrayDirectory + FANOUT_MANIFEST_FILE_NAME + ".tmp");
+		try (FileOutputStream out = new FileOutputStream(tmp)) {
+			out.write(String.join("\n", this.knownFanoutIds).getBytes(StandardCharsets.UTF_8));
+			out.getFD().sync();
+		}
+		Files.move(tmp.toPath(), new File(this.innerArray.arrayDirectory + FANOUT_MANIFEST_FILE_NAME).toPath(),
+				StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+	
+	// queue front index persisted by a fan out not loaded by this instance, read without mapping its page,
+	// adjusted like validateAndAdjustIndex would on load, caller holds the array write lock
+	private long readPersistedFrontIndex(String fanoutId) throws IOException {
+		long head = this.innerArray.arrayHeadIndex.get();
+		File pageFile = new File(this.innerArray.arrayDirectory + QUEUE_FRONT_INDEX_PAGE_FOLDER_PREFIX + fanoutId
+				+ File.separator + MappedPageFactoryImpl.PAGE_FILE_NAME + "-" + QUEUE_FRONT_PAGE_INDEX
+				+ MappedPageFactoryImpl.PAGE_FILE_SUFFIX);
+		if (pageFile.length() < QUEUE_FRONT_INDEX_PAGE_SIZE) {
+			return head; // the front was deleted, it holds nothing back
+		}
+		long index;
+		try (RandomAccessFile raf = new RandomAccessFile(pageFile, "r")) {
+			index = raf.readLong();
+		}
+		if (index != head) {
+			try {
+				this.innerArray.validateIndex(index);
+			} catch (IndexOutOfBoundsException ex) {
+				long tail = this.innerArray.arrayTailIndex.get();
+				index = index > head && tail <= head ? head : tail;
+			}
+		}
+		return index;
+	}
+	
 	QueueFront getQueueFront(String fanoutId, boolean useLatest) throws IOException {
 		QueueFront qf = this.queueFrontMap.get(fanoutId);
 		if (qf == null) { // not in cache, need to create one
@@ -114,6 +271,26 @@ public class FanOutQueueImpl implements IFanOutQueue {
 		return innerArray.append(data);
 	}
 
+	@Override
+	public long enqueue(byte[] buf, int off, int len) throws IOException {
+		return innerArray.append(buf, off, len);
+	}
+
+	@Override
+	public long enqueue(ByteBuffer src) throws IOException {
+		return innerArray.append(src);
+	}
+
+	@Override
+	public long enqueueBatch(List<byte[]> items) throws IOException {
+		return innerArray.appendBatch(items);
+	}
+
+	@Override
+	public CompletableFuture<Long> enqueueDurable(byte[] data) throws IOException {
+		return innerArray.appendDurable(data);
+	}
+
 	@Override
 	public byte[] dequeue(String fanoutId) throws IOException
 	{
@@ -129,22 +306,42 @@ public class FanOutQueueImpl implements IFanOutQueue {
 			try {
 				qf.writeLock.lock();
 				
-				if (qf.index.get() == innerArray.arrayHeadIndex.get()) {
-					return null; // empty
-				}
-				
-				byte[] data = innerArray.get(qf.index.get());
-				qf.incrementIndex();
-				
-				return data;
+				return dequeueItem(qf);
 			} catch (IndexOutOfBoundsException ex) {
 				ex.printStackTrace();
 				qf.resetIndex(); // maybe the back array has been truncated to limit size
 				
-				byte[] data = innerArray.get(qf.index.get());
-				qf.incrementIndex();
+				return dequeueItem(qf);
 				
-				return data;
+			} finally {
+				qf.writeLock.unlock();
+			}
+			
+		} finally {
+			this.innerArray.arrayReadLock.unlock();
+		}
+	}
+
+	@Override
+	public int dequeue(String fanoutId, ByteBuffer dst) throws IOException
+	{
+		return dequeue(fanoutId, false, dst);
+	}
+	
+	@Override
+	public int dequeue(String fanoutId, boolean useLatest, ByteBuffer dst) throws IOException {
+		try {
+			this.innerArray.arrayReadLock.lock();
+		
+			QueueFront qf = this.getQueueFront(fanoutId, useLatest);
+			try {
+				qf.writeLock.lock();
+				
+				return dequeueItem(qf, dst);
+			} catch (IndexOutOfBoundsException ex) {
+				qf.resetIndex(); // maybe the back array has been truncated to limit size
+				
+				return dequeueItem(qf, dst);
 				
 			} finally {
 				qf.writeLock.unlock();
@@ -167,11 +364,12 @@ public class FanOutQueueImpl implements IFanOutQueue {
 			this.innerArray.arrayReadLock.lock();
 		
 			QueueFront qf = this.getQueueFront(fanoutId, useLatest);
-			if (qf.index.get() == innerArray.getHeadIndex()) {
+			long index = firstItemIndex(qf.index.get());
+			if (index == innerArray.getHeadIndex()) {
 				return null; // empty
 			}
 			
-			return innerArray.get(qf.index.get());
+			return innerArray.get(index);
 		
 		} finally {
 			this.innerArray.arrayReadLock.unlock();
@@ -190,10 +388,11 @@ public class FanOutQueueImpl implements IFanOutQueue {
 			this.innerArray.arrayReadLock.lock();
 		
 			QueueFront qf = this.getQueueFront(fanoutId, useLatest);
-			if (qf.index.get() == innerArray.getHeadIndex()) {
+			long index = firstItemIndex(qf.index.get());
+			if (index == innerArray.getHeadIndex()) {
 				return -1; // empty
 			}
-			return innerArray.getItemLength(qf.index.get());
+			return innerArray.getItemLength(index);
 		
 		} finally {
 			this.innerArray.arrayReadLock.unlock();
@@ -212,10 +411,11 @@ public class FanOutQueueImpl implements IFanOutQueue {
 			this.innerArray.arrayReadLock.lock();
 			
 			QueueFront qf = this.getQueueFront(fanoutId, useLatest);
-			if (qf.index.get() == innerArray.getHeadIndex()) {
+			long index = firstItemIndex(qf.index.get());
+			if (index == innerArray.getHeadIndex()) {
 				return -1; // empty
 			}
-			return innerArray.getTimestamp(qf.index.get());
+			return innerArray.getTimestamp(index);
 		
 		} finally {
 			this.innerArray.arrayReadLock.unlock();
@@ -227,6 +427,107 @@ public class FanOutQueueImpl implements IFanOutQueue {
 	public byte[] get(long index) throws IOException {
 		return this.innerArray.get(index);
 	}
+	
+	@Override
+	public ItemLease lease(long index) throws IOException {
+		return this.innerArray.lease(index);
+	}
+	
+	@Override
+	public Stream<byte[]> stream(String fanoutId) throws IOException {
+		try {
+			this.innerArray.arrayReadLock.lock();
+			
+			QueueFront qf = this.getQueueFront(fanoutId, false);
+			long fromIndex = qf.index.get();
+			long toIndex = innerArray.arrayHeadIndex.get();
+			if (fromIndex < innerArray.arrayTailIndex.get()) {
+				fromIndex = innerArray.arrayTailIndex.get(); // maybe the back array has been truncated to limit size
+			}
+			return innerArray.stream(fromIndex, toIndex);
+		} finally {
+			this.innerArray.arrayReadLock.unlock();
+		}
+	}
+	
+	// index of the first item at or after a queue front index, past the skipped slots of failed concurrent appends,
+	// caller holds the array read lock
+	private long firstItemIndex(long index) throws IOException {
+		while (index != innerArray.arrayHeadIndex.get() && innerArray.isSkipped(index)) {
+			index++;
+		}
+		return index;
+	}
+	
+	// read the item at the queue front and move past it, skipped slots are consumed on the way,
+	// only an empty item can be a skipped slot, caller holds the queue front write lock
+	private byte[] dequeueItem(QueueFront qf) throws IOException {
+		while (qf.index.get() != innerArray.arrayHeadIndex.get()) {
+			long index = qf.index.get();
+			byte[] data = innerArray.get(index);
+			qf.incrementIndex();
+			if (data.length > 0 || !innerArray.isSkipped(index)) {
+				return data;
+			}
+		}
+		return null; // empty
+	}
+	
+	// see dequeueItem(QueueFront)
+	private int dequeueItem(QueueFront qf, ByteBuffer dst) throws IOException {
+		while (qf.index.get() != innerArray.arrayHeadIndex.get()) {
+			long index = qf.index.get();
+			int length = innerArray.get(index, dst);
+			qf.incrementIndex();
+			if (length > 0 || !innerArray.isSkipped(index)) {
+				return length;
+			}
+		}
+		return -1; // empty
+	}
+	
+	// see dequeueItem(QueueFront)
+	private ItemLease leaseAndIncrement(QueueFront qf) throws IOException {
+		while (qf.index.get() != innerArray.arrayHeadIndex.get()) {
+			long index = qf.index.get();
+			ItemLease lease = innerArray.lease(index);
+			try {
+				qf.incrementIndex();
+				if (lease.getLength() > 0 || !innerArray.isSkipped(index)) {
+					return lease;
+				}
+			} catch (IOException | RuntimeException e) {
+				lease.close();
+				throw e;
+			}
+			lease.close();
+		}
+		return null; // empty
+	}
+	
+	@Override
+	public ItemLease dequeueLease(String fanoutId) throws IOException {
+		try {
+			this.innerArray.arrayReadLock.lock();
+		
+			QueueFront qf = this.getQueueFront(fanoutId, false);
+			try {
+				qf.writeLock.lock();
+				
+				return leaseAndIncrement(qf);
+			} catch (IndexOutOfBoundsException ex) {
+				qf.resetIndex(); // maybe the back array has been truncated to limit size
+				
+				return leaseAndIncrement(qf);
+				
+			} finally {
+				qf.writeLock.unlock();
+			}
+			
+		} finally {
+			this.innerArray.arrayReadLock.unlock();
+		}
+	}
 
 	@Override
 	public int getLength(long index) throws IOException {
@@ -245,19 +546,13 @@ public class FanOutQueueImpl implements IFanOutQueue {
 	}
 
 	@Override
-	public void removeBefore(long timestamp) throws IOException {
+	public long removeBefore(long timestamp) throws IOException {
 		try {
 			this.innerArray.arrayWriteLock.lock();
 			
-			this.innerArray.removeBefore(timestamp);
-			for(QueueFront qf : this.queueFrontMap.values()) {
-				try {
-					qf.writeLock.lock();
-					qf.validateAndAdjustIndex();	
-				} finally {
-					qf.writeLock.unlock();
-				}
-			}
+			long deletedSize = this.innerArray.removeBefore(timestamp);
+			this.validateQueueFronts();
+			return deletedSize;
 		} finally {
 			this.innerArray.arrayWriteLock.unlock();
 		}
@@ -269,21 +564,63 @@ public class FanOutQueueImpl implements IFanOutQueue {
 			this.innerArray.arrayWriteLock.lock();
 			
 			this.innerArray.limitBackFileSize(sizeLimit);
+			this.validateQueueFronts();
+		} finally {
+			this.innerArray.arrayWriteLock.unlock();
+		}
+	}
+
+	@Override
+	public void setBackFileSizeLimit(long sizeLimit) {
+		this.innerArray.setBackFileSizeLimit(sizeLimit);
+	}
+
+	@Override
+	public void setBackFileSizeLimit(long sizeLimit, LongConsumer truncationListener) {
+		this.innerArray.setBackFileSizeLimit(sizeLimit, truncationListener);
+	}
+
+	@Override
+	public long gc() throws IOException {
+		try {
+			this.innerArray.arrayWriteLock.lock();
 			
-			for(QueueFront qf : this.queueFrontMap.values()) {
-				try {
-					qf.writeLock.lock();
-					qf.validateAndAdjustIndex();	
-				} finally {
-					qf.writeLock.unlock();
-				}
+			long tailIndex = this.innerArray.arrayTailIndex.get();
+			long headIndex = this.innerArray.arrayHeadIndex.get();
+			if (this.knownFanoutIds.isEmpty() || tailIndex >= headIndex) {
+				return 0L; // no fan out, empty or wrapped
 			}
-		
+			// fronts only move back under the array write lock, see resetQueueFrontIndex,
+			// fronts persisted by earlier runs and not used since hold their items back without being loaded
+			long beforeIndex = headIndex;
+			for(String fanoutId : this.knownFanoutIds) {
+				QueueFront qf = this.queueFrontMap.get(fanoutId);
+				beforeIndex = Math.min(beforeIndex, qf != null ? qf.index.get() : this.readPersistedFrontIndex(fanoutId));
+			}
+			if (beforeIndex == headIndex) {
+				beforeIndex--; // all consumed, the tail stays on the last item
+			}
+			if (beforeIndex > tailIndex) {
+				return this.innerArray.removeBeforeIndex(beforeIndex);
+			}
+			return 0L;
 		} finally {
 			this.innerArray.arrayWriteLock.unlock();
 		}
 	}
 
+	// move the queue fronts removed from the tail, caller holds the array write lock
+	private void validateQueueFronts() throws IOException {
+		for(QueueFront qf : this.queueFrontMap.values()) {
+			try {
+				qf.writeLock.lock();
+				qf.validateAndAdjustIndex();
+			} finally {
+				qf.writeLock.unlock();
+			}
+		}
+	}
+
 	@Override
 	public long getBackFileSize() throws IOException {
 		return this.innerArray.getBackFileSize();
@@ -379,6 +716,8 @@ public class FanOutQueueImpl implements IFanOutQueue {
 
 	@Override
 	public void close() throws IOException {
+		// the flusher commits under the array read lock, the array would wait for it under the write lock
+		this.innerArray.stopFlusher();
 		try {
 			this.innerArray.arrayWriteLock.lock();
 			
@@ -435,10 +774,15 @@ public class FanOutQueueImpl implements IFanOutQueue {
 				throw new IllegalArgumentException("invalid fanout identifier", ex);
 			}
 			this.fanoutId = fanoutId;
+			if (!knownFanoutIds.contains(fanoutId)) {
+				addKnownFanout(fanoutId);
+			}
 			// the ttl does not matter here since queue front index page is always cached
-			this.indexPageFactory = new MappedPageFactoryImpl(QUEUE_FRONT_INDEX_PAGE_SIZE,
+			MappedPageFactoryImpl frontPages = new MappedPageFactoryImpl(QUEUE_FRONT_INDEX_PAGE_SIZE,
 					innerArray.arrayDirectory + QUEUE_FRONT_INDEX_PAGE_FOLDER_PREFIX + fanoutId, 
 					10 * 1000/*does not matter*/);
+			frontPages.setEvictionPriority(MappedMemoryBudget.META_PAGE_PRIORITY);
+			this.indexPageFactory = frontPages;
 			
 			IMappedPage indexPage = this.indexPageFactory.acquirePage(QUEUE_FRONT_PAGE_INDEX);
 
@@ -451,8 +795,7 @@ public class FanOutQueueImpl implements IFanOutQueue {
 			}
 			else
 			{
-				ByteBuffer indexBuffer = indexPage.getLocal(0);
-				index.set(indexBuffer.getLong());
+				index.set(indexPage.getLong(0));
 				validateAndAdjustIndex();
 			}
 		}
@@ -462,7 +805,13 @@ public class FanOutQueueImpl implements IFanOutQueue {
 				try {
 					innerArray.validateIndex(index.get());
 				} catch (IndexOutOfBoundsException ex) { // maybe the back array has been truncated to limit size
-					resetIndex();
+					long head = innerArray.arrayHeadIndex.get();
+					if (index.get() > head && innerArray.arrayTailIndex.get() <= head) { // or the head was moved back by crash recovery
+						index.set(head);
+						this.persistIndex();
+					} else {
+						resetIndex();
+					}
 				}
 		   }
 		}
@@ -490,9 +839,8 @@ public class FanOutQueueImpl implements IFanOutQueue {
 		void persistIndex() throws IOException {
 			// persist index
 			IMappedPage indexPage = this.indexPageFactory.acquirePage(QUEUE_FRONT_PAGE_INDEX);
-			ByteBuffer indexBuffer = indexPage.getLocal(0);
-			indexBuffer.putLong(index.get());
-			indexPage.setDirty(true);
+			indexPage.putLong(0, index.get());
+			indexPage.setDirty(0, 8);
 		}
 	}
 
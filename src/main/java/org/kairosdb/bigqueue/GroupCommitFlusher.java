@@ -0,0 +1,251 @@
+package org.kairosdb.bigqueue;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+import org.kairosdb.bigqueue.metrics.BigArrayStats;
+import org.kairosdb.bigqueue.utils.DaemonThreadFactory;
+import org.kairosdb.metrics4j.MetricSourceManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Background flusher of a big array applying its durability policy,
+ *
+ * appends never force pages themselves, they only wake up the flusher thread, so all items appended
+ * while a force is in progress are made durable together by the next force (group commit).
+ *
+ * Durability is tracked as the array head index up to which all items have been forced.
+ */
+class GroupCommitFlusher implements Runnable {
+
+	private final static Logger logger = LoggerFactory.getLogger(GroupCommitFlusher.class);
+	private final BigArrayStats stats = MetricSourceManager.getSource(BigArrayStats.class);
+
+	private static final ThreadFactory threadFactory = new DaemonThreadFactory("bigqueue-flusher");
+
+	private final BigArrayImpl array;
+
+	private final Object lock = new Object();
+	// futures waiting for their item to become durable, ordered by index
+	private final PriorityQueue<Waiter> waiters = new PriorityQueue<Waiter>();
+
+	private volatile DurabilityPolicy policy = DurabilityPolicy.NONE;
+	// items before this array index are durable
+	private volatile long durableHead;
+	private volatile boolean flushRequested = false;
+	// guarded by lock, the running flusher thread, null when the policy is NONE
+	private Thread thread;
+	// guarded by lock, changes whenever the array is reset, a flush started before the reset marks nothing durable
+	private long generation;
+
+	GroupCommitFlusher(BigArrayImpl array) {
+		this.array = array;
+	}
+
+	DurabilityPolicy getPolicy() {
+		return policy;
+	}
+
+	void setPolicy(DurabilityPolicy policy) {
+		synchronized (lock) {
+			this.policy = policy;
+			if (policy.getMode() == DurabilityPolicy.Mode.NONE) {
+				this.thread = null; // the running thread commits once more and exits
+			} else if (this.thread == null) {
+				this.thread = threadFactory.newThread(this);
+				this.thread.start();
+			}
+			lock.notifyAll();
+		}
+	}
+
+	/**
+	 * Stop the flusher thread and wait for its last commit.
+	 */
+	void shutdown() {
+		Thread stopped;
+		synchronized (lock) {
+			this.policy = DurabilityPolicy.NONE;
+			stopped = this.thread;
+			this.thread = null;
+			lock.notifyAll();
+		}
+		if (stopped != null && stopped != Thread.currentThread()) {
+			try {
+				stopped.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Called after items before nextHead have been published,
+	 * blocks until they are durable when the policy is SYNC_ON_APPEND.
+	 */
+	void appended(long nextHead) throws IOException {
+		DurabilityPolicy current = this.policy;
+		switch (current.getMode()) {
+			case SYNC_ON_APPEND:
+				await(nextHead - 1);
+				break;
+			case EVERY_N_ITEMS:
+				if (!flushRequested && nextHead - durableHead >= current.getItems()) {
+					requestFlush();
+				}
+				break;
+			default:
+				break;
+		}
+	}
+
+	CompletableFuture<Long> whenDurable(long index) {
+		CompletableFuture<Long> future = new CompletableFuture<Long>();
+		synchronized (lock) {
+			if (index < durableHead) {
+				future.complete(index);
+				return future;
+			}
+			waiters.add(new Waiter(index, future));
+			if (policy.getMode() == DurabilityPolicy.Mode.SYNC_ON_APPEND) {
+				flushRequested = true;
+				lock.notifyAll();
+			}
+		}
+		return future;
+	}
+
+	void await(long index) throws IOException {
+		try {
+			whenDurable(index).get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted while waiting for item " + index + " to become durable");
+		} catch (ExecutionException e) {
+			throw new IOException("fail to make item " + index + " durable", e.getCause());
+		}
+	}
+
+	long getGeneration() {
+		synchronized (lock) {
+			return generation;
+		}
+	}
+
+	/**
+	 * Mark all items before head durable, unless the array was reset since generation was read.
+	 */
+	void markDurable(long generation, long head) {
+		List<Waiter> completed;
+		long previousHead;
+		synchronized (lock) {
+			if (generation != this.generation || head <= durableHead) {
+				return;
+			}
+			previousHead = durableHead;
+			durableHead = head;
+			completed = pollWaitersBefore(head);
+		}
+		stats.groupCommitSize(array.arrayName).put(head - previousHead);
+		for (Waiter waiter : completed) {
+			waiter.future.complete(waiter.index);
+		}
+	}
+
+	/**
+	 * The array was emptied or reopened, every waiting item is gone.
+	 */
+	void reset(long head) {
+		List<Waiter> completed;
+		synchronized (lock) {
+			generation++;
+			durableHead = head;
+			completed = pollWaitersBefore(Long.MAX_VALUE);
+		}
+		for (Waiter waiter : completed) {
+			waiter.future.complete(waiter.index);
+		}
+	}
+
+	// guarded by lock
+	private List<Waiter> pollWaitersBefore(long head) {
+		List<Waiter> polled = new ArrayList<Waiter>();
+		while (!waiters.isEmpty() && waiters.peek().index < head) {
+			polled.add(waiters.poll());
+		}
+		return polled;
+	}
+
+	private void requestFlush() {
+		synchronized (lock) {
+			flushRequested = true;
+			lock.notifyAll();
+		}
+	}
+
+	public void run() {
+		Thread self = Thread.currentThread();
+		while (true) {
+			synchronized (lock) {
+				try {
+					while (thread == self && !flushRequested) {
+						DurabilityPolicy current = this.policy;
+						if (current.getMode() == DurabilityPolicy.Mode.PERIODIC) {
+							lock.wait(current.getIntervalMillis());
+							break;
+						}
+						lock.wait();
+					}
+				} catch (InterruptedException e) {
+					thread = null;
+				}
+				flushRequested = false;
+			}
+			commit();
+			synchronized (lock) {
+				if (thread != self) {
+					return;
+				}
+			}
+		}
+	}
+
+	private void commit() {
+		if (array.getHeadIndex() == durableHead) {
+			return; // nothing appended since the last force
+		}
+		try {
+			array.flushForCommit();
+		} catch (Throwable t) {
+			logger.error("fail to flush array " + array.arrayName, t);
+			List<Waiter> failed;
+			synchronized (lock) {
+				failed = pollWaitersBefore(array.getHeadIndex());
+			}
+			for (Waiter waiter : failed) {
+				waiter.future.completeExceptionally(t);
+			}
+		}
+	}
+
+	private static class Waiter implements Comparable<Waiter> {
+		final long index;
+		final CompletableFuture<Long> future;
+
+		Waiter(long index, CompletableFuture<Long> future) {
+			this.index = index;
+			this.future = future;
+		}
+
+		public int compareTo(Waiter other) {
+			return Long.compare(index, other.index);
+		}
+	}
+}
@@ -2,6 +2,11 @@ package org.kairosdb.bigqueue;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.LongConsumer;
+import java.util.stream.Stream;
 
 /**
  * Append Only Big Array ADT
@@ -22,6 +27,55 @@ public interface IBigArray extends Closeable {
 	 */
 	long append(byte[] data) throws IOException;
 	
+	/**
+	 * Append a slice of a byte array into the head of the array
+	 * 
+	 * @param buf array holding the data to append
+	 * @param off offset of the data within the array
+	 * @param len length of the data
+	 * @return appended index
+	 * @throws IOException if there is any IO error
+	 */
+	long append(byte[] buf, int off, int len) throws IOException;
+	
+	/**
+	 * Append the remaining bytes of a buffer into the head of the array,
+	 * 
+	 * on return the position of the buffer is advanced to its limit.
+	 * 
+	 * @param src buffer holding the data to append
+	 * @return appended index
+	 * @throws IOException if there is any IO error
+	 */
+	long append(ByteBuffer src) throws IOException;
+	
+	/**
+	 * Append an item of known length into the head of the array by letting the writer
+	 * serialize it straight into the mapped data page, without any intermediate copy.
+	 * 
+	 * The writer is handed a buffer of exactly length bytes, the item is only made visible
+	 * to readers after the writer returns, if the writer throws nothing is appended.
+	 * The writer runs while the append lock is held, so it should be short and must not
+	 * append to this array itself.
+	 * 
+	 * @param length length in bytes of the item
+	 * @param writer callback writing the item into the supplied buffer
+	 * @return appended index
+	 * @throws IOException if there is any IO error, including one thrown by the writer
+	 */
+	long append(int length, ItemWriter writer) throws IOException;
+	
+	/**
+	 * Append a batch of data into the head of the array
+	 * 
+	 * the items are assigned consecutive indexes in list order and become visible to readers together.
+	 * 
+	 * @param items binary data items to append
+	 * @return appended index of the first item, or {@link #NOT_FOUND} if the batch is empty
+	 * @throws IOException if there is any IO error
+	 */
+	long appendBatch(List<byte[]> items) throws IOException;
+	
 	
 	/**
 	 * Get the data at specific index
@@ -32,6 +86,100 @@ public interface IBigArray extends Closeable {
 	 */
 	byte[] get(long index) throws IOException;
 	
+	/**
+	 * Get the data at specific index into a caller supplied buffer,
+	 * 
+	 * the data is written at the position of the buffer and the position is advanced past it,
+	 * so a single buffer can be reused without allocating per item. Use {@link #getItemLength(long)} to size the buffer.
+	 * 
+	 * @param index valid data index
+	 * @param dst the buffer receiving the data
+	 * @return the length of the data
+	 * @throws java.nio.BufferOverflowException if the remaining space of the buffer is smaller than the data, the buffer is left unchanged
+	 * @throws IOException if there is any IO error
+	 */
+	int get(long index, ByteBuffer dst) throws IOException;
+	
+	/**
+	 * Get the data at specific index into a caller supplied array
+	 * 
+	 * @param index valid data index
+	 * @param dst the array receiving the data
+	 * @param offset the offset in the array the data is written to
+	 * @return the length of the data
+	 * @throws java.nio.BufferOverflowException if the data does not fit into the array after offset
+	 * @throws IOException if there is any IO error
+	 */
+	int get(long index, byte[] dst, int offset) throws IOException;
+	
+	/**
+	 * Get a read only view of the data at specific index without copying it,
+	 * 
+	 * the data page stays mapped until the returned lease is closed, so close it as soon as the data was consumed.
+	 * Compressed items are decompressed into a heap buffer.
+	 * 
+	 * @param index valid data index
+	 * @return a lease on the data, to be closed after use
+	 * @throws IOException if there is any IO error
+	 */
+	ItemLease lease(long index) throws IOException;
+	
+	/**
+	 * Stream the items of a range of the array,
+	 * 
+	 * the stream splits on index page boundaries, so a parallel stream keeps each worker on its own pages.
+	 * Items removed from the tail while the stream runs are skipped.
+	 * 
+	 * @param fromIndex index of the first item, inclusive
+	 * @param toIndex index after the last item, exclusive
+	 * @return a sequential stream, call parallel on it for parallel processing
+	 * @throws IndexOutOfBoundsException if the range is not within the array
+	 */
+	Stream<byte[]> stream(long fromIndex, long toIndex);
+	
+	/**
+	 * Open a sequential cursor positioned at the tail of the array,
+	 * 
+	 * the cursor keeps its current pages pinned, so it must be closed after use.
+	 * 
+	 * @return a new cursor
+	 */
+	BigArrayCursor cursor();
+	
+	/**
+	 * Get consecutive items starting at specific index,
+	 * 
+	 * index and data pages are acquired once for all the items they hold, so this is much cheaper than calling get per item.
+	 * 
+	 * Skipped slots are left out, see {@link #isSkipped(long)}, use the visitor variant to know where the range ended.
+	 * 
+	 * The first item is always returned, even if it is longer than maxBytes, so a caller reading an array
+	 * range by range always makes progress, the returned bytes can then exceed maxBytes by that one item.
+	 * A range ends early if items after its first index page are removed while it is read.
+	 * 
+	 * @param fromIndex valid data index of the first item, or the head index for an empty range
+	 * @param maxItems maximum number of items to get
+	 * @param maxBytes maximum total length of the items, except for a longer first item
+	 * @return the items, in index order
+	 * @throws IOException if there is any IO error
+	 */
+	List<byte[]> getRange(long fromIndex, int maxItems, long maxBytes) throws IOException;
+	
+	/**
+	 * Visit consecutive items starting at specific index without copying them, see {@link #getRange(long, int, long)}
+	 * 
+	 * The visitor runs under the array read lock, released between index pages, so it must not remove items
+	 * or close the array, and a slow visitor holds up removals until the range reaches the next index page.
+	 * 
+	 * @param fromIndex valid data index of the first item, or the head index for an empty range
+	 * @param maxItems maximum number of items to visit, skipped slots count against it
+	 * @param maxBytes maximum total length of the items, except for a longer first item which is visited anyway
+	 * @param visitor callback receiving each item
+	 * @return the number of visited items plus the skipped slots among them, the next range starts at fromIndex plus this number
+	 * @throws IOException if there is any IO error, including one thrown by the visitor
+	 */
+	int getRange(long fromIndex, int maxItems, long maxBytes, ItemVisitor visitor) throws IOException;
+	
 	/**
 	 * Get the timestamp of data at specific index,
 	 * 
@@ -104,18 +252,20 @@ public interface IBigArray extends Closeable {
 	 * delete back page files before index.
 	 *
 	 * @param index an index
+	 * @return total size of the deleted back files
 	 * @throws IOException exception thrown if there was any IO error during the removal operation
 	 */
-	void removeBeforeIndex(long index) throws IOException;
+	long removeBeforeIndex(long index) throws IOException;
 	
 	/**
-	 * Remove all data before specific timestamp, this will advance the array tail and delete back page files
-	 * accordingly.
+	 * Remove all data appended before specific timestamp, this will advance the array tail to the first item
+	 * appended at or after timestamp and delete back page files accordingly.
 	 * 
 	 * @param timestamp a timestamp
+	 * @return total size of the deleted back files
 	 * @throws IOException exception thrown if there was any IO error during the removal operation
 	 */
-	void removeBefore(long timestamp) throws IOException;
+	long removeBefore(long timestamp) throws IOException;
 	
 	/**
 	 * Force to persist newly appended data,
@@ -128,6 +278,18 @@ public interface IBigArray extends Closeable {
 	 */
 	void flush();
 	
+	/**
+	 * Append the data into the head of the array and get notified once it is durable,
+	 * 
+	 * when the item is forced to disk depends on the durability policy of the array,
+	 * with no policy the future completes on the next flush.
+	 * 
+	 * @param data binary data to append
+	 * @return future completing with the appended index once the item is durable
+	 * @throws IOException if there is any IO error
+	 */
+	CompletableFuture<Long> appendDurable(byte[] data) throws IOException;
+	
 	/**
 	 * Find an index closest to the specific timestamp when the corresponding item was appended
 	 * 
@@ -155,6 +317,28 @@ public interface IBigArray extends Closeable {
 	 */
 	void limitBackFileSize(long sizeLimit) throws IOException;
 	
+	/**
+	 * Keep the back file size within a limit in the background, see {@link #limitBackFileSize(long)},
+	 * the limit is checked on a shared background thread whenever the array head moves to a new data page.
+	 * 
+	 * @param sizeLimit the size to limit, 0 disables the limit
+	 */
+	void setBackFileSizeLimit(long sizeLimit);
+	
+	/**
+	 * Keep the back file size within a limit in the background, see {@link #setBackFileSizeLimit(long)},
+	 * and get the total size of the back files deleted by each truncation.
+	 * 
+	 * @param sizeLimit the size to limit, 0 disables the limit
+	 * @param truncationListener called on the background thread with the size deleted by a truncation, may be null
+	 */
+	void setBackFileSizeLimit(long sizeLimit, LongConsumer truncationListener);
+	
+	/**
+	 * @return the back file size limit kept in the background, 0 if disabled
+	 */
+	long getBackFileSizeLimit();
+	
 	
 	/**
 	 * Get the data item length at specific index
@@ -164,4 +348,56 @@ public interface IBigArray extends Closeable {
 	 * @throws IOException if there is any IO error
 	 */
 	int getItemLength(long index) throws IOException;
+	
+	/**
+	 * Get the length of the data item at specific index as stored in the data page,
+	 * this is smaller than the item length if the item was compressed
+	 * 
+	 * @param index valid data index
+	 * @return the stored length of binary data if the index is valid
+	 * @throws IOException if there is any IO error
+	 */
+	int getStoredItemLength(long index) throws IOException;
+	
+	/**
+	 * Check if the slot at specific index was skipped,
+	 * 
+	 * in the concurrent append mode a slot whose write failed is published as a skipped slot, since later items
+	 * may already depend on it. get and lease return an empty item for a skipped slot, cursors, streams,
+	 * ranges and queue reads skip it. Only an empty item can be a skipped slot.
+	 * 
+	 * @param index valid data index
+	 * @return true if the slot holds no item
+	 * @throws IOException if there is any IO error
+	 */
+	boolean isSkipped(long index) throws IOException;
+
+	
+	/**
+	 * Item writer interface
+	 */
+	public static interface ItemWriter {
+		/**
+		 * Write an item into the buffer
+		 * 
+		 * @param buffer buffer backed by the data page, positioned at 0 with the item length as limit
+		 * @throws IOException exception thrown if IO error occurs
+		 */
+		public void write(ByteBuffer buffer) throws IOException;
+	}
+	
+	/**
+	 * Item visitor interface
+	 */
+	public static interface ItemVisitor {
+		/**
+		 * Visit an item
+		 * 
+		 * @param index the array index of the item
+		 * @param data read only buffer holding the item between its position and limit,
+		 *             only valid during the call, so it must be neither retained nor used by another thread
+		 * @throws IOException exception thrown if IO error occurs
+		 */
+		public void visit(long index, ByteBuffer data) throws IOException;
+	}
 }
@@ -2,7 +2,10 @@ package org.kairosdb.bigqueue;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
 import java.util.concurrent.CompletableFuture;
+import java.util.function.LongConsumer;
 
 /**
  * Queue ADT
@@ -27,6 +30,43 @@ public interface IBigQueue extends Closeable {
 	 */
 	public void enqueue(byte[] data)  throws IOException;
 	
+	/**
+	 * Adds a slice of a byte array at the back of a queue
+	 * 
+	 * @param buf array holding the data to enqueue
+	 * @param off offset of the data within the array
+	 * @param len length of the data
+	 * @throws IOException exception throws if there is any IO error during enqueue operation.
+	 */
+	public void enqueue(byte[] buf, int off, int len) throws IOException;
+	
+	/**
+	 * Adds the remaining bytes of a buffer at the back of a queue,
+	 * on return the position of the buffer is advanced to its limit.
+	 * 
+	 * @param src buffer holding the data to enqueue
+	 * @throws IOException exception throws if there is any IO error during enqueue operation.
+	 */
+	public void enqueue(ByteBuffer src) throws IOException;
+	
+	/**
+	 * Adds a batch of items at the back of a queue, in list order
+	 * 
+	 * @param items to be enqueued data
+	 * @throws IOException exception throws if there is any IO error during enqueue operation.
+	 */
+	public void enqueueBatch(List<byte[]> items) throws IOException;
+	
+	/**
+	 * Adds an item at the back of a queue and get notified once it is durable,
+	 * when the item is forced to disk depends on the durability policy of the queue.
+	 * 
+	 * @param data to be enqueued data
+	 * @return future completing once the item is durable
+	 * @throws IOException exception throws if there is any IO error during enqueue operation.
+	 */
+	public CompletableFuture<Void> enqueueDurable(byte[] data) throws IOException;
+	
 	/**
 	 * Retrieves and removes the front of a queue
 	 * 
@@ -34,6 +74,17 @@ public interface IBigQueue extends Closeable {
 	 * @throws IOException exception throws if there is any IO error during dequeue operation.
 	 */
 	public byte[] dequeue() throws IOException;
+	
+	/**
+	 * Retrieves and removes the front of a queue into a caller supplied buffer,
+	 * the item is only removed if it fits into the remaining space of the buffer.
+	 * 
+	 * @param dst the buffer receiving the data, its position is advanced past the data
+	 * @return the length of the data, or -1 if the queue is empty
+	 * @throws java.nio.BufferOverflowException if the item does not fit into the buffer, the item stays in the queue
+	 * @throws IOException exception throws if there is any IO error during dequeue operation.
+	 */
+	public int dequeue(ByteBuffer dst) throws IOException;
 
     /**
      * Retrieves a Future which will complete if new Items where enqued.
@@ -53,6 +104,52 @@ public interface IBigQueue extends Closeable {
 	 */
 	public void removeAll() throws IOException;
 	
+	/**
+	 * Removes all items enqueued before a timestamp, whether they were dequeued or not, and delete the back data files
+	 * holding only such items. The cut point is found from the enqueue timestamps of the items, not from file times.
+	 * 
+	 * @param timestamp items enqueued before this time, in milliseconds, are removed
+	 * @return total size of the deleted back files
+	 * @throws IOException exception throws if there is any IO error during the remove operation.
+	 */
+	public long removeBefore(long timestamp) throws IOException;
+	
+	/**
+	 * Limit the back file size of the queue, removes whole back data files from the tail, whether their items were dequeued or not.
+	 * 
+	 * Note, this is a best effort call, exact size limit can't be guaranteed
+	 * 
+	 * @param sizeLimit size limit in bytes
+	 * @throws IOException exception throws if there is any IO error during the operation.
+	 */
+	public void limitBackFileSize(long sizeLimit) throws IOException;
+	
+	/**
+	 * Keep the back file size of the queue within a limit in the background, the queue front follows the tail if necessary.
+	 * 
+	 * Note, this is a best effort limit, see {@link #limitBackFileSize(long)}
+	 * 
+	 * @param sizeLimit size limit in bytes, 0 disables the limit
+	 */
+	public void setBackFileSizeLimit(long sizeLimit);
+	
+	/**
+	 * Keep the back file size of the queue within a limit in the background, see {@link #setBackFileSizeLimit(long)},
+	 * and get the total size of the back files deleted by each truncation.
+	 * 
+	 * @param sizeLimit size limit in bytes, 0 disables the limit
+	 * @param truncationListener called on the background thread with the size deleted by a truncation, may be null
+	 */
+	public void setBackFileSizeLimit(long sizeLimit, LongConsumer truncationListener);
+	
+	/**
+	 * Get total size of the back files of the queue
+	 * 
+	 * @return total size of back files
+	 * @throws IOException exception throws if there is any IO error during the operation.
+	 */
+	public long getBackFileSize() throws IOException;
+	
 	/**
 	 * Retrieves the item at the front of a queue
 	 * 
@@ -60,6 +157,14 @@ public interface IBigQueue extends Closeable {
 	 * @throws IOException exception throws if there is any IO error during peek operation.
 	 */
 	public byte[] peek()  throws IOException;
+	
+	/**
+	 * Retrieves the length of the item at the front of a queue, to size the buffer passed to {@link #dequeue(ByteBuffer)}
+	 * 
+	 * @return the length of the item at the front of a queue, or -1 if the queue is empty
+	 * @throws IOException exception throws if there is any IO error during peek operation.
+	 */
+	public int peekLength() throws IOException;
 
 
     /**
@@ -85,9 +190,10 @@ public interface IBigQueue extends Closeable {
 	 * the data in them has been dequeued later, so your application is responsible to periodically call
 	 * this method to delete all used data files and free disk space.
 	 * 
+	 * @return total size of the deleted back files
 	 * @throws IOException exception throws if there is any IO error during gc operation.
 	 */
-	public void gc() throws IOException;
+	public long gc() throws IOException;
 	
 	/**
 	 * Force to persist current state of the queue, 
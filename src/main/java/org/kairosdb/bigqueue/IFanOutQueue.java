@@ -2,6 +2,11 @@ package org.kairosdb.bigqueue;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.LongConsumer;
+import java.util.stream.Stream;
 
 /**
  * FanOut queue ADT
@@ -55,6 +60,46 @@ public interface IFanOutQueue extends Closeable {
 	 */
 	long enqueue(byte[] data)  throws IOException;
 
+	/**
+	 * Adds a slice of a byte array at the back of the queue
+	 *
+	 * @param buf array holding the data to enqueue
+	 * @param off offset of the data within the array
+	 * @param len length of the data
+	 * @return index where the item was appended
+	 * @throws IOException exception throws if there is any IO error during enqueue operation.
+	 */
+	long enqueue(byte[] buf, int off, int len) throws IOException;
+
+	/**
+	 * Adds the remaining bytes of a buffer at the back of the queue,
+	 * on return the position of the buffer is advanced to its limit.
+	 *
+	 * @param src buffer holding the data to enqueue
+	 * @return index where the item was appended
+	 * @throws IOException exception throws if there is any IO error during enqueue operation.
+	 */
+	long enqueue(ByteBuffer src) throws IOException;
+
+	/**
+	 * Adds a batch of items at the back of the queue, in list order
+	 *
+	 * @param items to be enqueued data
+	 * @return index where the first item was appended, or -1 if the batch is empty
+	 * @throws IOException exception throws if there is any IO error during enqueue operation.
+	 */
+	long enqueueBatch(List<byte[]> items) throws IOException;
+
+	/**
+	 * Adds an item at the back of the queue and get notified once it is durable,
+	 * when the item is forced to disk depends on the durability policy of the queue.
+	 *
+	 * @param data to be enqueued data
+	 * @return future completing with the index where the item was appended once it is durable
+	 * @throws IOException exception throws if there is any IO error during enqueue operation.
+	 */
+	CompletableFuture<Long> enqueueDurable(byte[] data) throws IOException;
+
 	/**
 	 * Retrieves and removes the front of a fan out queue
 	 *
@@ -74,6 +119,30 @@ public interface IFanOutQueue extends Closeable {
 	 * @throws IOException exception throws if there is any IO error during dequeue operation.
 	 */
 	byte[] dequeue(String fanoutId, boolean useLatest) throws IOException;
+	
+	/**
+	 * Retrieves and removes the front of a fan out queue into a caller supplied buffer,
+	 * the item is only removed if it fits into the remaining space of the buffer.
+	 *
+	 * @param fanoutId the fanout identifier
+	 * @param dst the buffer receiving the data, its position is advanced past the data
+	 * @return the length of the data, or -1 if the queue is empty
+	 * @throws java.nio.BufferOverflowException if the item does not fit into the buffer, the item stays in the queue
+	 * @throws IOException exception throws if there is any IO error during dequeue operation.
+	 */
+	int dequeue(String fanoutId, ByteBuffer dst) throws IOException;
+	
+	/**
+	 * Retrieves and removes the front of a fan out queue into a caller supplied buffer
+	 *
+	 * @param fanoutId the fanout identifier
+	 * @param useLatest if no offset has been recorded the head of the queue is used
+	 * @param dst the buffer receiving the data, its position is advanced past the data
+	 * @return the length of the data, or -1 if the queue is empty
+	 * @throws java.nio.BufferOverflowException if the item does not fit into the buffer, the item stays in the queue
+	 * @throws IOException exception throws if there is any IO error during dequeue operation.
+	 */
+	int dequeue(String fanoutId, boolean useLatest, ByteBuffer dst) throws IOException;
 
 	/**
 	 * Peek the item at the front of a fanout queue, without removing it from the queue
@@ -141,6 +210,36 @@ public interface IFanOutQueue extends Closeable {
 	 * @throws IOException exception throws if there is any IO error during fetch operation.
 	 */
 	byte[] get(long index) throws IOException;
+	
+	/**
+	 * Get a read only view of the data item at the specific index of the queue without copying it,
+	 * the lease must be closed once the data was consumed
+	 *
+	 * @param index data item index
+	 * @return a lease on the data at index
+	 * @throws IOException exception throws if there is any IO error during fetch operation.
+	 */
+	ItemLease lease(long index) throws IOException;
+	
+	/**
+	 * Retrieves and removes the front of a fan out queue as a read only view without copying it,
+	 * the lease must be closed once the data was consumed
+	 *
+	 * @param fanoutId the fanout identifier
+	 * @return a lease on the data at the front of a queue, or null if the queue is empty
+	 * @throws IOException exception throws if there is any IO error during dequeue operation.
+	 */
+	ItemLease dequeueLease(String fanoutId) throws IOException;
+	
+	/**
+	 * Stream the items from the front of a fan out queue up to the current head, without removing them from the queue,
+	 * see {@link IBigArray#stream(long, long)}
+	 *
+	 * @param fanoutId the fanout identifier
+	 * @return a sequential stream, call parallel on it for parallel processing
+	 * @throws IOException exception throws if there is any IO error while reading the queue front
+	 */
+	Stream<byte[]> stream(String fanoutId) throws IOException;
 
 
 	/**
@@ -203,9 +302,10 @@ public interface IFanOutQueue extends Closeable {
 	 * Remove all data before specific timestamp, truncate back files and advance the queue front if necessary.
 	 *
 	 * @param timestamp a timestamp
+	 * @return total size of the deleted back files
 	 * @throws IOException exception thrown if there was any IO error during the removal operation
 	 */
-	void removeBefore(long timestamp) throws IOException;
+	long removeBefore(long timestamp) throws IOException;
 
 	/**
 	 * Limit the back file size of this queue, truncate back files and advance the queue front if necessary.
@@ -217,6 +317,34 @@ public interface IFanOutQueue extends Closeable {
 	 */
 	void limitBackFileSize(long sizeLmit) throws IOException;
 
+	/**
+	 * Keep the back file size of this queue within a limit in the background, the queue fronts are advanced if necessary.
+	 *
+	 * Note, this is a best effort limit, see {@link #limitBackFileSize(long)}
+	 *
+	 * @param sizeLimit size limit, 0 disables the limit
+	 */
+	void setBackFileSizeLimit(long sizeLimit);
+
+	/**
+	 * Keep the back file size of this queue within a limit in the background, see {@link #setBackFileSizeLimit(long)},
+	 * and get the total size of the back files deleted by each truncation.
+	 *
+	 * @param sizeLimit size limit, 0 disables the limit
+	 * @param truncationListener called on the background thread with the size deleted by a truncation, may be null
+	 */
+	void setBackFileSizeLimit(long sizeLimit, LongConsumer truncationListener);
+
+	/**
+	 * Delete the back files only holding items consumed by all fan outs of this queue.
+	 *
+	 * Nothing is deleted as long as no fan out has dequeued from this queue.
+	 *
+	 * @return total size of the deleted back files
+	 * @throws IOException exception thrown if there was any IO error during the operation
+	 */
+	long gc() throws IOException;
+
 	/**
 	 * Current total size of the back files of this queue
 	 *
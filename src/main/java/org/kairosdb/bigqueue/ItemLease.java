@@ -0,0 +1,69 @@
+package org.kairosdb.bigqueue;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.kairosdb.bigqueue.page.IMappedPage;
+import org.kairosdb.bigqueue.page.IMappedPageFactory;
+
+/**
+ * Read only view of an item, straight over the mapped data page when the item is stored uncompressed.
+ *
+ * The data page stays pinned in the page cache until the lease is closed, so the view must not be used after close.
+ * Leases are meant to be short lived, an open lease keeps its data page mapped,
+ * even when the item is removed from the array meanwhile.
+ *
+ * @see BigArrayImpl#lease(long)
+ */
+public final class ItemLease implements AutoCloseable {
+
+	private final long index;
+	private final ByteBuffer buffer;
+	// factory and page pinned by the lease, null if the buffer is a copy
+	private final IMappedPageFactory pageFactory;
+	private final IMappedPage page;
+	private final AtomicBoolean closed = new AtomicBoolean(false);
+
+	ItemLease(long index, ByteBuffer buffer, IMappedPageFactory pageFactory, IMappedPage page) {
+		this.index = index;
+		this.buffer = buffer;
+		this.pageFactory = pageFactory;
+		this.page = page;
+	}
+
+	/**
+	 * @return the array index of the item
+	 */
+	public long getIndex() {
+		return index;
+	}
+
+	/**
+	 * Get the item data, the buffer starts at the item and is limited to its length
+	 *
+	 * @return a read only buffer over the item
+	 */
+	public ByteBuffer getBuffer() {
+		if (closed.get()) {
+			throw new IllegalStateException("lease of item " + index + " is closed");
+		}
+		return buffer;
+	}
+
+	/**
+	 * @return the length of the item
+	 */
+	public int getLength() {
+		return buffer.limit();
+	}
+
+	/**
+	 * Unpin the data page, closing a lease twice has no effect
+	 */
+	@Override
+	public void close() {
+		if (closed.compareAndSet(false, true) && pageFactory != null) {
+			pageFactory.releasePage(page);
+		}
+	}
+}
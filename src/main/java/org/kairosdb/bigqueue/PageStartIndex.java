@@ -0,0 +1,95 @@
+package org.kairosdb.bigqueue;
+
+import java.io.IOException;
+
+import org.kairosdb.bigqueue.page.IMappedPage;
+import org.kairosdb.bigqueue.page.IMappedPageFactory;
+import org.kairosdb.bigqueue.page.MappedMemoryBudget;
+import org.kairosdb.bigqueue.page.MappedPageFactoryImpl;
+import org.kairosdb.bigqueue.utils.Calculator;
+
+/**
+ * First array index of every data page of a big array, so a size truncation finds where a data page starts
+ * without searching the index pages.
+ *
+ * Entries are 8 bytes holding the array index plus one, 0 is not set. One page covers 8192 data pages.
+ * An entry is written when an append starts a data page, entries of arrays written before this index existed
+ * are missing and entries beyond a head moved back by crash recovery may be stale, so readers check them.
+ */
+class PageStartIndex {
+
+	// folder name for page start index page
+	final static String PAGE_START_INDEX_PAGE_FOLDER = "page_start_index";
+	// 2 ^ 13 = 8192 data pages per page start index page
+	final static int PAGE_START_INDEX_ENTRIES_PER_PAGE_BITS = 13;
+	// 2 ^ 3 = 8, the array index
+	final static int PAGE_START_INDEX_ENTRY_LENGTH_BITS = 3;
+	// size in bytes of a page start index page
+	final static int PAGE_START_INDEX_PAGE_SIZE = 1 << (PAGE_START_INDEX_ENTRIES_PER_PAGE_BITS + PAGE_START_INDEX_ENTRY_LENGTH_BITS);
+	// seconds, time to live for page start index page cached in memory
+	final static int PAGE_START_INDEX_PAGE_CACHE_TTL = 10 * 1000;
+
+	private final IMappedPageFactory pageFactory;
+
+	PageStartIndex(String arrayDirectory) {
+		MappedPageFactoryImpl pages = new MappedPageFactoryImpl(PAGE_START_INDEX_PAGE_SIZE,
+				arrayDirectory + PAGE_START_INDEX_PAGE_FOLDER,
+				PAGE_START_INDEX_PAGE_CACHE_TTL);
+		pages.setEvictionPriority(MappedMemoryBudget.INDEX_PAGE_PRIORITY);
+		this.pageFactory = pages;
+	}
+
+	/**
+	 * @return the first array index recorded for a data page, -1 if not set
+	 */
+	long get(long dataPageIndex) throws IOException {
+		long pageIndex = Calculator.div(dataPageIndex, PAGE_START_INDEX_ENTRIES_PER_PAGE_BITS);
+		IMappedPage page = this.pageFactory.acquirePage(pageIndex);
+		try {
+			return page.getLong(entryOffset(dataPageIndex)) - 1;
+		} finally {
+			this.pageFactory.releasePage(pageIndex);
+		}
+	}
+
+	/**
+	 * Record the array index of the item starting a data page
+	 */
+	void put(long dataPageIndex, long arrayIndex) throws IOException {
+		long pageIndex = Calculator.div(dataPageIndex, PAGE_START_INDEX_ENTRIES_PER_PAGE_BITS);
+		IMappedPage page = this.pageFactory.acquirePage(pageIndex);
+		try {
+			int offset = entryOffset(dataPageIndex);
+			page.putLong(offset, arrayIndex + 1);
+			page.setDirty(offset, 1 << PAGE_START_INDEX_ENTRY_LENGTH_BITS);
+		} finally {
+			this.pageFactory.releasePage(pageIndex);
+		}
+	}
+
+	private static int entryOffset(long dataPageIndex) {
+		return (int) Calculator.mul(Calculator.mod(dataPageIndex, PAGE_START_INDEX_ENTRIES_PER_PAGE_BITS), PAGE_START_INDEX_ENTRY_LENGTH_BITS);
+	}
+
+	/**
+	 * Delete the page start index pages only covering data pages before a data page
+	 */
+	void deleteBefore(long dataPageIndex) throws IOException {
+		long pageIndex = Calculator.div(dataPageIndex, PAGE_START_INDEX_ENTRIES_PER_PAGE_BITS);
+		if (pageIndex > 0L) {
+			this.pageFactory.deletePagesBeforePageIndex(pageIndex);
+		}
+	}
+
+	void deleteAll() throws IOException {
+		this.pageFactory.deleteAllPages();
+	}
+
+	void flush() {
+		this.pageFactory.flush();
+	}
+
+	void releaseCachedPages() throws IOException {
+		this.pageFactory.releaseCachedPages();
+	}
+}
@@ -0,0 +1,201 @@
+package org.kairosdb.bigqueue;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongConsumer;
+
+import org.kairosdb.bigqueue.metrics.RetentionStats;
+import org.kairosdb.bigqueue.utils.Clock;
+import org.kairosdb.bigqueue.utils.DaemonThreadFactory;
+import org.kairosdb.bigqueue.utils.SystemClockImpl;
+import org.kairosdb.metrics4j.MetricSourceManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Applies the retention policies of registered queues in the background,
+ *
+ * one scheduler thread walks all queues at a fixed delay, so producers and consumers never run the page deletes themselves
+ * and many queues share a single thread. The bytes reclaimed from each queue are reported through metrics4j.
+ * The size limit of a policy is handed to the queue, see {@link IBigQueue#setBackFileSizeLimit(long, LongConsumer)}, it is checked
+ * on the shared retention thread of the arrays as soon as a data page is added rather than at the next pass,
+ * and the bytes it reclaims are reported from that thread.
+ *
+ * Queues must be unregistered before they are closed.
+ *
+ * @see RetentionPolicy
+ */
+public class RetentionManager implements Closeable {
+
+	private final static Logger logger = LoggerFactory.getLogger(RetentionManager.class);
+	private final RetentionStats stats = MetricSourceManager.getSource(RetentionStats.class);
+
+	private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+	private final ScheduledExecutorService scheduler;
+
+	// must match the clock timestamping the items of the queues
+	private volatile Clock clock = new SystemClockImpl();
+
+	/**
+	 * Start a retention manager
+	 *
+	 * @param delay delay between two passes over the registered queues
+	 * @param unit time unit of the delay
+	 */
+	public RetentionManager(long delay, TimeUnit unit) {
+		if (delay <= 0) {
+			throw new IllegalArgumentException("invalid retention delay : " + delay + " " + unit);
+		}
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("bigqueue-retention-manager"));
+		this.scheduler.scheduleWithFixedDelay(this::applyPolicies, delay, delay, unit);
+	}
+
+	/**
+	 Used for changing the clock for unit tests
+	 @param clock Clock instance to use
+	 */
+	public void setClock(Clock clock) {
+		this.clock = clock;
+	}
+
+	/**
+	 * Apply a retention policy to a queue, replacing the policy previously registered under the same name
+	 *
+	 * @param name name of the queue, used to report the reclaimed bytes
+	 * @param queue the queue
+	 * @param policy the retention policy
+	 */
+	public void register(String name, final IBigQueue queue, RetentionPolicy policy) {
+		register(new Entry(name, policy) {
+			@Override
+			long removeBefore(long timestamp) throws IOException {
+				return queue.removeBefore(timestamp);
+			}
+
+			@Override
+			void setBackFileSizeLimit(long sizeLimit, LongConsumer truncationListener) {
+				queue.setBackFileSizeLimit(sizeLimit, truncationListener);
+			}
+
+			@Override
+			long gc() throws IOException {
+				return queue.gc();
+			}
+		});
+	}
+
+	/**
+	 * Apply a retention policy to a fan out queue, replacing the policy previously registered under the same name,
+	 * consumed items are those consumed by all fan outs
+	 *
+	 * @param name name of the queue, used to report the reclaimed bytes
+	 * @param queue the queue
+	 * @param policy the retention policy
+	 */
+	public void register(String name, final IFanOutQueue queue, RetentionPolicy policy) {
+		register(new Entry(name, policy) {
+			@Override
+			long removeBefore(long timestamp) throws IOException {
+				return queue.removeBefore(timestamp);
+			}
+
+			@Override
+			void setBackFileSizeLimit(long sizeLimit, LongConsumer truncationListener) {
+				queue.setBackFileSizeLimit(sizeLimit, truncationListener);
+			}
+
+			@Override
+			long gc() throws IOException {
+				return queue.gc();
+			}
+		});
+	}
+
+	private void register(Entry entry) {
+		Entry previous = entries.put(entry.name, entry);
+		if (entry.policy.getMaxBytes() > 0 || (previous != null && previous.policy.getMaxBytes() > 0)) {
+			entry.setBackFileSizeLimit(entry.policy.getMaxBytes(), truncatedSize -> reportReclaimed(entry.name, truncatedSize));
+		}
+	}
+
+	/**
+	 * Stop applying the retention policy of a queue, a pass already running may still apply it once
+	 *
+	 * @param name name of the queue
+	 */
+	public void unregister(String name) {
+		Entry entry = entries.remove(name);
+		if (entry != null && entry.policy.getMaxBytes() > 0) {
+			entry.setBackFileSizeLimit(0L, null);
+		}
+	}
+
+	// one pass over all queues, runs on the scheduler thread
+	void applyPolicies() {
+		for (Entry entry : entries.values()) {
+			try {
+				reportReclaimed(entry.name, entry.apply(clock.getTime()));
+			} catch (Exception e) {
+				// keep the scheduler running for the other queues
+				stats.retentionFailures(entry.name).put(1);
+				logger.error("fail to apply retention policy to queue " + entry.name, e);
+			}
+		}
+	}
+
+	// called by the passes and by the retention thread of the arrays
+	void reportReclaimed(String name, long reclaimed) {
+		if (reclaimed > 0) {
+			stats.reclaimedBytes(name).put(reclaimed);
+		}
+	}
+
+	/**
+	 * Stop the scheduler thread and wait for a running pass to complete
+	 */
+	@Override
+	public void close() {
+		scheduler.shutdown();
+		try {
+			scheduler.awaitTermination(1, TimeUnit.MINUTES);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		entries.clear();
+	}
+
+	private static abstract class Entry {
+		final String name;
+		final RetentionPolicy policy;
+
+		Entry(String name, RetentionPolicy policy) {
+			this.name = name;
+			this.policy = policy;
+		}
+
+		// returns the reclaimed bytes
+		long apply(long now) throws IOException {
+			long reclaimed = 0L;
+			if (policy.getMaxAgeMillis() > 0) {
+				reclaimed += removeBefore(now - policy.getMaxAgeMillis());
+			}
+			if (policy.isDeleteConsumed()) {
+				reclaimed += gc();
+			}
+			return reclaimed;
+		}
+
+		// returns the size of the deleted back files
+		abstract long removeBefore(long timestamp) throws IOException;
+
+		abstract void setBackFileSizeLimit(long sizeLimit, LongConsumer truncationListener);
+
+		// returns the size of the deleted back files
+		abstract long gc() throws IOException;
+	}
+}
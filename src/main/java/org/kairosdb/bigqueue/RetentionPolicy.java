@@ -0,0 +1,86 @@
+package org.kairosdb.bigqueue;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides which items the retention manager removes from a queue, a policy combines any of
+ * a maximum age, a maximum back file size and the removal of items consumed by all readers.
+ *
+ * Policies are immutable, each with method returns a new policy.
+ *
+ * @see RetentionManager
+ */
+public final class RetentionPolicy {
+
+	/** keeps everything */
+	public static final RetentionPolicy NONE = new RetentionPolicy(0L, 0L, false);
+
+	private final long maxAgeMillis;
+	private final long maxBytes;
+	private final boolean deleteConsumed;
+
+	private RetentionPolicy(long maxAgeMillis, long maxBytes, boolean deleteConsumed) {
+		this.maxAgeMillis = maxAgeMillis;
+		this.maxBytes = maxBytes;
+		this.deleteConsumed = deleteConsumed;
+	}
+
+	/**
+	 * Remove items enqueued longer ago than a maximum age, whether they were consumed or not.
+	 *
+	 * @param maxAge maximum age of the items
+	 * @param unit time unit of the age
+	 * @return the policy
+	 */
+	public RetentionPolicy withMaxAge(long maxAge, TimeUnit unit) {
+		long millis = unit.toMillis(maxAge);
+		if (millis <= 0) {
+			throw new IllegalArgumentException("invalid max age : " + maxAge + " " + unit);
+		}
+		return new RetentionPolicy(millis, maxBytes, deleteConsumed);
+	}
+
+	/**
+	 * Remove the oldest back files once the back files of the queue exceed a size, whether their items were consumed or not.
+	 *
+	 * @param bytes maximum back file size in bytes, a best effort limit
+	 * @return the policy
+	 */
+	public RetentionPolicy withMaxBytes(long bytes) {
+		if (bytes <= 0) {
+			throw new IllegalArgumentException("invalid max bytes : " + bytes);
+		}
+		return new RetentionPolicy(maxAgeMillis, bytes, deleteConsumed);
+	}
+
+	/**
+	 * Remove the back files only holding items consumed by the queue, or by all fan outs of a fan out queue.
+	 *
+	 * @return the policy
+	 */
+	public RetentionPolicy withDeleteConsumed() {
+		return new RetentionPolicy(maxAgeMillis, maxBytes, true);
+	}
+
+	/**
+	 * @return the maximum age in milliseconds, 0 if not limited
+	 */
+	public long getMaxAgeMillis() {
+		return maxAgeMillis;
+	}
+
+	/**
+	 * @return the maximum back file size, 0 if not limited
+	 */
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	public boolean isDeleteConsumed() {
+		return deleteConsumed;
+	}
+
+	public String toString() {
+		return "RetentionPolicy(maxAge=" + maxAgeMillis + "ms, maxBytes=" + maxBytes + ", deleteConsumed=" + deleteConsumed + ")";
+	}
+}
@@ -0,0 +1,193 @@
+package org.kairosdb.bigqueue;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+import org.kairosdb.bigqueue.page.IMappedPage;
+import org.kairosdb.bigqueue.page.IMappedPageFactory;
+import org.kairosdb.bigqueue.page.MappedMemoryBudget;
+import org.kairosdb.bigqueue.page.MappedPageFactoryImpl;
+import org.kairosdb.bigqueue.utils.Calculator;
+
+/**
+ * Sparse timestamp index of a big array, the lowest and highest append timestamp of every index page.
+ *
+ * Entries are 16 bytes, one summary page covers 8192 index pages (one billion items) so it stays cached,
+ * time seeks pick their index page from here instead of probing index pages on disk.
+ * An entry with a lowest timestamp of 0 is not set.
+ *
+ * Entries are only written by the array, either while publishing items in index order or under its write lock.
+ * The entry of the index page taking the published items is kept in fields and only written to its page
+ * once the next index page is started, on flush and on close, a crash leaves it to the recovery of the array.
+ */
+class TimestampIndex {
+
+	// folder name for timestamp index page
+	final static String TIMESTAMP_INDEX_PAGE_FOLDER = "timestamp_index";
+	// 2 ^ 13 = 8192 index pages per timestamp index page
+	final static int TIMESTAMP_INDEX_ENTRIES_PER_PAGE_BITS = 13;
+	// 2 ^ 4 = 16, lowest and highest timestamp
+	final static int TIMESTAMP_INDEX_ENTRY_LENGTH_BITS = 4;
+	// size in bytes of a timestamp index page
+	final static int TIMESTAMP_INDEX_PAGE_SIZE = 1 << (TIMESTAMP_INDEX_ENTRIES_PER_PAGE_BITS + TIMESTAMP_INDEX_ENTRY_LENGTH_BITS);
+	// seconds, time to live for timestamp index page cached in memory
+	final static int TIMESTAMP_INDEX_PAGE_CACHE_TTL = 10 * 1000;
+
+	private final IMappedPageFactory pageFactory;
+
+	// index page whose entry is held in headMin and headMax, -1 if none, changed under the monitor after the
+	// entry was written, readers check it again after reading the fields
+	private volatile long headIndexPageIndex = -1L;
+	private volatile long headMin;
+	private volatile long headMax;
+
+	TimestampIndex(String arrayDirectory) {
+		MappedPageFactoryImpl pages = new MappedPageFactoryImpl(TIMESTAMP_INDEX_PAGE_SIZE,
+				arrayDirectory + TIMESTAMP_INDEX_PAGE_FOLDER,
+				TIMESTAMP_INDEX_PAGE_CACHE_TTL);
+		pages.setEvictionPriority(MappedMemoryBudget.INDEX_PAGE_PRIORITY);
+		this.pageFactory = pages;
+	}
+
+	/**
+	 * @return the lowest timestamp of the items of an index page, 0 if not set
+	 */
+	long getMin(long indexPageIndex) throws IOException {
+		if (this.headIndexPageIndex == indexPageIndex) {
+			long min = this.headMin;
+			if (this.headIndexPageIndex == indexPageIndex) {
+				return min;
+			}
+		}
+		return getEntry(indexPageIndex, 0);
+	}
+
+	/**
+	 * @return the highest timestamp of the items of an index page, 0 if not set
+	 */
+	long getMax(long indexPageIndex) throws IOException {
+		if (this.headIndexPageIndex == indexPageIndex) {
+			long max = this.headMax;
+			if (this.headIndexPageIndex == indexPageIndex) {
+				return max;
+			}
+		}
+		return getEntry(indexPageIndex, 8);
+	}
+
+	private long getEntry(long indexPageIndex, int fieldOffset) throws IOException {
+		long pageIndex = Calculator.div(indexPageIndex, TIMESTAMP_INDEX_ENTRIES_PER_PAGE_BITS);
+		IMappedPage page = this.pageFactory.acquirePage(pageIndex);
+		try {
+			return page.getLong(entryOffset(indexPageIndex) + fieldOffset);
+		} finally {
+			this.pageFactory.releasePage(pageIndex);
+		}
+	}
+
+	/**
+	 * Account for items appended to an index page, only one thread at a time
+	 *
+	 * @param first true if the items start the index page, any previous entry is then replaced
+	 */
+	void update(long indexPageIndex, long timestamp, boolean first) throws IOException {
+		if (indexPageIndex != this.headIndexPageIndex) {
+			switchHead(indexPageIndex, first);
+		} else if (first) {
+			this.headMax = timestamp;
+			this.headMin = timestamp;
+			return;
+		}
+		// the highest timestamp first, like the entries on the pages
+		if (timestamp > this.headMax) {
+			this.headMax = timestamp;
+		}
+		if (timestamp < this.headMin || this.headMin == 0L) {
+			this.headMin = timestamp;
+		}
+	}
+
+	// write the entry held in the fields and hold the entry of another index page, taken from its page unless replaced
+	private synchronized void switchHead(long indexPageIndex, boolean first) throws IOException {
+		writeHead();
+		this.headIndexPageIndex = -1L;
+		if (first) {
+			this.headMax = 0L;
+			this.headMin = 0L;
+		} else {
+			this.headMax = getEntry(indexPageIndex, 8);
+			this.headMin = getEntry(indexPageIndex, 0);
+		}
+		this.headIndexPageIndex = indexPageIndex;
+	}
+
+	// write the entry held in the fields to its page, caller holds the monitor
+	private void writeHead() throws IOException {
+		long indexPageIndex = this.headIndexPageIndex;
+		if (indexPageIndex >= 0L) {
+			long max = this.headMax;
+			long min = this.headMin;
+			writeEntry(indexPageIndex, min, min == 0L ? 0L : max);
+		}
+	}
+
+	/**
+	 * Replace the entry of an index page, a lowest timestamp of 0 clears it
+	 */
+	synchronized void put(long indexPageIndex, long min, long max) throws IOException {
+		if (indexPageIndex == this.headIndexPageIndex) {
+			this.headIndexPageIndex = -1L; // taken from the page by the next update
+		}
+		writeEntry(indexPageIndex, min, max);
+	}
+
+	private void writeEntry(long indexPageIndex, long min, long max) throws IOException {
+		long pageIndex = Calculator.div(indexPageIndex, TIMESTAMP_INDEX_ENTRIES_PER_PAGE_BITS);
+		IMappedPage page = this.pageFactory.acquirePage(pageIndex);
+		try {
+			int offset = entryOffset(indexPageIndex);
+			page.putLong(offset, 0L);
+			page.putLong(offset + 8, max);
+			page.putLong(offset, min);
+			page.setDirty(offset, 1 << TIMESTAMP_INDEX_ENTRY_LENGTH_BITS);
+		} finally {
+			this.pageFactory.releasePage(pageIndex);
+		}
+	}
+
+	private static int entryOffset(long indexPageIndex) {
+		return (int) Calculator.mul(Calculator.mod(indexPageIndex, TIMESTAMP_INDEX_ENTRIES_PER_PAGE_BITS), TIMESTAMP_INDEX_ENTRY_LENGTH_BITS);
+	}
+
+	/**
+	 * Delete the timestamp index pages only covering index pages before an index page
+	 */
+	void deleteBefore(long indexPageIndex) throws IOException {
+		long pageIndex = Calculator.div(indexPageIndex, TIMESTAMP_INDEX_ENTRIES_PER_PAGE_BITS);
+		if (pageIndex > 0L) {
+			this.pageFactory.deletePagesBeforePageIndex(pageIndex);
+		}
+	}
+
+	synchronized void deleteAll() throws IOException {
+		this.headIndexPageIndex = -1L;
+		this.pageFactory.deleteAllPages();
+	}
+
+	void flush() {
+		synchronized (this) {
+			try {
+				writeHead();
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+		this.pageFactory.flush();
+	}
+
+	synchronized void releaseCachedPages() throws IOException {
+		writeHead();
+		this.headIndexPageIndex = -1L;
+		this.pageFactory.releaseCachedPages();
+	}
+}
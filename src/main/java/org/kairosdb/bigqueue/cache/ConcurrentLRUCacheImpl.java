@@ -0,0 +1,333 @@
+package org.kairosdb.bigqueue.cache;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+import org.kairosdb.bigqueue.utils.Clock;
+import org.kairosdb.bigqueue.utils.DaemonThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Lock free LRU cache implementation for highly concurrent readers,
+ * supporting time to live and reference counting for entry like {@link LRUCacheImpl}.
+ *
+ * get and release only touch the atomic reference counter of their entry, no cache wide lock is taken.
+ * Expired entries are swept in the background, at most once per sweep interval, instead of on every put.
+ * An entry is only evicted by winning the transition of its reference counter from 0 to evicted,
+ * so a get either acquires the entry before the eviction or misses it, and never waits for the sweep.
+ * A removed entry that is still referenced is only closed by its last release, see {@link #remove(Object)}.
+ *
+ * @param <K> key
+ * @param <V> value
+ */
+public class ConcurrentLRUCacheImpl<K, V extends Closeable> implements ILRUCache<K, V> {
+
+	private final static Logger logger = LoggerFactory.getLogger(ConcurrentLRUCacheImpl.class);
+
+	public static final long DEFAULT_TTL = LRUCacheImpl.DEFAULT_TTL; // milliseconds
+	// milliseconds, minimum delay between two sweeps
+	public static final long SWEEP_INTERVAL = 1000;
+
+	// reference count of an evicted entry
+	private static final long EVICTED = -1L;
+
+	// sweeps and closes of all caches
+	private static final ExecutorService sweeper = Executors.newSingleThreadExecutor(new DaemonThreadFactory("bigqueue-cache-sweeper"));
+
+	private final ConcurrentMap<K, Entry<K, V>> map = new ConcurrentHashMap<K, Entry<K, V>>();
+	// removed entries still referenced, by value, closed by their last release
+	private final ConcurrentMap<V, Entry<K, V>> doomed = new ConcurrentHashMap<V, Entry<K, V>>();
+	private final Clock clock;
+	private final long sweepInterval;
+	private final AtomicLong lastSweepTime;
+	private final AtomicBoolean sweepScheduled = new AtomicBoolean(false);
+
+	public ConcurrentLRUCacheImpl(Clock clock) {
+		this(clock, SWEEP_INTERVAL);
+	}
+
+	ConcurrentLRUCacheImpl(Clock clock, long sweepInterval) {
+		this.clock = clock;
+		this.sweepInterval = sweepInterval;
+		this.lastSweepTime = new AtomicLong(clock.getTime());
+	}
+
+	@Override
+	public void put(K key, V value, long ttlInMilliSeconds) {
+		Entry<K, V> entry = new Entry<K, V>(key, value, clock.getTime(), ttlInMilliSeconds);
+		Entry<K, V> old = map.put(key, entry);
+		if (old != null && old.value != value && evictRemoved(old)) {
+			// replaced without any reference left
+			sweeper.execute(() -> closeQuietly(old.value));
+		}
+		maybeSweep();
+	}
+
+	@Override
+	public void put(K key, V value) {
+		this.put(key, value, DEFAULT_TTL);
+	}
+
+	@Override
+	public V get(K key) {
+		Entry<K, V> entry = map.get(key);
+		if (entry == null || !entry.acquire()) {
+			return null; // missing or being evicted
+		}
+		// Since the resource is acquired by calling thread,
+		// let's update last accessed timestamp
+		entry.lastAccessedTimestamp = clock.getTime();
+		return entry.value;
+	}
+
+	/**
+	 * Release a reference of the cached entry of a key, or of a removed entry of the key still referenced
+	 * if the key has no cached entry. Holders of a value which may be removed and put again meanwhile
+	 * release it with {@link #release(Object, Closeable)}.
+	 */
+	@Override
+	public void release(K key) {
+		Entry<K, V> entry = map.get(key);
+		if (entry != null) {
+			entry.release();
+		} else if (!doomed.isEmpty()) {
+			for(Entry<K, V> doomedEntry : doomed.values()) {
+				if (doomedEntry.key.equals(key)) {
+					releaseDoomed(doomedEntry);
+					break;
+				}
+			}
+		}
+		maybeSweep();
+	}
+
+	/**
+	 * Release a reference of a value, whether it is still cached or was removed since it was acquired
+	 *
+	 * @param key the key the value was acquired with
+	 * @param value the acquired value
+	 */
+	public void release(K key, V value) {
+		Entry<K, V> entry = map.get(key);
+		if (entry != null && entry.value == value) {
+			entry.release();
+		} else {
+			Entry<K, V> doomedEntry = doomed.get(value);
+			if (doomedEntry != null) {
+				releaseDoomed(doomedEntry);
+			}
+		}
+		maybeSweep();
+	}
+
+	// the last release of a removed entry closes it
+	private void releaseDoomed(Entry<K, V> entry) {
+		if (entry.release() == 0 && entry.evict()) {
+			doomed.remove(entry.value, entry);
+			closeQuietly(entry.value);
+		}
+	}
+
+	// schedule a sweep if the last one is older than the sweep interval, cheap enough to call on every put and release
+	private void maybeSweep() {
+		long lastSweep = lastSweepTime.get();
+		long now = clock.getTime();
+		if (now - lastSweep >= sweepInterval && lastSweepTime.compareAndSet(lastSweep, now)
+				&& sweepScheduled.compareAndSet(false, true)) {
+			sweeper.execute(() -> {
+				sweepScheduled.set(false);
+				sweep();
+			});
+		}
+	}
+
+	/**
+	 * Evict and close the expired entries without reference, runs on the sweeper thread
+	 *
+	 * @return the number of evicted entries
+	 */
+	int sweep() {
+		List<V> valuesToClose = new ArrayList<V>();
+		long currentTS = clock.getTime();
+		for(Map.Entry<K, Entry<K, V>> mapEntry : map.entrySet()) {
+			Entry<K, V> entry = mapEntry.getValue();
+			if (currentTS - entry.lastAccessedTimestamp > entry.ttl && entry.evict()) {
+				map.remove(mapEntry.getKey(), entry);
+				valuesToClose.add(entry.value);
+			}
+		}
+		for(V value : valuesToClose) {
+			closeQuietly(value);
+		}
+		if (valuesToClose.size() > 0 && logger.isDebugEnabled()) {
+			int size = valuesToClose.size();
+			logger.debug("Sweep closed " + size + (size > 1 ? " resources.":" resource."));
+		}
+		return valuesToClose.size();
+	}
+
+	/**
+	 * Visit the entries without reference, with their last accessed timestamp
+	 *
+	 * @param visitor receives the key and the last accessed timestamp of each entry
+	 */
+	public void forEachIdle(BiConsumer<K, Long> visitor) {
+		for(Map.Entry<K, Entry<K, V>> mapEntry : map.entrySet()) {
+			Entry<K, V> entry = mapEntry.getValue();
+			if (entry.refCount.get() == 0) {
+				visitor.accept(mapEntry.getKey(), entry.lastAccessedTimestamp);
+			}
+		}
+	}
+
+	/**
+	 * Evict an entry before it expires and close it synchronously, only if it has no reference
+	 *
+	 * @param key the key of the cached resource
+	 * @return true if the entry was evicted
+	 */
+	public boolean evictIdle(K key) {
+		Entry<K, V> entry = map.get(key);
+		if (entry == null || !entry.evict()) {
+			return false;
+		}
+		map.remove(key, entry);
+		closeQuietly(entry.value);
+		return true;
+	}
+
+	private static void closeQuietly(Closeable value) {
+		try {
+			if (value != null) {
+				value.close();
+			}
+		} catch (IOException e) {
+			// close quietly
+		}
+	}
+
+	/**
+	 * Remove the entry of a key, it is closed synchronously if it has no reference,
+	 * otherwise it is closed by the release of its last reference
+	 */
+	@Override
+	public V remove(K key) throws IOException {
+		Entry<K, V> entry = map.remove(key);
+		if (entry == null) {
+			return null;
+		}
+		if (evictRemoved(entry)) {
+			// close synchronously
+			entry.value.close();
+		}
+		return entry.value;
+	}
+
+	// evict an entry taken out of the map, returns true if the caller closes it, false if it is still referenced
+	// and left to the release of its last reference, or if it was already evicted by a sweep which closes it
+	private boolean evictRemoved(Entry<K, V> entry) {
+		if (entry.evict()) {
+			return true;
+		}
+		if (entry.isEvicted()) {
+			return false;
+		}
+		doomed.put(entry.value, entry);
+		// the last reference may have been released before the entry was found doomed
+		if (entry.evict()) {
+			doomed.remove(entry.value, entry);
+			return true;
+		}
+		if (entry.isEvicted()) {
+			doomed.remove(entry.value, entry); // evicted meanwhile by a sweep or by its last release
+		}
+		return false;
+	}
+
+	@Override
+	public void removeAll() throws IOException {
+		for(K key : map.keySet()) {
+			this.remove(key);
+		}
+	}
+
+	@Override
+	public int size() {
+		return map.size();
+	}
+
+	// for testing
+	int getDoomedSize() {
+		return doomed.size();
+	}
+
+	@Override
+	public Collection<V> getValues() {
+		Collection<V> col = new ArrayList<V>();
+		for(Entry<K, V> entry : map.values()) {
+			col.add(entry.value);
+		}
+		return col;
+	}
+
+	private static class Entry<K, V> {
+		final K key;
+		final V value;
+		final long ttl;
+		volatile long lastAccessedTimestamp; // last accessed time
+		// number of references, the put counts as one, EVICTED once evicted
+		final AtomicLong refCount = new AtomicLong(1);
+
+		Entry(K key, V value, long ts, long ttl) {
+			this.key = key;
+			this.value = value;
+			this.lastAccessedTimestamp = ts;
+			this.ttl = ttl;
+		}
+
+		boolean acquire() {
+			while (true) {
+				long count = refCount.get();
+				if (count == EVICTED) {
+					return false;
+				}
+				if (refCount.compareAndSet(count, count + 1)) {
+					return true;
+				}
+			}
+		}
+
+		// returns the references left, -1 on an unbalanced release or once evicted
+		long release() {
+			while (true) {
+				long count = refCount.get();
+				if (count <= 0) {
+					return -1L; // unbalanced release or evicted
+				}
+				if (refCount.compareAndSet(count, count - 1)) {
+					return count - 1;
+				}
+			}
+		}
+
+		boolean evict() {
+			return refCount.compareAndSet(0, EVICTED);
+		}
+
+		boolean isEvicted() {
+			return refCount.get() == EVICTED;
+		}
+	}
+}
@@ -56,7 +56,8 @@ public interface ILRUCache<K, V extends Closeable> {
 	public void release(final K key);
 	
 	/**
-	 * Remove the resource with specific key from the cache and close it synchronously afterwards.
+	 * Remove the resource with specific key from the cache and close it synchronously afterwards,
+	 * a reference counting implementation may defer the close of a resource still referenced to its last release.
 	 * 
 	 * @param key the key of the cached resource
 	 * @return the removed resource if exists
@@ -16,6 +16,7 @@ import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.kairosdb.bigqueue.utils.Clock;
+import org.kairosdb.bigqueue.utils.DaemonThreadFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -43,7 +44,8 @@ public class LRUCacheImpl<K, V extends Closeable> implements ILRUCache<K, V> {
     private final Lock readLock = lock.readLock();
     private final Lock writeLock = lock.writeLock(); 
 	
-	private static final ExecutorService executorService = Executors.newCachedThreadPool();
+	// a single closer thread shared by all caches
+	private static final ExecutorService executorService = Executors.newSingleThreadExecutor(new DaemonThreadFactory("bigqueue-cache-closer"));
 	
 	private final Set<K> keysToRemove = new HashSet<K>();
 	private final Clock clock;
@@ -0,0 +1,73 @@
+package org.kairosdb.bigqueue.codec;
+
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflate codec, slower than LZ4 but with a better compression ratio.
+ */
+class DeflateCodec implements ItemCodec {
+
+	static final int ID = 2;
+
+	@Override
+	public int getId() {
+		return ID;
+	}
+
+	@Override
+	public String getName() {
+		return "deflate";
+	}
+
+	@Override
+	public int maxCompressedLength(int length) {
+		// zlib deflateBound plus the zlib header and trailer
+		return length + (length >> 12) + (length >> 14) + (length >> 25) + 13 + 6;
+	}
+
+	@Override
+	public int compress(byte[] src, int srcOff, int srcLen, byte[] dest, int destOff) {
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		try {
+			deflater.setInput(src, srcOff, srcLen);
+			deflater.finish();
+			int length = 0;
+			while (!deflater.finished()) {
+				int written = deflater.deflate(dest, destOff + length, dest.length - destOff - length);
+				if (written == 0 && destOff + length == dest.length) {
+					throw new IllegalStateException("compressed item exceeds " + maxCompressedLength(srcLen) + " bytes");
+				}
+				length += written;
+			}
+			return length;
+		} finally {
+			deflater.end();
+		}
+	}
+
+	@Override
+	public void decompress(byte[] src, int srcOff, int srcLen, byte[] dest, int destOff, int originalLength) throws IOException {
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(src, srcOff, srcLen);
+			int length = 0;
+			while (length < originalLength) {
+				int read = inflater.inflate(dest, destOff + length, originalLength - length);
+				if (read == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+					break;
+				}
+				length += read;
+			}
+			if (length != originalLength) {
+				throw new IOException("corrupted deflate item, expected " + originalLength + " bytes");
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("corrupted deflate item", e);
+		} finally {
+			inflater.end();
+		}
+	}
+}
@@ -0,0 +1,61 @@
+package org.kairosdb.bigqueue.codec;
+
+import java.io.IOException;
+
+/**
+ * Compression codec applied to the items of a big array,
+ *
+ * the id of the codec is recorded with every item, so an id must never be reused for a different format.
+ * Implementations must be thread safe.
+ *
+ * @see ItemCodecs
+ */
+public interface ItemCodec {
+
+	/**
+	 * Id recorded with every item compressed by this codec, 0 is reserved for uncompressed items
+	 *
+	 * @return the codec id, between 1 and 127
+	 */
+	int getId();
+
+	/**
+	 * Name of the codec, for logging only
+	 *
+	 * @return the codec name
+	 */
+	String getName();
+
+	/**
+	 * Upper bound of the compressed length of an item
+	 *
+	 * @param length length in bytes of the uncompressed item
+	 * @return maximum length in bytes of the compressed item
+	 */
+	int maxCompressedLength(int length);
+
+	/**
+	 * Compress an item
+	 *
+	 * @param src array holding the item
+	 * @param srcOff offset of the item
+	 * @param srcLen length of the item
+	 * @param dest destination array, with at least maxCompressedLength(srcLen) bytes available from destOff
+	 * @param destOff offset where to write the compressed item
+	 * @return length in bytes of the compressed item
+	 */
+	int compress(byte[] src, int srcOff, int srcLen, byte[] dest, int destOff);
+
+	/**
+	 * Decompress an item
+	 *
+	 * @param src array holding the compressed item
+	 * @param srcOff offset of the compressed item
+	 * @param srcLen length of the compressed item
+	 * @param dest destination array, with at least originalLength bytes available from destOff
+	 * @param destOff offset where to write the item
+	 * @param originalLength length in bytes of the uncompressed item
+	 * @throws IOException if the compressed item is corrupted
+	 */
+	void decompress(byte[] src, int srcOff, int srcLen, byte[] dest, int destOff, int originalLength) throws IOException;
+}
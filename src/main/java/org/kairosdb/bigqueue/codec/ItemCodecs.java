@@ -0,0 +1,62 @@
+package org.kairosdb.bigqueue.codec;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Registry of the item codecs known to the big arrays,
+ *
+ * built-in codecs are registered from the start, custom codecs must be registered
+ * before opening an array holding items compressed with them.
+ */
+public class ItemCodecs {
+
+	// id of uncompressed items
+	public static final int NONE_ID = 0;
+
+	public static final ItemCodec LZ4 = new Lz4Codec();
+
+	public static final ItemCodec DEFLATE = new DeflateCodec();
+
+	private static final ConcurrentMap<Integer, ItemCodec> codecs = new ConcurrentHashMap<Integer, ItemCodec>();
+
+	static {
+		register(LZ4);
+		register(DEFLATE);
+	}
+
+	private ItemCodecs() {
+	}
+
+	/**
+	 * Register a custom codec
+	 *
+	 * @param codec the codec, its id must not be used by another codec
+	 */
+	public static void register(ItemCodec codec) {
+		int id = codec.getId();
+		if (id <= NONE_ID || id > Byte.MAX_VALUE) {
+			throw new IllegalArgumentException("invalid codec id : " + id);
+		}
+		ItemCodec found = codecs.putIfAbsent(id, codec);
+		if (found != null && found != codec) {
+			throw new IllegalArgumentException("codec id " + id + " is already used by " + found.getName());
+		}
+	}
+
+	/**
+	 * Find the codec of an item
+	 *
+	 * @param id codec id recorded with the item
+	 * @return the codec
+	 * @throws IOException if no codec is registered with this id
+	 */
+	public static ItemCodec forId(int id) throws IOException {
+		ItemCodec codec = codecs.get(id);
+		if (codec == null) {
+			throw new IOException("unknown item codec id : " + id);
+		}
+		return codec;
+	}
+}
@@ -0,0 +1,198 @@
+package org.kairosdb.bigqueue.codec;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Pure java implementation of the LZ4 block format,
+ *
+ * a fast single pass compressor using a hash table of recent 4 byte sequences, without frame or checksum.
+ */
+class Lz4Codec implements ItemCodec {
+
+	static final int ID = 1;
+
+	private static final int MIN_MATCH = 4;
+	// the last 5 bytes are always literals
+	private static final int LAST_LITERALS = 5;
+	// a match can't start within the last 12 bytes
+	private static final int MF_LIMIT = 12;
+	private static final int MAX_DISTANCE = 65535;
+	private static final int HASH_LOG = 12;
+	private static final int RUN_MASK = 15;
+
+	private static final ThreadLocal<int[]> hashTable = new ThreadLocal<int[]>() {
+		@Override
+		protected int[] initialValue() {
+			return new int[1 << HASH_LOG];
+		}
+	};
+
+	@Override
+	public int getId() {
+		return ID;
+	}
+
+	@Override
+	public String getName() {
+		return "lz4";
+	}
+
+	@Override
+	public int maxCompressedLength(int length) {
+		return length + length / 255 + 16;
+	}
+
+	@Override
+	public int compress(byte[] src, int srcOff, int srcLen, byte[] dest, int destOff) {
+		int srcEnd = srcOff + srcLen;
+		int dp = destOff;
+		int anchor = srcOff;
+
+		if (srcLen > MF_LIMIT) {
+			// small items use a smaller part of the table, so it is cheap to clear
+			int hashLog = Math.max(8, Math.min(HASH_LOG, 32 - Integer.numberOfLeadingZeros(srcLen)));
+			int[] table = hashTable.get();
+			Arrays.fill(table, 0, 1 << hashLog, -1);
+			int matchLimit = srcEnd - LAST_LITERALS;
+			int mfLimit = srcEnd - MF_LIMIT;
+			int sp = srcOff;
+
+			while (sp < mfLimit) {
+				int sequence = readInt(src, sp);
+				int h = hash(sequence, hashLog);
+				int ref = table[h];
+				table[h] = sp;
+				if (ref < 0 || sp - ref > MAX_DISTANCE || readInt(src, ref) != sequence) {
+					sp++;
+					continue;
+				}
+
+				// extend the match backwards over pending literals
+				while (sp > anchor && ref > srcOff && src[sp - 1] == src[ref - 1]) {
+					sp--;
+					ref--;
+				}
+				int matchLen = MIN_MATCH;
+				while (sp + matchLen < matchLimit && src[sp + matchLen] == src[ref + matchLen]) {
+					matchLen++;
+				}
+
+				dp = writeLiterals(src, anchor, sp - anchor, matchLen - MIN_MATCH, dest, dp);
+				dest[dp++] = (byte) (sp - ref);
+				dest[dp++] = (byte) ((sp - ref) >>> 8);
+				if (matchLen - MIN_MATCH >= RUN_MASK) {
+					dp = writeLength(matchLen - MIN_MATCH - RUN_MASK, dest, dp);
+				}
+
+				sp += matchLen;
+				anchor = sp;
+			}
+		}
+
+		// last sequence is literals only
+		dp = writeLiterals(src, anchor, srcEnd - anchor, 0, dest, dp);
+		return dp - destOff;
+	}
+
+	// write the token and the literals of a sequence
+	private static int writeLiterals(byte[] src, int literalOff, int literalLen, int matchLenCode, byte[] dest, int dp) {
+		int token = (Math.min(literalLen, RUN_MASK) << 4) | Math.min(matchLenCode, RUN_MASK);
+		dest[dp++] = (byte) token;
+		if (literalLen >= RUN_MASK) {
+			dp = writeLength(literalLen - RUN_MASK, dest, dp);
+		}
+		System.arraycopy(src, literalOff, dest, dp, literalLen);
+		return dp + literalLen;
+	}
+
+	private static int writeLength(int length, byte[] dest, int dp) {
+		while (length >= 255) {
+			dest[dp++] = (byte) 255;
+			length -= 255;
+		}
+		dest[dp++] = (byte) length;
+		return dp;
+	}
+
+	private static int readInt(byte[] buf, int off) {
+		return (buf[off] & 0xFF) | (buf[off + 1] & 0xFF) << 8 | (buf[off + 2] & 0xFF) << 16 | (buf[off + 3] & 0xFF) << 24;
+	}
+
+	private static int hash(int sequence, int hashLog) {
+		return (sequence * -1640531535) >>> (32 - hashLog);
+	}
+
+	@Override
+	public void decompress(byte[] src, int srcOff, int srcLen, byte[] dest, int destOff, int originalLength) throws IOException {
+		int sp = srcOff;
+		int srcEnd = srcOff + srcLen;
+		int dp = destOff;
+		int destEnd = destOff + originalLength;
+
+		while (true) {
+			if (sp >= srcEnd) {
+				throw new IOException("corrupted lz4 item, unexpected end of input");
+			}
+			int token = src[sp++] & 0xFF;
+
+			// literals
+			int literalLen = token >>> 4;
+			if (literalLen == RUN_MASK) {
+				int b;
+				do {
+					if (sp >= srcEnd) {
+						throw new IOException("corrupted lz4 item, unexpected end of input");
+					}
+					b = src[sp++] & 0xFF;
+					literalLen += b;
+				} while (b == 255);
+			}
+			if (literalLen < 0 || literalLen > srcEnd - sp || literalLen > destEnd - dp) {
+				throw new IOException("corrupted lz4 item, literals out of bounds");
+			}
+			System.arraycopy(src, sp, dest, dp, literalLen);
+			sp += literalLen;
+			dp += literalLen;
+			if (sp == srcEnd) {
+				break; // last sequence
+			}
+
+			// match
+			if (srcEnd - sp < 2) {
+				throw new IOException("corrupted lz4 item, unexpected end of input");
+			}
+			int offset = (src[sp] & 0xFF) | (src[sp + 1] & 0xFF) << 8;
+			sp += 2;
+			int matchLen = token & RUN_MASK;
+			if (matchLen == RUN_MASK) {
+				int b;
+				do {
+					if (sp >= srcEnd) {
+						throw new IOException("corrupted lz4 item, unexpected end of input");
+					}
+					b = src[sp++] & 0xFF;
+					matchLen += b;
+				} while (b == 255);
+			}
+			matchLen += MIN_MATCH;
+			int ref = dp - offset;
+			if (offset == 0 || ref < destOff || matchLen < 0 || matchLen > destEnd - dp) {
+				throw new IOException("corrupted lz4 item, match out of bounds");
+			}
+			if (offset >= matchLen) {
+				System.arraycopy(dest, ref, dest, dp, matchLen);
+				dp += matchLen;
+			} else {
+				// overlapping match repeats the last offset bytes
+				for (int i = 0; i < matchLen; i++) {
+					dest[dp++] = dest[ref++];
+				}
+			}
+		}
+
+		if (dp != destEnd) {
+			throw new IOException("corrupted lz4 item, expected " + originalLength + " bytes but got " + (dp - destOff));
+		}
+	}
+}
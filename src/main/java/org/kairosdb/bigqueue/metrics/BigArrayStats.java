@@ -9,4 +9,6 @@ public interface BigArrayStats
 	LongCollector appendData(@Key("name") String arrayName);
 
 	LongCollector getData(@Key("name") String arrayName);
+
+	LongCollector groupCommitSize(@Key("name") String arrayName);
 }
@@ -0,0 +1,8 @@
+package org.kairosdb.bigqueue.metrics;
+
+import org.kairosdb.metrics4j.collectors.LongCollector;
+
+public interface PageStats
+{
+	LongCollector budgetEvictions();
+}
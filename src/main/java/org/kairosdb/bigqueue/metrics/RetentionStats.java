@@ -0,0 +1,11 @@
+package org.kairosdb.bigqueue.metrics;
+
+import org.kairosdb.metrics4j.annotation.Key;
+import org.kairosdb.metrics4j.collectors.LongCollector;
+
+public interface RetentionStats
+{
+	LongCollector reclaimedBytes(@Key("name") String queueName);
+
+	LongCollector retentionFailures(@Key("name") String queueName);
+}
@@ -11,21 +11,104 @@ import java.nio.ByteBuffer;
 public interface IMappedPage {
 	
 	/**
-	 * Get a thread local copy of the mapped page buffer
+	 * Read a byte at an absolute offset of the page
 	 * 
-	 * @param position start position(relative to the start position of source mapped page buffer) of the thread local buffer
-	 * @return a byte buffer with specific position as start position.
+	 * @param offset offset from the start of the page
+	 * @return the byte
 	 */
-	ByteBuffer getLocal(int position);
+	byte getByte(int offset);
 	
 	/**
-	 * Get data from a thread local copy of the mapped page buffer
+	 * Read an int at an absolute offset of the page
 	 * 
-	 * @param position start position(relative to the start position of source mapped page buffer) of the thread local buffer
-	 * @param length the length to fetch
-	 * @return byte data
+	 * @param offset offset from the start of the page
+	 * @return the int
 	 */
-	public byte[] getLocal(int position, int length);
+	int getInt(int offset);
+	
+	/**
+	 * Read a long at an absolute offset of the page
+	 * 
+	 * @param offset offset from the start of the page
+	 * @return the long
+	 */
+	long getLong(int offset);
+	
+	/**
+	 * Write a byte at an absolute offset of the page
+	 * 
+	 * @param offset offset from the start of the page
+	 * @param value the byte to write
+	 */
+	void putByte(int offset, byte value);
+	
+	/**
+	 * Write an int at an absolute offset of the page
+	 * 
+	 * @param offset offset from the start of the page
+	 * @param value the int to write
+	 */
+	void putInt(int offset, int value);
+	
+	/**
+	 * Write a long at an absolute offset of the page
+	 * 
+	 * @param offset offset from the start of the page
+	 * @param value the long to write
+	 */
+	void putLong(int offset, long value);
+	
+	/**
+	 * Copy data of the page into an array
+	 * 
+	 * @param offset offset from the start of the page
+	 * @param dst the destination array
+	 * @param dstOffset offset in the destination array
+	 * @param length the length to copy
+	 */
+	void copyTo(int offset, byte[] dst, int dstOffset, int length);
+	
+	/**
+	 * Copy data of the page into a buffer, at the position of the buffer which is advanced by length
+	 * 
+	 * @param offset offset from the start of the page
+	 * @param dst the destination buffer
+	 * @param length the length to copy
+	 */
+	void copyTo(int offset, ByteBuffer dst, int length);
+	
+	/**
+	 * Copy data of an array into the page
+	 * 
+	 * @param offset offset from the start of the page
+	 * @param src the source array
+	 * @param srcOffset offset in the source array
+	 * @param length the length to copy
+	 */
+	void copyFrom(int offset, byte[] src, int srcOffset, int length);
+	
+	/**
+	 * Copy the remaining data of a buffer into the page, the position of the buffer is advanced to its limit
+	 * 
+	 * @param offset offset from the start of the page
+	 * @param src the source buffer
+	 */
+	void copyFrom(int offset, ByteBuffer src);
+	
+	/**
+	 * Get a view of a region of the page for readers and writers working on buffers, e.g. zero copy reads,
+	 * the view is only valid while the page is in use
+	 * 
+	 * @param offset offset from the start of the page
+	 * @param length length of the region
+	 * @return a new buffer with position 0 and limit length
+	 */
+	ByteBuffer slice(int offset, int length);
+	
+	/**
+	 * @return the size of the page in bytes
+	 */
+	int size();
 	
 	/**
 	 * Check if this mapped page has been closed or not
@@ -46,6 +129,15 @@ public interface IMappedPage {
 	 * @param dirty dirty flag to set
 	 */
 	void setDirty(boolean dirty);
+
+	/**
+	 * Mark a region of the mapped page as changed, only the changed regions are forced by the next flush
+	 * on runtimes supporting ranged force
+	 *
+	 * @param position start of the changed region
+	 * @param length length of the changed region
+	 */
+	void setDirty(int position, int length);
 	
 	/**
 	 * The back page file name of the mapped page
@@ -29,6 +29,15 @@ public interface IMappedPageFactory {
 	 */
 	void releasePage(long index);
 	
+	/**
+	 * Return a specific mapped page to the factory,
+	 * also releases a page deleted or dropped by {@link #releaseCachedPages()} since it was acquired,
+	 * such a page stays mapped until its last release.
+	 * 
+	 * @param page the page returned by {@link #acquirePage(long)}
+	 */
+	void releasePage(IMappedPage page);
+	
 	/**
 	 * Current set page size, when creating pages, the factory will
 	 * only create pages with this size.
@@ -79,29 +88,14 @@ public interface IMappedPageFactory {
 	 */
 	void releaseCachedPages() throws IOException;
 	
-	/**
-	 * Get all indexes of pages with last modified timestamp before the specific timestamp.
-	 * 
-	 * @param timestamp the timestamp to check
-	 * @return a set of indexes
-	 */
-	Set<Long> getPageIndexSetBefore(long timestamp);
-	
-	/**
-	 * Delete all pages with last modified timestamp before the specific timestamp.
-	 * 
-	 * @param timestamp the timestamp to check
-	 * @throws IOException exception thrown if there was any IO error during the delete operation.
-	 */
-	void deletePagesBefore(long timestamp) throws IOException;
-
     /**
      * Delete all pages before the specific index
      *
      * @param pageIndex page file index to check
+     * @return total size of the deleted page files
      * @throws IOException exception thrown if there was any IO error during the delete operation.
      */
-    void deletePagesBeforePageIndex(long pageIndex) throws IOException;
+    long deletePagesBeforePageIndex(long pageIndex) throws IOException;
 
 	/**
 	 * Get last modified timestamp of page file index
@@ -111,14 +105,6 @@ public interface IMappedPageFactory {
 	 */
 	long getPageFileLastModifiedTime(long index);
 	
-	/**
-	 * Get index of a page file with last modified timestamp closest to specific timestamp.
-	 * 
-	 * @param timestamp the timestamp to check
-	 * @return a page index
-	 */
-	long getFirstPageIndexBefore(long timestamp);
-	
 	/**
 	 * For test, get a list of indexes of current existing back files.
 	 * 
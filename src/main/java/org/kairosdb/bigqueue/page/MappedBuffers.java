@@ -0,0 +1,130 @@
+package org.kairosdb.bigqueue.page;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+
+/**
+ * Unmapping, forcing and absolute bulk access of mapped buffers, Java 8 backend
+ *
+ * the JDK 17 backend with the same signatures lives in src/main/java17 and replaces this class
+ * on newer runtimes through the multi-release jar.
+ * On Java 8 the buffer cleaner is reached by reflection, on later runtimes loading this class,
+ * e.g. from a repackaged jar, the cleaner is invoked through {@code Unsafe.invokeCleaner} by reflection.
+ * Without either a buffer is only unmapped by the garbage collector.
+ * Java 8 has no absolute bulk access, so it goes through a short lived duplicate of the buffer.
+ */
+final class MappedBuffers {
+
+	private static final Method directBufferCleaner;
+	private static final Method directBufferCleanerClean;
+	private static final Object unsafe;
+	private static final Method unsafeInvokeCleaner;
+
+	static {
+		Method directBufferCleanerX = null;
+		Method directBufferCleanerCleanX = null;
+		Object unsafeX = null;
+		Method unsafeInvokeCleanerX = null;
+		try {
+			directBufferCleanerX = Class.forName("java.nio.DirectByteBuffer").getMethod("cleaner");
+			directBufferCleanerX.setAccessible(true);
+			directBufferCleanerCleanX = Class.forName("sun.misc.Cleaner").getMethod("clean");
+			directBufferCleanerCleanX.setAccessible(true);
+		} catch (Exception e) {
+			directBufferCleanerX = null;
+			directBufferCleanerCleanX = null;
+			try {
+				Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+				Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+				theUnsafe.setAccessible(true);
+				unsafeX = theUnsafe.get(null);
+				unsafeInvokeCleanerX = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+			} catch (Exception e2) {
+				unsafeX = null;
+				unsafeInvokeCleanerX = null;
+			}
+		}
+		directBufferCleaner = directBufferCleanerX;
+		directBufferCleanerClean = directBufferCleanerCleanX;
+		unsafe = unsafeX;
+		unsafeInvokeCleaner = unsafeInvokeCleanerX;
+	}
+
+	private MappedBuffers() {
+	}
+
+	/**
+	 * @return true if buffers are unmapped deterministically by {@link #unmap(MappedByteBuffer)}
+	 */
+	static boolean isUnmapSupported() {
+		return directBufferCleanerClean != null || unsafeInvokeCleaner != null;
+	}
+
+	/**
+	 * Release the mapping of a buffer, the buffer and all its duplicates must not be used afterwards
+	 *
+	 * @param buffer the mapped buffer, may be null
+	 */
+	static void unmap(MappedByteBuffer buffer) {
+		if (buffer == null) return;
+		try {
+			if (directBufferCleanerClean != null) {
+				Object cleaner = directBufferCleaner.invoke(buffer);
+				if (cleaner != null) {
+					directBufferCleanerClean.invoke(cleaner);
+				}
+			} else if (unsafeInvokeCleaner != null) {
+				unsafeInvokeCleaner.invoke(unsafe, buffer);
+			}
+		} catch (Exception e) {
+			// silently ignore exception, the buffer is unmapped by the GC
+		}
+	}
+
+	/**
+	 * Write the changes of a region of a buffer to disk, Java 8 can only force the whole buffer
+	 *
+	 * @param buffer the mapped buffer
+	 * @param index start of the region
+	 * @param length length of the region
+	 */
+	static void force(MappedByteBuffer buffer, int index, int length) {
+		buffer.force();
+	}
+
+	/**
+	 * @return a new view of [index, index + length) of the buffer
+	 */
+	static ByteBuffer slice(ByteBuffer buffer, int index, int length) {
+		ByteBuffer dup = buffer.duplicate();
+		dup.limit(index + length);
+		dup.position(index);
+		return dup.slice();
+	}
+
+	static void get(ByteBuffer buffer, int index, byte[] dst, int offset, int length) {
+		ByteBuffer dup = buffer.duplicate();
+		dup.position(index);
+		dup.get(dst, offset, length);
+	}
+
+	// copies length bytes at the position of dst, advancing it
+	static void get(ByteBuffer buffer, int index, ByteBuffer dst, int length) {
+		dst.put(slice(buffer, index, length));
+	}
+
+	static void put(ByteBuffer buffer, int index, byte[] src, int offset, int length) {
+		ByteBuffer dup = buffer.duplicate();
+		dup.position(index);
+		dup.put(src, offset, length);
+	}
+
+	// copies the remaining bytes of src, advancing its position to its limit
+	static void put(ByteBuffer buffer, int index, ByteBuffer src) {
+		ByteBuffer dup = buffer.duplicate();
+		dup.position(index);
+		dup.put(src);
+	}
+}
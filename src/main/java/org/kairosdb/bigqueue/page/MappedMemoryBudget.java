@@ -0,0 +1,170 @@
+package org.kairosdb.bigqueue.page;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.kairosdb.bigqueue.metrics.PageStats;
+import org.kairosdb.bigqueue.utils.DaemonThreadFactory;
+import org.kairosdb.metrics4j.MetricSourceManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Process wide budget of mapped memory shared by all page factories,
+ *
+ * every mapped page counts against the budget until it is unmapped. Once a new mapping exceeds the budget,
+ * unpinned pages of all factories are evicted before their ttl expires, lowest eviction priority first
+ * and least recently used first within a priority, until the usage is back under the low watermark.
+ * The eviction runs on a background thread, so mapping a page never waits for the scan of the idle pages
+ * or for the flush of an evicted dirty page, and the usage may exceed the budget until it caught up.
+ * Pinned pages are never evicted, so the budget can be exceeded while they are in use.
+ *
+ * @see MappedPageFactoryImpl#setEvictionPriority(int)
+ */
+public final class MappedMemoryBudget {
+
+	private final static Logger logger = LoggerFactory.getLogger(MappedMemoryBudget.class);
+	private final PageStats stats = MetricSourceManager.getSource(PageStats.class);
+
+	private static final MappedMemoryBudget instance = new MappedMemoryBudget();
+
+	// eviction priorities of the page factories of the queues
+	public static final int DATA_PAGE_PRIORITY = 0;
+	public static final int INDEX_PAGE_PRIORITY = 1;
+	public static final int META_PAGE_PRIORITY = 2;
+	// percentage of the budget the background eviction brings the usage down to, so it does not run on every new mapping
+	public static final int LOW_WATERMARK_PERCENT = 90;
+
+	// evictions of all factories
+	private static final ExecutorService evictor = Executors.newSingleThreadExecutor(new DaemonThreadFactory("bigqueue-budget-evictor"));
+
+	// 0 when not limited
+	private volatile long maxMappedBytes = 0L;
+	private final AtomicLong mappedBytes = new AtomicLong();
+	// factories with mapped pages
+	private final Set<MappedPageFactoryImpl> factories = ConcurrentHashMap.newKeySet();
+	// a single thread evicts at a time
+	private final Object evictionLock = new Object();
+	private final AtomicBoolean evictionScheduled = new AtomicBoolean(false);
+
+	private MappedMemoryBudget() {
+		MetricSourceManager.addSource(PageStats.class.getName(), "mappedBytes", new HashMap<String, String>(),
+				"Reports the mapped memory of all page factories", () -> getMappedBytes());
+	}
+
+	public static MappedMemoryBudget getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Set the maximum number of bytes mapped by all page factories of the process,
+	 * lowering the budget evicts unpinned pages on the calling thread until the usage fits
+	 *
+	 * @param maxMappedBytes the budget in bytes, 0 for no budget
+	 */
+	public void setMaxMappedBytes(long maxMappedBytes) {
+		if (maxMappedBytes < 0) {
+			throw new IllegalArgumentException("invalid max mapped bytes : " + maxMappedBytes);
+		}
+		this.maxMappedBytes = maxMappedBytes;
+		if (maxMappedBytes > 0) {
+			evict(maxMappedBytes);
+		}
+	}
+
+	public long getMaxMappedBytes() {
+		return maxMappedBytes;
+	}
+
+	/**
+	 * @return the number of bytes currently mapped by all page factories
+	 */
+	public long getMappedBytes() {
+		return mappedBytes.get();
+	}
+
+	// called by a factory after mapping a page, the new page is pinned by its caller
+	void mapped(MappedPageFactoryImpl factory, long bytes) {
+		factories.add(factory);
+		long used = mappedBytes.addAndGet(bytes);
+		long max = this.maxMappedBytes;
+		if (max > 0 && used > max && evictionScheduled.compareAndSet(false, true)) {
+			evictor.execute(() -> {
+				evictionScheduled.set(false);
+				long budget = this.maxMappedBytes;
+				if (budget > 0) {
+					evict(budget / 100 * LOW_WATERMARK_PERCENT);
+				}
+			});
+		}
+	}
+
+	void unmapped(long bytes) {
+		mappedBytes.addAndGet(-bytes);
+	}
+
+	// called by a factory once it has no page cached
+	void unregister(MappedPageFactoryImpl factory) {
+		factories.remove(factory);
+	}
+
+	// evict unpinned pages until at most max bytes are mapped, closing a dirty page flushes it
+	private void evict(long max) {
+		synchronized (evictionLock) {
+			if (mappedBytes.get() <= max) {
+				return;
+			}
+			List<Candidate> candidates = new ArrayList<Candidate>();
+			for (MappedPageFactoryImpl factory : factories) {
+				int priority = factory.getEvictionPriority();
+				factory.forEachIdlePage((index, lastAccessed) -> candidates.add(new Candidate(factory, index, priority, lastAccessed)));
+			}
+			Collections.sort(candidates);
+			int evicted = 0;
+			for (Candidate candidate : candidates) {
+				if (mappedBytes.get() <= max) {
+					break;
+				}
+				if (candidate.factory.evictIdlePage(candidate.index)) {
+					evicted++;
+				}
+			}
+			if (evicted > 0) {
+				stats.budgetEvictions().put(evicted);
+			}
+			if (logger.isDebugEnabled() && mappedBytes.get() > max) {
+				logger.debug("Mapped memory " + mappedBytes.get() + " exceeds eviction target " + max + ", remaining pages are pinned.");
+			}
+		}
+	}
+
+	private static class Candidate implements Comparable<Candidate> {
+		final MappedPageFactoryImpl factory;
+		final long index;
+		final int priority;
+		final long lastAccessed;
+
+		Candidate(MappedPageFactoryImpl factory, long index, int priority, long lastAccessed) {
+			this.factory = factory;
+			this.index = index;
+			this.priority = priority;
+			this.lastAccessed = lastAccessed;
+		}
+
+		@Override
+		public int compareTo(Candidate other) {
+			if (priority != other.priority) {
+				return Integer.compare(priority, other.priority);
+			}
+			return Long.compare(lastAccessed, other.lastAccessed);
+		}
+	}
+}
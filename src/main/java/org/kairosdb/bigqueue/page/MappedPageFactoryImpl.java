@@ -1,19 +1,26 @@
 package org.kairosdb.bigqueue.page;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.TreeSet;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.BiConsumer;
 
-import org.kairosdb.bigqueue.cache.ILRUCache;
-import org.kairosdb.bigqueue.cache.LRUCacheImpl;
+import org.kairosdb.bigqueue.cache.ConcurrentLRUCacheImpl;
+import org.kairosdb.bigqueue.utils.Crc32c;
 import org.kairosdb.bigqueue.utils.FileUtil;
 import org.kairosdb.bigqueue.utils.Clock;
 import org.kairosdb.bigqueue.utils.FileFactory;
@@ -31,6 +38,11 @@ import static java.nio.channels.FileChannel.MapMode.READ_WRITE;
  * automatic paging and swapping algorithm is leveraged to ensure fast page fetch while
  * keep memory usage efficient at the same time.  
  * 
+ * The back page files are tracked by an in memory catalog, so that no directory listing is needed
+ * once the factory is created. The catalog is saved to a manifest when the cached pages are released, and
+ * the manifest is removed before the catalog changes, so it is only rebuilt from the directory after a crash.
+ * Pages are deleted by page index only, the item timestamps of the array are kept by its timestamp index.
+ * 
  * @author bulldog
  *
  */
@@ -49,10 +61,25 @@ public class MappedPageFactoryImpl implements IMappedPageFactory {
 	
 	public static final String PAGE_FILE_NAME = "page";
 	public static final String PAGE_FILE_SUFFIX = ".dat";
+	// file name of the page catalog manifest
+	public static final String CATALOG_FILE_NAME = "catalog";
+	// magic number starting the manifest, BQPC
+	private static final int CATALOG_MAGIC = 0x42515043;
 	
-	private ILRUCache<Long, MappedPageImpl> cache;
+	private ConcurrentLRUCacheImpl<Long, MappedPageImpl> cache;
+	// mapped pages count against the process wide budget
+	private final MappedMemoryBudget budget = MappedMemoryBudget.getInstance();
+	// pages of factories with a lower priority are evicted first when the budget is exceeded
+	private volatile int evictionPriority = 0;
 	private final FileFactory fileFactory;
 	
+	// size of the back page files by page index
+	private final ConcurrentSkipListMap<Long, Long> catalog = new ConcurrentSkipListMap<Long, Long>();
+	// serializes catalog changes with manifest writes
+	private final Object catalogLock = new Object();
+	// guarded by catalogLock, true while the manifest on disk matches the catalog
+	private boolean manifestCurrent = false;
+	
 	public MappedPageFactoryImpl(int pageSize, String pageDir, long cacheTTL, Clock clock, FileFactory fileFactory) {
 		this.pageSize = pageSize;
 		this.pageDir = pageDir;
@@ -66,7 +93,8 @@ public class MappedPageFactoryImpl implements IMappedPageFactory {
 			this.pageDir += File.separator;
 		}
 		this.pageFile = this.pageDir + PAGE_FILE_NAME + "-"; 
-		this.cache = new LRUCacheImpl<>(clock);
+		this.cache = new ConcurrentLRUCacheImpl<>(clock);
+		this.loadCatalog();
 	}
 
 	public MappedPageFactoryImpl(int pageSize, String pageDir, long cacheTTL)
@@ -91,21 +119,32 @@ public class MappedPageFactoryImpl implements IMappedPageFactory {
 						RandomAccessFile raf = null;
 						FileChannel channel = null;
 						boolean newIndex = false;
+						boolean cataloged = false;
 						try {
 							String fileName = this.getFileNameByIndex(index);
+							if (!catalog.containsKey(index)) {
+								// cataloged ahead of the file, the manifest may list a missing file but never miss one
+								addToCatalog(index);
+								cataloged = true;
+							}
 							newIndex = (!new File(fileName).exists());
 							raf = new RandomAccessFile(fileName, "rw");
 							channel = raf.getChannel();
 							MappedByteBuffer mbb = channel.map(READ_WRITE, 0, this.pageSize);
 							mpi = new MappedPageImpl(mbb, fileName, index);
 							mpi.setNew(newIndex);
+							mpi.setCloseListener(() -> budget.unmapped(this.pageSize));
 							cache.put(index, mpi, ttl);
+							budget.mapped(this, this.pageSize);
 							if (logger.isDebugEnabled()) {
 								logger.debug("Mapped page for " + fileName + " was just created and cached.");
 							}
 						} finally {
 							if (channel != null) channel.close();
 							if (raf != null) raf.close();
+							if (mpi == null && cataloged) {
+								catalog.remove(index);
+							}
 						}
 					}
 				}
@@ -126,12 +165,121 @@ public class MappedPageFactoryImpl implements IMappedPageFactory {
 	private String getFileNameByIndex(long index) {
 		return this.pageFile + index + PAGE_FILE_SUFFIX;
 	}
+	
+	// load the catalog from the manifest, or from the page files if the manifest is missing or unreadable
+	private void loadCatalog() {
+		File manifest = new File(this.pageDir + CATALOG_FILE_NAME);
+		if (manifest.exists()) {
+			try {
+				readManifest(manifest);
+				synchronized (catalogLock) {
+					manifestCurrent = true;
+				}
+				return;
+			} catch (IOException ex) {
+				logger.warn("fail to read page catalog " + manifest + ", rebuilding it from the page files", ex);
+				catalog.clear();
+			}
+		}
+		File[] pageFiles = this.pageDirFile.listFiles();
+		if (pageFiles != null && pageFiles.length > 0) {
+			for(File pageFile : pageFiles) {
+				String fileName = pageFile.getName();
+				if (fileName.endsWith(PAGE_FILE_SUFFIX)) {
+					catalog.put(this.getIndexByFileName(fileName), pageFile.length());
+				}
+			}
+		}
+	}
+	
+	// manifest layout: magic, entry count, (page index, file size) entries and the CRC32C of all preceding bytes
+	private void readManifest(File manifest) throws IOException {
+		byte[] content = Files.readAllBytes(manifest.toPath());
+		ByteBuffer buf = ByteBuffer.wrap(content);
+		if (content.length < 12 || buf.getInt() != CATALOG_MAGIC) {
+			throw new IOException("invalid page catalog header");
+		}
+		int count = buf.getInt();
+		if (count < 0 || content.length != 12 + 16L * count) {
+			throw new IOException("invalid page catalog length " + content.length + " for " + count + " pages");
+		}
+		if (Crc32c.compute(content, 0, content.length - 4) != buf.getInt(content.length - 4)) {
+			throw new IOException("page catalog checksum mismatch");
+		}
+		for(int i = 0; i < count; i++) {
+			catalog.put(buf.getLong(), buf.getLong());
+		}
+	}
+	
+	// write the manifest if the catalog changed since it was last written
+	private void writeManifest() throws IOException {
+		synchronized (catalogLock) {
+			if (manifestCurrent || !pageDirFile.exists()) {
+				return;
+			}
+			Map<Long, Long> entries = new HashMap<Long, Long>(catalog);
+			ByteBuffer buf = ByteBuffer.allocate(12 + 16 * entries.size());
+			buf.putInt(CATALOG_MAGIC);
+			buf.putInt(entries.size());
+			for(Map.Entry<Long, Long> entry : entries.entrySet()) {
+				buf.putLong(entry.getKey());
+				buf.putLong(entry.getValue());
+			}
+			buf.putInt(Crc32c.compute(buf.array(), 0, buf.position()));
+			
+			File tmp = new File(this.pageDir + CATALOG_FILE_NAME + ".tmp");
+			try (FileOutputStream out = new FileOutputStream(tmp)) {
+				out.write(buf.array());
+				out.getFD().sync();
+			}
+			Files.move(tmp.toPath(), new File(this.pageDir + CATALOG_FILE_NAME).toPath(),
+					StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			manifestCurrent = true;
+		}
+	}
+	
+	// remove the manifest ahead of a catalog change, caller holds catalogLock
+	private void invalidateManifest() {
+		if (manifestCurrent) {
+			FileUtil.deleteFile(new File(this.pageDir + CATALOG_FILE_NAME));
+			manifestCurrent = false;
+		}
+	}
+	
+	private void addToCatalog(long index) {
+		synchronized (catalogLock) {
+			invalidateManifest();
+			catalog.put(index, (long) this.pageSize);
+		}
+	}
 
 
 	public int getPageSize() {
 		return pageSize;
 	}
 
+	/**
+	 * Set the priority of the pages of this factory when the mapped memory budget is exceeded, see {@link MappedMemoryBudget}
+	 * 
+	 * @param evictionPriority pages of factories with a lower priority are evicted first, 0 by default
+	 */
+	public void setEvictionPriority(int evictionPriority) {
+		this.evictionPriority = evictionPriority;
+	}
+
+	public int getEvictionPriority() {
+		return evictionPriority;
+	}
+
+	// unpinned pages with their last access time, for the budget
+	void forEachIdlePage(BiConsumer<Long, Long> visitor) {
+		cache.forEachIdle(visitor);
+	}
+
+	boolean evictIdlePage(long index) {
+		return cache.evictIdle(index);
+	}
+
 	public String getPageDir() {
 		return pageDir;
 	}
@@ -140,12 +288,19 @@ public class MappedPageFactoryImpl implements IMappedPageFactory {
 		cache.release(index);
 	}
 
+	@Override
+	public void releasePage(IMappedPage page) {
+		cache.release(page.getPageIndex(), (MappedPageImpl) page);
+	}
+
 	/**
 	 * thread unsafe, caller need synchronization
 	 */
 	@Override
 	public void releaseCachedPages() throws IOException {
 		cache.removeAll();
+		budget.unregister(this);
+		writeManifest();
 	}
 
 	/**
@@ -154,6 +309,7 @@ public class MappedPageFactoryImpl implements IMappedPageFactory {
 	@Override
 	public void deleteAllPages() throws IOException {
 		cache.removeAll();
+		budget.unregister(this);
 		Set<Long> indexSet = getExistingBackFileIndexSet();
 		this.deletePages(indexSet);
 		if (logger.isDebugEnabled()) {
@@ -177,53 +333,48 @@ public class MappedPageFactoryImpl implements IMappedPageFactory {
 	 */
 	@Override
 	public void deletePage(long index) throws IOException {
+		this.deletePageFile(index);
+	}
+
+	// returns the catalog size of the deleted page file, 0 if it was not deleted
+	private long deletePageFile(long index) throws IOException {
 		// remove the page from cache first
 		cache.remove(index);
 		String fileName = this.getFileNameByIndex(index);
 		int count = 0;
 		int maxRound = 10;
 		boolean deleted = false;
-		while(count < maxRound) {
-			try {
-				FileUtil.deleteFile(fileFactory.newFile(fileName));
-				deleted = true;
-				break;
-			} catch (IllegalStateException ex) {
+		Long deletedSize = null;
+		synchronized (catalogLock) {
+			invalidateManifest();
+			while(count < maxRound) {
 				try {
-					Thread.sleep(200);
-				} catch (InterruptedException e) {
-				}
-				count++;
-				if (logger.isDebugEnabled()) {
-					logger.warn("fail to delete file " + fileName + ", tried round = " + count);
+					FileUtil.deleteFile(fileFactory.newFile(fileName));
+					deleted = true;
+					break;
+				} catch (IllegalStateException ex) {
+					try {
+						Thread.sleep(200);
+					} catch (InterruptedException e) {
+					}
+					count++;
+					if (logger.isDebugEnabled()) {
+						logger.warn("fail to delete file " + fileName + ", tried round = " + count);
+					}
 				}
 			}
+			if (deleted) {
+				deletedSize = catalog.remove(index);
+			}
 		}
 		if (deleted) {
 			logger.info("Page file " + fileName + " was just deleted.");
 		} else {
 			logger.warn("fail to delete file " + fileName + " after max " + maxRound + " rounds of try, you may delete it manually.");
 		}
+		return deletedSize != null ? deletedSize : 0L;
 	}
 
-	@Override
-	public Set<Long> getPageIndexSetBefore(long timestamp) {
-		Set<Long> beforeIndexSet = new HashSet<Long>();
-		File[] pageFiles = this.pageDirFile.listFiles();
-		if (pageFiles != null && pageFiles.length > 0) {
-			for(File pageFile : pageFiles) {
-				if (fileFactory.lastModified(pageFile) < timestamp) {
-					String fileName = pageFile.getName();
-					if (fileName.endsWith(PAGE_FILE_SUFFIX)) {
-						long index = this.getIndexByFileName(fileName);
-						beforeIndexSet.add(index);
-					}
-				}
-			}
-		}
-		return beforeIndexSet;
-	}
-	
 	private long getIndexByFileName(String fileName) {
 		int beginIndex = fileName.lastIndexOf('-');
 		beginIndex += 1;
@@ -233,44 +384,20 @@ public class MappedPageFactoryImpl implements IMappedPageFactory {
 		return index;
 	}
 
-	/**
-	 * thread unsafe, caller need synchronization
-	 * @throws IOException exception thrown if IO error occurs
-	 */
-	@Override
-	public void deletePagesBefore(long timestamp) throws IOException {
-		Set<Long> indexSet = this.getPageIndexSetBefore(timestamp);
-		this.deletePages(indexSet);
-		if (logger.isDebugEnabled()) {
-			logger.debug("All page files in dir [" + this.pageDir + "], before [" + timestamp + "] have been deleted.");
-		}
-	}
-
     @Override
-    public void deletePagesBeforePageIndex(long pageIndex) throws IOException {
-        Set<Long> indexSet = this.getExistingBackFileIndexSet();
-        for (Long index : indexSet) {
-            if (index < pageIndex) {
-                this.deletePage(index);
-            }
+    public long deletePagesBeforePageIndex(long pageIndex) throws IOException {
+        List<Long> indexes = new ArrayList<Long>(catalog.headMap(pageIndex).keySet());
+        long deletedSize = 0L;
+        for (Long index : indexes) {
+            deletedSize += this.deletePageFile(index);
         }
+        return deletedSize;
     }
 
 
     @Override
 	public Set<Long> getExistingBackFileIndexSet() {
-		Set<Long> indexSet = new HashSet<Long>();
-		File[] pageFiles = this.pageDirFile.listFiles();
-		if (pageFiles != null && pageFiles.length > 0) {
-			for(File pageFile : pageFiles) {
-				String fileName = pageFile.getName();
-				if (fileName.endsWith(PAGE_FILE_SUFFIX)) {
-					long index = this.getIndexByFileName(fileName);
-					indexSet.add(index);
-				}
-			}
-		}
-		return indexSet;
+		return new HashSet<Long>(catalog.keySet());
 	}
 
 	@Override
@@ -285,6 +412,9 @@ public class MappedPageFactoryImpl implements IMappedPageFactory {
 
 	@Override
 	public long getPageFileLastModifiedTime(long index) {
+		if (!catalog.containsKey(index)) {
+			return -1L;
+		}
 		String pageFileName = this.getFileNameByIndex(index);
 		File pageFile = fileFactory.newFile(pageFileName);
 		if (!pageFile.exists()) {
@@ -293,15 +423,6 @@ public class MappedPageFactoryImpl implements IMappedPageFactory {
 		return fileFactory.lastModified(pageFile);
 	}
 
-	@Override
-	public long getFirstPageIndexBefore(long timestamp) {
-		Set<Long> beforeIndexSet = getPageIndexSetBefore(timestamp);
-		if (beforeIndexSet.size() == 0) return -1L;
-		TreeSet<Long> sortedIndexSet = new TreeSet<Long>(beforeIndexSet);
-		Long largestIndex = sortedIndexSet.last();
-		return largestIndex;
-	}
-
 	/**
 	 * thread unsafe, caller need synchronization
 	 */
@@ -316,14 +437,8 @@ public class MappedPageFactoryImpl implements IMappedPageFactory {
 	@Override
 	public Set<String> getBackPageFileSet() {
 		Set<String> fileSet = new HashSet<String>();
-		File[] pageFiles = this.pageDirFile.listFiles();
-		if (pageFiles != null && pageFiles.length > 0) {
-			for(File pageFile : pageFiles) {
-				String fileName = pageFile.getName();
-				if (fileName.endsWith(PAGE_FILE_SUFFIX)) {
-					fileSet.add(fileName);
-				}
-			}
+		for(long index : catalog.keySet()) {
+			fileSet.add(PAGE_FILE_NAME + "-" + index + PAGE_FILE_SUFFIX);
 		}
 		return fileSet;
 	}
@@ -331,14 +446,8 @@ public class MappedPageFactoryImpl implements IMappedPageFactory {
 	@Override
 	public long getBackPageFileSize() {
 		long totalSize = 0L;
-		File[] pageFiles = this.pageDirFile.listFiles();
-		if (pageFiles != null && pageFiles.length > 0) {
-			for(File pageFile : pageFiles) {
-				String fileName = pageFile.getName();
-				if (fileName.endsWith(PAGE_FILE_SUFFIX)) {
-					totalSize += pageFile.length();
-				}
-			}
+		for(long size : catalog.values()) {
+			totalSize += size;
 		}
 		return totalSize;
 	}
@@ -2,7 +2,6 @@ package org.kairosdb.bigqueue.page;
 
 import java.io.Closeable;
 import java.io.IOException;
-import java.lang.reflect.Method;
 import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
 
@@ -13,15 +12,21 @@ public class MappedPageImpl implements IMappedPage, Closeable {
 	
 	private final static Logger logger = LoggerFactory.getLogger(MappedPageImpl.class);
 	
-	private ThreadLocalByteBuffer threadLocalBuffer;
+	// accessed with absolute offsets only, so it is shared by all threads, null once unmapped
+	private MappedByteBuffer buffer;
 	private volatile boolean dirty = false;
+	// region changed since the last flush, guarded by this
+	private int dirtyFrom = Integer.MAX_VALUE;
+	private int dirtyTo = 0;
 	private volatile boolean closed = false;
 	private String pageFile;
 	private long index;
 	private boolean isNew = false;
+	// run once the page is closed, null if none
+	private volatile Runnable closeListener;
 	
 	public MappedPageImpl(MappedByteBuffer mbb, String pageFile, long index) {
-		this.threadLocalBuffer = new ThreadLocalByteBuffer(mbb);
+		this.buffer = mbb;
 		this.pageFile = pageFile;
 		this.index = index;
 	}
@@ -32,16 +37,31 @@ public class MappedPageImpl implements IMappedPage, Closeable {
 
 			flush();
 			
-			MappedByteBuffer srcBuf = (MappedByteBuffer)threadLocalBuffer.getSourceBuffer();
-			unmap(srcBuf);
-			
-			this.threadLocalBuffer = null; // hint GC
-			
 			closed = true;
 			if (logger.isDebugEnabled()) {
-				logger.debug("Mapped page for " + this.pageFile + " was just unmapped and closed.");
+				logger.debug("Mapped page for " + this.pageFile + " was just closed.");
 			}
 		}
+		Runnable listener = this.closeListener;
+		if (listener != null) {
+			listener.run();
+		}
+		// readers may still use a buffer of the page obtained before it was closed
+		PageReclaimer.getInstance().retire(this::unmap);
+	}
+	
+	private void unmap() {
+		MappedBuffers.unmap(buffer);
+		
+		this.buffer = null; // hint GC
+		if (logger.isDebugEnabled()) {
+			logger.debug("Mapped page for " + this.pageFile + " was just unmapped.");
+		}
+	}
+	
+	// called by the factory before the page is shared
+	void setCloseListener(Runnable closeListener) {
+		this.closeListener = closeListener;
 	}
 
 	public void setNew(boolean isNew)
@@ -57,8 +77,26 @@ public class MappedPageImpl implements IMappedPage, Closeable {
 	
 	@Override
 	public void setDirty(boolean dirty) {
-		this.dirty = dirty;
-		this.isNew = false;
+		if (dirty) {
+			setDirty(0, buffer.capacity());
+		} else {
+			synchronized(this) {
+				dirtyFrom = Integer.MAX_VALUE;
+				dirtyTo = 0;
+				this.dirty = false;
+				this.isNew = false;
+			}
+		}
+	}
+
+	@Override
+	public void setDirty(int position, int length) {
+		synchronized(this) {
+			dirtyFrom = Math.min(dirtyFrom, position);
+			dirtyTo = Math.max(dirtyTo, position + length);
+			this.dirty = true;
+			this.isNew = false;
+		}
 	}
 	
 	@Override
@@ -66,9 +104,20 @@ public class MappedPageImpl implements IMappedPage, Closeable {
 		synchronized(this) {
 			if (closed) return;
 			if (dirty) {
-				MappedByteBuffer srcBuf = (MappedByteBuffer)threadLocalBuffer.getSourceBuffer();
-				srcBuf.force(); // flush the changes
+				// clear the flag first, so a write made while forcing keeps the page dirty for the next flush
 				dirty = false;
+				int from = dirtyFrom;
+				int to = dirtyTo;
+				dirtyFrom = Integer.MAX_VALUE;
+				dirtyTo = 0;
+				try {
+					if (from < to) {
+						MappedBuffers.force(buffer, from, to - from); // flush the changes
+					}
+				} catch (RuntimeException e) {
+					setDirty(from, to - from);
+					throw e;
+				}
 				if (logger.isDebugEnabled()) {
 					logger.debug("Mapped page for " + this.pageFile + " was just flushed.");
 				}
@@ -76,81 +125,70 @@ public class MappedPageImpl implements IMappedPage, Closeable {
 		}
 	}
 
-	public byte[] getLocal(int position, int length) {
-		ByteBuffer buf = this.getLocal(position);
-		byte[] data = new byte[length];
-		buf.get(data);
-		return data;
+	@Override
+	public byte getByte(int offset) {
+		return buffer.get(offset);
 	}
 	
 	@Override
-	public ByteBuffer getLocal(int position) {
-		ByteBuffer buf = this.threadLocalBuffer.get();
-		buf.position(position);
-		return buf;
+	public int getInt(int offset) {
+		return buffer.getInt(offset);
 	}
 	
-	private static void unmap(MappedByteBuffer buffer)
-	{
-		Cleaner.clean(buffer);
+	@Override
+	public long getLong(int offset) {
+		return buffer.getLong(offset);
 	}
 	
-    /**
-     * Helper class allowing to clean direct buffers.
-     */
-    private static class Cleaner {
-        public static final boolean CLEAN_SUPPORTED;
-        private static final Method directBufferCleaner;
-        private static final Method directBufferCleanerClean;
-
-        static {
-            Method directBufferCleanerX = null;
-            Method directBufferCleanerCleanX = null;
-            boolean v;
-            try {
-                directBufferCleanerX = Class.forName("java.nio.DirectByteBuffer").getMethod("cleaner");
-                directBufferCleanerX.setAccessible(true);
-                directBufferCleanerCleanX = Class.forName("sun.misc.Cleaner").getMethod("clean");
-                directBufferCleanerCleanX.setAccessible(true);
-                v = true;
-            } catch (Exception e) {
-                v = false;
-            }
-            CLEAN_SUPPORTED = v;
-            directBufferCleaner = directBufferCleanerX;
-            directBufferCleanerClean = directBufferCleanerCleanX;
-        }
-
-        public static void clean(ByteBuffer buffer) {
-    		if (buffer == null) return;
-            if (CLEAN_SUPPORTED && buffer.isDirect()) {
-                try {
-                    Object cleaner = directBufferCleaner.invoke(buffer);
-                    directBufferCleanerClean.invoke(cleaner);
-                } catch (Exception e) {
-                    // silently ignore exception
-                }
-            }
-        }
-    }
-    
-    private static class ThreadLocalByteBuffer extends ThreadLocal<ByteBuffer> {
-    	private ByteBuffer _src;
-    	
-    	public ThreadLocalByteBuffer(ByteBuffer src) {
-    		_src = src;
-    	}
-    	
-    	public ByteBuffer getSourceBuffer() {
-    		return _src;
-    	}
-    	
-    	@Override
-    	protected synchronized ByteBuffer initialValue() {
-    		ByteBuffer dup = _src.duplicate();
-    		return dup;
-    	}
-    }
+	@Override
+	public void putByte(int offset, byte value) {
+		buffer.put(offset, value);
+	}
+	
+	@Override
+	public void putInt(int offset, int value) {
+		buffer.putInt(offset, value);
+	}
+	
+	@Override
+	public void putLong(int offset, long value) {
+		buffer.putLong(offset, value);
+	}
+	
+	@Override
+	public void copyTo(int offset, byte[] dst, int dstOffset, int length) {
+		MappedBuffers.get(buffer, offset, dst, dstOffset, length);
+	}
+	
+	@Override
+	public void copyTo(int offset, ByteBuffer dst, int length) {
+		if (dst.hasArray()) {
+			MappedBuffers.get(buffer, offset, dst.array(), dst.arrayOffset() + dst.position(), length);
+			dst.position(dst.position() + length);
+		} else {
+			MappedBuffers.get(buffer, offset, dst, length);
+		}
+	}
+	
+	@Override
+	public void copyFrom(int offset, byte[] src, int srcOffset, int length) {
+		MappedBuffers.put(buffer, offset, src, srcOffset, length);
+	}
+	
+	@Override
+	public void copyFrom(int offset, ByteBuffer src) {
+		MappedBuffers.put(buffer, offset, src);
+	}
+	
+	@Override
+	public ByteBuffer slice(int offset, int length) {
+		return MappedBuffers.slice(buffer, offset, length);
+	}
+	
+	@Override
+	public int size() {
+		return buffer.capacity();
+	}
 
 	@Override
 	public boolean isClosed() {
@@ -0,0 +1,158 @@
+package org.kairosdb.bigqueue.page;
+
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.kairosdb.bigqueue.metrics.PageStats;
+import org.kairosdb.bigqueue.utils.DaemonThreadFactory;
+import org.kairosdb.metrics4j.MetricSourceManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Epoch based reclamation of closed pages,
+ *
+ * a closed page is retired in the current global epoch and the epoch moves on. Readers using page buffers
+ * without holding a reference to the page, e.g. after releasing it, do so between {@link #enter()} and {@link #exit()},
+ * which only record the global epoch in a slot of the reader thread. A single reclaimer thread unmaps a retired page
+ * once every reader still inside an epoch entered it after the page was retired, so no buffer of the page can be in use.
+ */
+public final class PageReclaimer {
+
+	private final static Logger logger = LoggerFactory.getLogger(PageReclaimer.class);
+
+	// slot epoch of a reader outside of any epoch
+	private static final long IDLE = Long.MAX_VALUE;
+	// milliseconds, delay between two passes while pages are waiting to be unmapped
+	private static final long RECLAIM_INTERVAL = 5;
+
+	private static final PageReclaimer instance = new PageReclaimer();
+
+	private final AtomicLong globalEpoch = new AtomicLong(0L);
+	private final CopyOnWriteArrayList<ReaderSlot> readers = new CopyOnWriteArrayList<ReaderSlot>();
+	private final ThreadLocal<ReaderSlot> localSlot = ThreadLocal.withInitial(this::register);
+	private final ConcurrentLinkedQueue<Retired> retired = new ConcurrentLinkedQueue<Retired>();
+	private final AtomicLong pendingUnmaps = new AtomicLong(0L);
+	private final Object lock = new Object();
+
+	private PageReclaimer() {
+		MetricSourceManager.addSource(PageStats.class.getName(), "pendingUnmaps", new HashMap<String, String>(),
+				"Reports the closed pages waiting to be unmapped", () -> getPendingUnmaps());
+		new DaemonThreadFactory("bigqueue-page-reclaimer").newThread(this::reclaim).start();
+	}
+
+	public static PageReclaimer getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Enter an epoch, buffers of pages obtained from now on stay mapped until the matching {@link #exit()},
+	 * epochs of a thread nest.
+	 */
+	public void enter() {
+		ReaderSlot slot = localSlot.get();
+		if (slot.depth++ == 0) {
+			slot.epoch = globalEpoch.get();
+		}
+	}
+
+	/**
+	 * Leave the epoch entered by the last call to {@link #enter()}
+	 */
+	public void exit() {
+		ReaderSlot slot = localSlot.get();
+		if (--slot.depth == 0) {
+			slot.epoch = IDLE;
+		}
+	}
+
+	/**
+	 * @return the number of closed pages waiting to be unmapped
+	 */
+	public long getPendingUnmaps() {
+		return pendingUnmaps.get();
+	}
+
+	// unmap a closed page once no reader can use its buffers anymore, the page must not be reachable by readers
+	void retire(Runnable unmap) {
+		retired.add(new Retired(unmap, globalEpoch.getAndIncrement()));
+		if (pendingUnmaps.getAndIncrement() == 0) {
+			synchronized (lock) {
+				lock.notify();
+			}
+		}
+	}
+
+	private ReaderSlot register() {
+		ReaderSlot slot = new ReaderSlot(Thread.currentThread());
+		readers.add(slot);
+		return slot;
+	}
+
+	// runs on the reclaimer thread
+	private void reclaim() {
+		while (true) {
+			try {
+				synchronized (lock) {
+					while (pendingUnmaps.get() == 0) {
+						lock.wait();
+					}
+				}
+				Thread.sleep(RECLAIM_INTERVAL);
+				long oldestEpoch = oldestReaderEpoch();
+				for (Iterator<Retired> it = retired.iterator(); it.hasNext();) {
+					Retired page = it.next();
+					if (page.epoch < oldestEpoch) {
+						it.remove();
+						try {
+							page.unmap.run();
+						} catch (RuntimeException e) {
+							logger.error("fail to unmap page", e);
+						}
+						pendingUnmaps.decrementAndGet();
+					}
+				}
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+
+	// the oldest epoch a reader is in, slots of dead threads are dropped
+	private long oldestReaderEpoch() {
+		long oldest = IDLE;
+		for (ReaderSlot slot : readers) {
+			if (slot.owner.get() == null || !slot.owner.get().isAlive()) {
+				readers.remove(slot);
+				continue;
+			}
+			oldest = Math.min(oldest, slot.epoch);
+		}
+		return oldest;
+	}
+
+	private static class ReaderSlot {
+		final WeakReference<Thread> owner;
+		// only written by the owner thread
+		volatile long epoch = IDLE;
+		int depth = 0;
+
+		ReaderSlot(Thread owner) {
+			this.owner = new WeakReference<Thread>(owner);
+		}
+	}
+
+	private static class Retired {
+		final Runnable unmap;
+		final long epoch;
+
+		Retired(Runnable unmap, long epoch) {
+			this.unmap = unmap;
+			this.epoch = epoch;
+		}
+	}
+}
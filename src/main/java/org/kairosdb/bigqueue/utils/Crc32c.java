@@ -0,0 +1,109 @@
+package org.kairosdb.bigqueue.utils;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.util.zip.Checksum;
+
+/**
+ * CRC32C (Castagnoli) checksum of data items,
+ *
+ * uses the intrinsic java.util.zip.CRC32C when running on Java 9 or later, and a pure java implementation otherwise.
+ * The compute methods reset and reuse a checksum of the calling thread, so they do not allocate.
+ */
+public class Crc32c {
+
+	// () -> new CRC32C(), null before Java 9
+	private static final MethodHandle newIntrinsic;
+	// Checksum.update(ByteBuffer), null before Java 9
+	private static final MethodHandle updateBuffer;
+
+	static {
+		MethodHandle newIntrinsicX = null;
+		MethodHandle updateBufferX = null;
+		try {
+			MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+			Class<?> crc32c = Class.forName("java.util.zip.CRC32C");
+			newIntrinsicX = lookup.findConstructor(crc32c, MethodType.methodType(void.class))
+					.asType(MethodType.methodType(Checksum.class));
+			updateBufferX = lookup.findVirtual(Checksum.class, "update", MethodType.methodType(void.class, ByteBuffer.class));
+		} catch (Exception e) {
+			newIntrinsicX = null;
+			updateBufferX = null;
+		}
+		newIntrinsic = newIntrinsicX;
+		updateBuffer = updateBufferX;
+	}
+
+	// reused by the compute methods of a thread
+	private static final ThreadLocal<Checksum> localChecksum = ThreadLocal.withInitial(Crc32c::newChecksum);
+
+	/**
+	 * @return true if the intrinsic java.util.zip.CRC32C is used
+	 */
+	public static boolean isIntrinsic() {
+		return newIntrinsic != null;
+	}
+
+	/**
+	 * Create a CRC32C checksum
+	 *
+	 * @return a new checksum
+	 */
+	public static Checksum newChecksum() {
+		if (newIntrinsic != null) {
+			try {
+				return (Checksum) newIntrinsic.invokeExact();
+			} catch (Throwable t) {
+				throw new IllegalStateException("fail to create CRC32C checksum", t);
+			}
+		}
+		return new PureJavaCrc32c();
+	}
+
+	/**
+	 * Compute the CRC32C of a byte array slice
+	 *
+	 * @param buf array holding the data
+	 * @param off offset of the data
+	 * @param len length of the data
+	 * @return the checksum
+	 */
+	public static int compute(byte[] buf, int off, int len) {
+		Checksum checksum = localChecksum.get();
+		checksum.reset();
+		checksum.update(buf, off, len);
+		return (int) checksum.getValue();
+	}
+
+	/**
+	 * Compute the CRC32C of the remaining bytes of a buffer, the buffer position is not changed
+	 *
+	 * @param buf buffer holding the data
+	 * @return the checksum
+	 */
+	public static int compute(ByteBuffer buf) {
+		if (buf.hasArray()) {
+			return compute(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+		}
+		Checksum checksum = localChecksum.get();
+		checksum.reset();
+		// the update consumes the buffer, its position is restored instead of updating a duplicate
+		int position = buf.position();
+		try {
+			if (updateBuffer != null) {
+				updateBuffer.invokeExact(checksum, buf);
+			} else {
+				((PureJavaCrc32c) checksum).update(buf);
+			}
+		} catch (RuntimeException | Error e) {
+			throw e;
+		} catch (Throwable t) {
+			throw new IllegalStateException("fail to compute CRC32C checksum", t);
+		} finally {
+			buf.position(position);
+		}
+		return (int) checksum.getValue();
+	}
+}
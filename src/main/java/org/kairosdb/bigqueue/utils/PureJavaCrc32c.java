@@ -0,0 +1,85 @@
+package org.kairosdb.bigqueue.utils;
+
+import java.nio.ByteBuffer;
+import java.util.zip.Checksum;
+
+/**
+ * Table driven CRC32C for runtimes without java.util.zip.CRC32C, processing 8 bytes per step (slicing by 8).
+ */
+class PureJavaCrc32c implements Checksum {
+
+	// reflected Castagnoli polynomial
+	private static final int POLY = 0x82F63B78;
+
+	private static final int[][] TABLES = new int[8][256];
+
+	static {
+		for (int i = 0; i < 256; i++) {
+			int crc = i;
+			for (int k = 0; k < 8; k++) {
+				crc = (crc & 1) != 0 ? (crc >>> 1) ^ POLY : crc >>> 1;
+			}
+			TABLES[0][i] = crc;
+		}
+		for (int i = 0; i < 256; i++) {
+			for (int t = 1; t < 8; t++) {
+				int previous = TABLES[t - 1][i];
+				TABLES[t][i] = (previous >>> 8) ^ TABLES[0][previous & 0xFF];
+			}
+		}
+	}
+
+	private int crc = 0xFFFFFFFF;
+	// reused to read buffers without array
+	private byte[] chunk;
+
+	@Override
+	public void update(int b) {
+		crc = (crc >>> 8) ^ TABLES[0][(crc ^ b) & 0xFF];
+	}
+
+	@Override
+	public void update(byte[] b, int off, int len) {
+		int c = crc;
+		int end = off + len;
+		int[] t0 = TABLES[0], t1 = TABLES[1], t2 = TABLES[2], t3 = TABLES[3];
+		int[] t4 = TABLES[4], t5 = TABLES[5], t6 = TABLES[6], t7 = TABLES[7];
+		while (end - off >= 8) {
+			int low = c ^ ((b[off] & 0xFF) | (b[off + 1] & 0xFF) << 8 | (b[off + 2] & 0xFF) << 16 | (b[off + 3] & 0xFF) << 24);
+			c = t7[low & 0xFF] ^ t6[(low >>> 8) & 0xFF] ^ t5[(low >>> 16) & 0xFF] ^ t4[low >>> 24]
+					^ t3[b[off + 4] & 0xFF] ^ t2[b[off + 5] & 0xFF] ^ t1[b[off + 6] & 0xFF] ^ t0[b[off + 7] & 0xFF];
+			off += 8;
+		}
+		while (off < end) {
+			c = (c >>> 8) ^ t0[(c ^ b[off++]) & 0xFF];
+		}
+		crc = c;
+	}
+
+	// update with the remaining bytes of a buffer, the buffer position is advanced to its limit
+	public void update(ByteBuffer buf) {
+		if (buf.hasArray()) {
+			update(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+			buf.position(buf.limit());
+			return;
+		}
+		if (chunk == null) {
+			chunk = new byte[4096];
+		}
+		while (buf.hasRemaining()) {
+			int length = Math.min(buf.remaining(), chunk.length);
+			buf.get(chunk, 0, length);
+			update(chunk, 0, length);
+		}
+	}
+
+	@Override
+	public long getValue() {
+		return (~crc) & 0xFFFFFFFFL;
+	}
+
+	@Override
+	public void reset() {
+		crc = 0xFFFFFFFF;
+	}
+}
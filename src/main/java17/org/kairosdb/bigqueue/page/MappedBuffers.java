@@ -0,0 +1,85 @@
+package org.kairosdb.bigqueue.page;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+
+/**
+ * Unmapping, forcing and absolute bulk access of mapped buffers, JDK 17 backend
+ *
+ * packaged under META-INF/versions/17 of the multi-release jar, replacing the Java 8 backend
+ * of src/main/java on newer runtimes. Buffers are unmapped through {@code Unsafe.invokeCleaner},
+ * the supported way to release a mapping of a {@link MappedByteBuffer} since the cleaner became internal,
+ * looked up by reflection like the Java 8 backend so the internal class is not compiled against.
+ * Regions are forced with {@link MappedByteBuffer#force(int, int)} and bulk access uses the absolute
+ * bulk methods of {@link ByteBuffer}, so no duplicate of the buffer is created.
+ */
+final class MappedBuffers {
+
+	// Unsafe.invokeCleaner bound to the unsafe instance, null if not accessible
+	private static final MethodHandle invokeCleaner;
+
+	static {
+		MethodHandle invokeCleanerX = null;
+		try {
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+			theUnsafe.setAccessible(true);
+			invokeCleanerX = MethodHandles.lookup()
+					.findVirtual(unsafeClass, "invokeCleaner", MethodType.methodType(void.class, ByteBuffer.class))
+					.bindTo(theUnsafe.get(null));
+		} catch (Exception e) {
+			invokeCleanerX = null;
+		}
+		invokeCleaner = invokeCleanerX;
+	}
+
+	private MappedBuffers() {
+	}
+
+	static boolean isUnmapSupported() {
+		return invokeCleaner != null;
+	}
+
+	static void unmap(MappedByteBuffer buffer) {
+		if (buffer == null || invokeCleaner == null) return;
+		try {
+			invokeCleaner.invokeExact((ByteBuffer) buffer);
+		} catch (Error e) {
+			throw e;
+		} catch (Throwable e) {
+			// silently ignore exception, the buffer is unmapped by the GC
+		}
+	}
+
+	static void force(MappedByteBuffer buffer, int index, int length) {
+		buffer.force(index, length);
+	}
+
+	static ByteBuffer slice(ByteBuffer buffer, int index, int length) {
+		return buffer.slice(index, length);
+	}
+
+	static void get(ByteBuffer buffer, int index, byte[] dst, int offset, int length) {
+		buffer.get(index, dst, offset, length);
+	}
+
+	static void get(ByteBuffer buffer, int index, ByteBuffer dst, int length) {
+		int position = dst.position();
+		dst.put(position, buffer, index, length);
+		dst.position(position + length);
+	}
+
+	static void put(ByteBuffer buffer, int index, byte[] src, int offset, int length) {
+		buffer.put(index, src, offset, length);
+	}
+
+	static void put(ByteBuffer buffer, int index, ByteBuffer src) {
+		int length = src.remaining();
+		buffer.put(index, src, src.position(), length);
+		src.position(src.position() + length);
+	}
+}
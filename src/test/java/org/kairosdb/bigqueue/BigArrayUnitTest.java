@@ -2,18 +2,32 @@ package org.kairosdb.bigqueue;
 
 import static org.junit.Assert.*;
 
+import java.io.File;
 import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Collectors;
 
 import org.junit.After;
 import org.junit.Rule;
 import org.junit.Test;
 
 import org.junit.rules.TemporaryFolder;
+import org.kairosdb.bigqueue.codec.ItemCodecs;
+import org.kairosdb.bigqueue.page.IMappedPage;
+import org.kairosdb.bigqueue.utils.FileUtil;
 
 public class BigArrayUnitTest {
 	
@@ -70,6 +84,901 @@ public class BigArrayUnitTest {
 		}
 	}
 	
+	@Test
+	public void appendBatchTest() throws IOException {
+		bigArray = new BigArrayImpl(testDir, "append_batch_test", BigArrayImpl.MINIMUM_DATA_PAGE_SIZE);
+		assertNotNull(bigArray);
+		
+		assertTrue(IBigArray.NOT_FOUND == bigArray.appendBatch(new ArrayList<byte[]>()));
+		assertTrue(bigArray.isEmpty());
+		
+		bigArray.append("first".getBytes());
+		
+		// big enough to cross both data page and index page boundaries
+		String randomString = TestUtil.randomString(256);
+		int batchSize = 200000;
+		List<byte[]> batch = new ArrayList<byte[]>();
+		for(int i = 0; i < batchSize; i++) {
+			batch.add((i + randomString).getBytes());
+		}
+		assertTrue(1L == bigArray.appendBatch(batch));
+		assertTrue(bigArray.size() == batchSize + 1L);
+		
+		bigArray.append("last".getBytes());
+		
+		assertEquals("first", new String(bigArray.get(0)));
+		for(int i = 0; i < batchSize; i++) {
+			assertEquals(i + randomString, new String(bigArray.get(i + 1)));
+		}
+		assertEquals("last", new String(bigArray.get(batchSize + 1)));
+		
+		List<byte[]> tooBig = new ArrayList<byte[]>();
+		tooBig.add("ok".getBytes());
+		tooBig.add(new byte[BigArrayImpl.MINIMUM_DATA_PAGE_SIZE + 1]);
+		try {
+			bigArray.appendBatch(tooBig);
+			fail("IllegalArgumentException should be thrown here");
+		} catch (IllegalArgumentException ex) {
+		}
+		assertTrue(bigArray.size() == batchSize + 2L);
+		bigArray.close();
+		
+		bigArray = new BigArrayImpl(testDir, "append_batch_test", BigArrayImpl.MINIMUM_DATA_PAGE_SIZE);
+		assertTrue(bigArray.size() == batchSize + 2L);
+		assertEquals("last", new String(bigArray.get(batchSize + 1)));
+		assertTrue(batchSize + 2L == bigArray.appendBatch(batch.subList(0, 10)));
+		assertEquals(9 + randomString, new String(bigArray.get(batchSize + 11)));
+	}
+	
+	@Test
+	public void appendSliceAndBufferTest() throws IOException {
+		bigArray = new BigArrayImpl(testDir, "append_slice_and_buffer_test");
+		assertNotNull(bigArray);
+		
+		byte[] buf = "xxhelloyy".getBytes();
+		assertTrue(0L == bigArray.append(buf, 2, 5));
+		assertTrue(1L == bigArray.append(buf, 0, 0));
+		try {
+			bigArray.append(buf, 5, 5);
+			fail("IndexOutOfBoundsException should be thrown here");
+		} catch (IndexOutOfBoundsException ex) {
+		}
+		
+		ByteBuffer direct = ByteBuffer.allocateDirect(64);
+		direct.put("skip-world".getBytes());
+		direct.flip();
+		direct.position(5);
+		assertTrue(2L == bigArray.append(direct));
+		assertEquals(direct.limit(), direct.position());
+		
+		ByteBuffer heap = ByteBuffer.wrap("abc-def".getBytes(), 4, 3);
+		assertTrue(3L == bigArray.append(heap));
+		assertFalse(heap.hasRemaining());
+		
+		assertEquals("hello", new String(bigArray.get(0)));
+		assertEquals(0, bigArray.get(1).length);
+		assertEquals("world", new String(bigArray.get(2)));
+		assertEquals("def", new String(bigArray.get(3)));
+		assertTrue(bigArray.size() == 4L);
+	}
+	
+	@Test
+	public void appendWithWriterTest() throws IOException {
+		bigArray = new BigArrayImpl(testDir, "append_with_writer_test");
+		assertNotNull(bigArray);
+		
+		long index = bigArray.append(12, new IBigArray.ItemWriter() {
+			@Override
+			public void write(ByteBuffer buffer) throws IOException {
+				assertEquals(0, buffer.position());
+				assertEquals(12, buffer.remaining());
+				buffer.putLong(42L);
+				buffer.put("abcd".getBytes());
+			}
+		});
+		assertTrue(0L == index);
+		
+		try {
+			bigArray.append(8, new IBigArray.ItemWriter() {
+				@Override
+				public void write(ByteBuffer buffer) throws IOException {
+					buffer.putLong(-1L);
+					throw new IOException("serialization failed");
+				}
+			});
+			fail("IOException should be thrown here");
+		} catch (IOException ex) {
+		}
+		assertTrue(bigArray.size() == 1L);
+		
+		bigArray.append("hello".getBytes());
+		
+		ByteBuffer first = ByteBuffer.wrap(bigArray.get(0));
+		assertEquals(42L, first.getLong());
+		assertEquals('a', first.get());
+		assertEquals("hello", new String(bigArray.get(1)));
+		assertTrue(bigArray.size() == 2L);
+	}
+	
+	@Test
+	public void concurrentAppendTest() throws Exception {
+		bigArray = new BigArrayImpl(testDir, "concurrent_append_test", BigArrayImpl.MINIMUM_DATA_PAGE_SIZE);
+		((BigArrayImpl) bigArray).setConcurrentAppend(true);
+		bigArray.append("first".getBytes());
+		
+		final int producerCount = 4;
+		final int loop = 50000;
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		Thread[] producers = new Thread[producerCount];
+		for (int p = 0; p < producerCount; p++) {
+			final int producerId = p;
+			producers[p] = new Thread() {
+				public void run() {
+					try {
+						for (int i = 0; i < loop; i++) {
+							// varying sizes so items keep crossing data page boundaries
+							ByteBuffer item = ByteBuffer.allocate(8 + (i % 7) * 300);
+							item.putInt(producerId).putInt(i);
+							if (i % 3 == 0) {
+								bigArray.appendBatch(Collections.singletonList(item.array()));
+							} else {
+								bigArray.append(item.array());
+							}
+						}
+					} catch (Throwable t) {
+						failure.set(t);
+					}
+				}
+			};
+			producers[p].start();
+		}
+		
+		// concurrent reader never sees an unfinished item
+		long read = 1;
+		while (read < 1 + producerCount * loop && failure.get() == null) {
+			if (read < bigArray.getHeadIndex()) {
+				ByteBuffer item = ByteBuffer.wrap(bigArray.get(read));
+				assertTrue(item.getInt() < producerCount);
+				read++;
+			}
+		}
+		for (Thread producer : producers) {
+			producer.join();
+		}
+		assertNull(failure.get());
+		assertEquals(1 + producerCount * loop, bigArray.size());
+		
+		bigArray.close();
+		bigArray = new BigArrayImpl(testDir, "concurrent_append_test", BigArrayImpl.MINIMUM_DATA_PAGE_SIZE);
+		assertEquals(1 + producerCount * loop, bigArray.size());
+		assertEquals("first", new String(bigArray.get(0)));
+		
+		// every item appears exactly once and in producer order
+		int[] nextSequence = new int[producerCount];
+		for (long i = 1; i < bigArray.getHeadIndex(); i++) {
+			ByteBuffer item = ByteBuffer.wrap(bigArray.get(i));
+			int producerId = item.getInt();
+			assertEquals(nextSequence[producerId]++, item.getInt());
+			assertEquals(8 + (item.getInt(4) % 7) * 300, item.capacity());
+		}
+		for (int p = 0; p < producerCount; p++) {
+			assertEquals(loop, nextSequence[p]);
+		}
+		
+		// switching back to the default mode continues from the reserved position
+		((BigArrayImpl) bigArray).setConcurrentAppend(true);
+		bigArray.append("concurrent".getBytes());
+		((BigArrayImpl) bigArray).setConcurrentAppend(false);
+		bigArray.append("locked".getBytes());
+		assertEquals("concurrent", new String(bigArray.get(bigArray.getHeadIndex() - 2)));
+		assertEquals("locked", new String(bigArray.get(bigArray.getHeadIndex() - 1)));
+	}
+	
+	@Test
+	public void concurrentAppendWithFailedWriterTest() throws IOException {
+		bigArray = new BigArrayImpl(testDir, "concurrent_append_failed_writer_test");
+		((BigArrayImpl) bigArray).setConcurrentAppend(true);
+		
+		bigArray.append("hello".getBytes());
+		try {
+			bigArray.append(8, new IBigArray.ItemWriter() {
+				@Override
+				public void write(ByteBuffer buffer) throws IOException {
+					throw new IOException("serialization failed");
+				}
+			});
+			fail("IOException should be thrown here");
+		} catch (IOException ex) {
+		}
+		// the reserved slot is published as a skipped slot
+		assertEquals(2L, bigArray.size());
+		assertEquals(0, bigArray.get(1).length);
+		assertTrue(bigArray.isSkipped(1));
+		assertFalse(bigArray.isSkipped(0));
+		
+		bigArray.append("world".getBytes());
+		assertEquals("world", new String(bigArray.get(2)));
+		bigArray.append(new byte[0]);
+		assertFalse(bigArray.isSkipped(3)); // a real empty item
+		
+		// readers skip the slot
+		final List<Long> visited = new ArrayList<Long>();
+		assertEquals(3, bigArray.getRange(0, 3, Long.MAX_VALUE, (index, data) -> visited.add(index)));
+		assertEquals(Arrays.asList(0L, 2L), visited);
+		assertEquals(3, bigArray.getRange(0, 10, Long.MAX_VALUE).size());
+		try (BigArrayCursor cursor = bigArray.cursor()) {
+			assertEquals("hello", new String(cursor.next()));
+			assertEquals(1L, cursor.getIndex());
+			assertTrue(cursor.hasNext());
+			assertEquals(2L, cursor.getIndex());
+			assertEquals("world", new String(cursor.next()));
+		}
+		assertEquals(Arrays.asList("hello", "world", ""), bigArray.stream(0, 4).map(String::new).collect(Collectors.toList()));
+		assertEquals(3L, bigArray.stream(0, 4).parallel().count());
+	}
+	
+	@Test
+	public void durabilityPolicyTest() throws Exception {
+		bigArray = new BigArrayImpl(testDir, "durability_policy_test");
+		BigArrayImpl array = (BigArrayImpl) bigArray;
+		assertEquals(DurabilityPolicy.NONE, array.getDurabilityPolicy());
+		
+		// no policy, durable on the next flush
+		CompletableFuture<Long> durable = bigArray.appendDurable("none".getBytes());
+		assertFalse(durable.isDone());
+		bigArray.flush();
+		assertEquals(Long.valueOf(0L), durable.get());
+		
+		array.setDurabilityPolicy(DurabilityPolicy.everyNItems(10));
+		durable = bigArray.appendDurable("every n".getBytes());
+		for (int i = 0; i < 9; i++) {
+			bigArray.append(("" + i).getBytes());
+		}
+		assertEquals(Long.valueOf(1L), durable.get(10, TimeUnit.SECONDS));
+		
+		array.setDurabilityPolicy(DurabilityPolicy.periodic(20, TimeUnit.MILLISECONDS));
+		durable = bigArray.appendDurable("periodic".getBytes());
+		assertEquals(Long.valueOf(11L), durable.get(10, TimeUnit.SECONDS));
+		
+		// concurrent appenders share forces and only return once their item is durable
+		array.setDurabilityPolicy(DurabilityPolicy.SYNC_ON_APPEND);
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		Thread[] producers = new Thread[4];
+		for (int p = 0; p < producers.length; p++) {
+			producers[p] = new Thread() {
+				public void run() {
+					try {
+						for (int i = 0; i < 100; i++) {
+							long index = bigArray.append("sync".getBytes());
+							if (!bigArray.appendDurable("sync".getBytes()).isDone()) {
+								throw new AssertionError("item " + (index + 1) + " is not durable");
+							}
+						}
+					} catch (Throwable t) {
+						failure.set(t);
+					}
+				}
+			};
+			producers[p].start();
+		}
+		for (Thread producer : producers) {
+			producer.join();
+		}
+		assertNull(failure.get());
+		assertEquals(12L + 800L, bigArray.size());
+		
+		// closing makes everything appended durable and stops the flusher
+		array.setDurabilityPolicy(DurabilityPolicy.NONE);
+		durable = bigArray.appendDurable("close".getBytes());
+		bigArray.close();
+		assertTrue(durable.isDone());
+		
+		bigArray = new BigArrayImpl(testDir, "durability_policy_test");
+		assertEquals(12L + 800L + 1L, bigArray.size());
+		assertEquals("close", new String(bigArray.get(bigArray.getHeadIndex() - 1)));
+	}
+	
+	@Test
+	public void premapTest() throws Exception {
+		bigArray = new BigArrayImpl(testDir, "premap_test", BigArrayImpl.MINIMUM_DATA_PAGE_SIZE);
+		BigArrayImpl array = (BigArrayImpl) bigArray;
+		try {
+			array.setPremapThreshold(1.5);
+			fail("IllegalArgumentException should be thrown here");
+		} catch (IllegalArgumentException ex) {
+		}
+		array.setPremapThreshold(0.5);
+		
+		// past half of the first data page and of the first index page
+		byte[] data = new byte[300];
+		int loop = BigArrayImpl.INDEX_ITEMS_PER_PAGE / 2 + 1;
+		for (int i = 0; i < loop; i++) {
+			bigArray.append(data);
+		}
+		assertEquals(0L, array.headDataPageIndex);
+		long deadline = System.currentTimeMillis() + 10000;
+		while ((!array.dataPageFactory.getExistingBackFileIndexSet().contains(1L)
+				|| !array.indexPageFactory.getExistingBackFileIndexSet().contains(1L))
+				&& System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertTrue(array.dataPageFactory.getExistingBackFileIndexSet().contains(1L));
+		assertTrue(array.indexPageFactory.getExistingBackFileIndexSet().contains(1L));
+		
+		// roll over into the pre-mapped pages
+		for (int i = 0; i < loop; i++) {
+			bigArray.append(("" + i).getBytes());
+		}
+		assertEquals(2L * loop, bigArray.size());
+		assertEquals("0", new String(bigArray.get(loop)));
+		
+		bigArray.close();
+		bigArray = new BigArrayImpl(testDir, "premap_test", BigArrayImpl.MINIMUM_DATA_PAGE_SIZE);
+		assertEquals(2L * loop, bigArray.size());
+		assertEquals("" + (loop - 1), new String(bigArray.get(2L * loop - 1)));
+	}
+	
+	@Test
+	public void codecTest() throws IOException {
+		bigArray = new BigArrayImpl(testDir, "codec_test");
+		BigArrayImpl array = (BigArrayImpl) bigArray;
+		// the codec of a previous run survives removeAll
+		array.setCodec(null);
+		assertNull(array.getCodec());
+		bigArray.append("raw".getBytes());
+		
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 100; i++) {
+			sb.append("{\"metric\":\"cpu.load\",\"value\":").append(i).append("}\n");
+		}
+		byte[] text = sb.toString().getBytes();
+		byte[] random = new byte[1000];
+		new java.util.Random(7).nextBytes(random);
+		
+		array.setCodec(ItemCodecs.LZ4);
+		bigArray.append(text);
+		bigArray.append(random);
+		bigArray.append(new byte[0]);
+		bigArray.append(text, 10, 500);
+		ByteBuffer direct = ByteBuffer.allocateDirect(text.length);
+		direct.put(text).flip();
+		bigArray.append(direct);
+		assertEquals(0, direct.remaining());
+		
+		array.setCodec(ItemCodecs.DEFLATE);
+		List<byte[]> batch = new ArrayList<byte[]>();
+		batch.add(text);
+		batch.add(random);
+		batch.add("small".getBytes());
+		bigArray.appendBatch(batch);
+		
+		// compressed items report their original length and a smaller stored length
+		assertEquals(text.length, bigArray.getItemLength(1));
+		assertTrue(bigArray.getStoredItemLength(1) < text.length / 3);
+		assertEquals(random.length, bigArray.getItemLength(2));
+		assertEquals(random.length, bigArray.getStoredItemLength(2));
+		assertTrue(bigArray.getStoredItemLength(6) < text.length / 3);
+		
+		bigArray.close();
+		bigArray = new BigArrayImpl(testDir, "codec_test");
+		assertSame(ItemCodecs.DEFLATE, ((BigArrayImpl) bigArray).getCodec());
+		
+		assertEquals("raw", new String(bigArray.get(0)));
+		assertArrayEquals(text, bigArray.get(1));
+		assertArrayEquals(random, bigArray.get(2));
+		assertEquals(0, bigArray.get(3).length);
+		assertArrayEquals(Arrays.copyOfRange(text, 10, 510), bigArray.get(4));
+		assertArrayEquals(text, bigArray.get(5));
+		assertArrayEquals(text, bigArray.get(6));
+		assertArrayEquals(random, bigArray.get(7));
+		assertEquals("small", new String(bigArray.get(8)));
+		assertEquals(text.length, bigArray.getItemLength(6));
+		
+		// the codec survives removeAll
+		bigArray.removeAll();
+		bigArray.append(text);
+		assertTrue(bigArray.getStoredItemLength(0) < text.length / 3);
+		assertArrayEquals(text, bigArray.get(0));
+	}
+	
+	@Test
+	public void getIntoBufferTest() throws IOException {
+		bigArray = new BigArrayImpl(testDir, "get_into_buffer_test");
+		BigArrayImpl array = (BigArrayImpl) bigArray;
+		array.setCodec(null);
+		array.setVerifyChecksums(true);
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 100; i++) {
+			sb.append("{\"metric\":\"cpu.load\",\"value\":").append(i).append("}\n");
+		}
+		byte[] text = sb.toString().getBytes();
+		bigArray.append(text);
+		bigArray.append(new byte[0]);
+		array.setCodec(ItemCodecs.LZ4);
+		bigArray.append(text);
+		
+		for (ByteBuffer buffer : new ByteBuffer[] {ByteBuffer.allocate(4096), ByteBuffer.allocateDirect(4096)}) {
+			for (long index = 0; index < 3; index++) {
+				buffer.clear();
+				buffer.position(7);
+				assertEquals(bigArray.getItemLength(index), bigArray.get(index, buffer));
+				assertEquals(7 + bigArray.getItemLength(index), buffer.position());
+				buffer.flip();
+				buffer.position(7);
+				byte[] data = new byte[buffer.remaining()];
+				buffer.get(data);
+				assertArrayEquals(bigArray.get(index), data);
+			}
+			
+			// the buffer is left unchanged if the item does not fit
+			buffer.clear();
+			buffer.limit(text.length - 1);
+			for (long index : new long[] {0, 2}) {
+				try {
+					bigArray.get(index, buffer);
+					fail("BufferOverflowException should be thrown here");
+				} catch (BufferOverflowException ex) {
+				}
+				assertEquals(0, buffer.position());
+			}
+		}
+		
+		byte[] dst = new byte[text.length + 3];
+		assertEquals(text.length, bigArray.get(2, dst, 3));
+		assertArrayEquals(text, Arrays.copyOfRange(dst, 3, dst.length));
+	}
+	
+	@Test
+	public void leaseTest() throws IOException {
+		bigArray = new BigArrayImpl(testDir, "lease_test");
+		BigArrayImpl array = (BigArrayImpl) bigArray;
+		array.setCodec(null);
+		bigArray.append("raw item".getBytes());
+		array.setCodec(ItemCodecs.LZ4);
+		byte[] text = new byte[1000];
+		Arrays.fill(text, (byte) 'x');
+		bigArray.append(text);
+		
+		try (ItemLease raw = bigArray.lease(0); ItemLease compressed = bigArray.lease(1)) {
+			assertEquals(0L, raw.getIndex());
+			assertEquals(8, raw.getLength());
+			assertTrue(raw.getBuffer().isReadOnly());
+			assertTrue(raw.getBuffer().isDirect());
+			byte[] data = new byte[raw.getLength()];
+			raw.getBuffer().get(data);
+			assertEquals("raw item", new String(data));
+			
+			assertEquals(text.length, compressed.getLength());
+			assertEquals(ByteBuffer.wrap(text), compressed.getBuffer());
+			
+			// the view is not affected by other reads on the same thread
+			assertArrayEquals(text, bigArray.get(1));
+			raw.getBuffer().rewind();
+			assertEquals(ByteBuffer.wrap("raw item".getBytes()), raw.getBuffer());
+		}
+		
+		ItemLease lease = bigArray.lease(0);
+		lease.close();
+		lease.close();
+		try {
+			lease.getBuffer();
+			fail("IllegalStateException should be thrown here");
+		} catch (IllegalStateException ex) {
+		}
+	}
+	
+	@Test
+	public void leaseRemovedItemTest() throws IOException {
+		bigArray = new BigArrayImpl(testDir, "lease_removed_item_test", BigArrayImpl.MINIMUM_DATA_PAGE_SIZE);
+		BigArrayImpl array = (BigArrayImpl) bigArray;
+		array.setCodec(null);
+		byte[] item = new byte[64 * 1024];
+		Arrays.fill(item, (byte) 'x');
+		int loop = 2 * BigArrayImpl.MINIMUM_DATA_PAGE_SIZE / item.length + 1;
+		for (int i = 0; i < loop; i++) {
+			bigArray.append(item);
+		}
+		
+		// the data page of a leased item stays mapped when the item is removed, and once the array is emptied
+		try (ItemLease lease = bigArray.lease(0)) {
+			bigArray.removeBeforeIndex(loop - 1);
+			assertEquals(ByteBuffer.wrap(item), lease.getBuffer());
+			bigArray.removeAll();
+			bigArray.append("new item".getBytes());
+			assertEquals(ByteBuffer.wrap(item), lease.getBuffer());
+		}
+		assertEquals("new item", new String(bigArray.get(0)));
+		
+		// the same for the pages pinned by a cursor
+		bigArray.removeAll();
+		for (int i = 0; i < loop; i++) {
+			bigArray.append(item);
+		}
+		try (BigArrayCursor cursor = bigArray.cursor()) {
+			ByteBuffer buffer = ByteBuffer.allocate(item.length);
+			assertEquals(item.length, cursor.next(buffer));
+			bigArray.removeAll();
+			bigArray.append("first".getBytes());
+			bigArray.append("second".getBytes());
+			assertEquals("second", new String(cursor.next()));
+		}
+	}
+	
+	@Test
+	public void getRangeTest() throws IOException {
+		bigArray = new BigArrayImpl(testDir, "get_range_test", BigArrayImpl.MINIMUM_DATA_PAGE_SIZE);
+		BigArrayImpl array = (BigArrayImpl) bigArray;
+		array.setCodec(null);
+		array.setVerifyChecksums(true);
+		// raw items span two data pages
+		int loop = 400;
+		for (int i = 0; i < loop; i++) {
+			bigArray.append(rangeItem(i));
+			if (i == 350) {
+				array.setCodec(ItemCodecs.LZ4);
+			}
+		}
+		
+		List<byte[]> items = bigArray.getRange(0, loop, Long.MAX_VALUE);
+		assertEquals(loop, items.size());
+		for (int i = 0; i < loop; i++) {
+			assertArrayEquals(rangeItem(i), items.get(i));
+		}
+		
+		assertEquals(10, bigArray.getRange(100, 10, Long.MAX_VALUE).size());
+		assertEquals(5, bigArray.getRange(100, 10, 500000).size());
+		// the first item is returned even if it exceeds the byte limit
+		assertEquals(1, bigArray.getRange(100, 10, 1).size());
+		assertEquals(3, bigArray.getRange(loop - 3, 10, Long.MAX_VALUE).size());
+		assertEquals(0, bigArray.getRange(loop, 10, Long.MAX_VALUE).size());
+		try {
+			bigArray.getRange(loop + 1, 10, Long.MAX_VALUE);
+			fail("IndexOutOfBoundsException should be thrown here");
+		} catch (IndexOutOfBoundsException ex) {
+		}
+		
+		final List<Long> indexes = new ArrayList<Long>();
+		int visited = bigArray.getRange(300, 100, Long.MAX_VALUE, (index, data) -> {
+			assertTrue(data.isReadOnly());
+			byte[] item = new byte[data.remaining()];
+			data.get(item);
+			// nested reads on the same thread do not disturb the range
+			assertArrayEquals(bigArray.get(index), item);
+			indexes.add(index);
+		});
+		assertEquals(100, visited);
+		for (int i = 0; i < 100; i++) {
+			assertEquals(Long.valueOf(300 + i), indexes.get(i));
+		}
+	}
+	
+	@Test
+	public void getRangeReleasesLockTest() throws Exception {
+		bigArray = new BigArrayImpl(testDir, "get_range_lock_test");
+		final BigArrayImpl array = (BigArrayImpl) bigArray;
+		final int perPage = BigArrayImpl.INDEX_ITEMS_PER_PAGE;
+		for (int i = 0; i < perPage + 20; i++) {
+			bigArray.append(("" + i).getBytes());
+		}
+		
+		// a removal waiting on the last item of the first index page runs before the range moves on
+		final ReentrantReadWriteLock lock = (ReentrantReadWriteLock) array.arrayReadWritelock;
+		final Thread[] remover = new Thread[1];
+		int visited = bigArray.getRange(perPage - 10, 30, Long.MAX_VALUE, (index, data) -> {
+			if (index == perPage - 1) {
+				remover[0] = new Thread(() -> {
+					try {
+						array.removeBeforeIndex(perPage + 10);
+					} catch (IOException e) {
+						throw new RuntimeException(e);
+					}
+				});
+				remover[0].start();
+				for (int i = 0; i < 100 && !lock.hasQueuedThreads(); i++) {
+					TestUtil.sleepQuietly(10);
+				}
+			}
+		});
+		remover[0].join();
+		assertEquals(10, visited); // the range ended at the removed items
+		assertEquals(perPage + 10, bigArray.getTailIndex());
+		assertEquals(10, bigArray.getRange(perPage + 10, 30, Long.MAX_VALUE).size());
+	}
+	
+	// 100000 bytes of zeros ending with i
+	private static byte[] rangeItem(int i) {
+		byte[] item = new byte[100000];
+		Arrays.fill(item, (byte) '0');
+		byte[] number = String.valueOf(i).getBytes();
+		System.arraycopy(number, 0, item, item.length - number.length, number.length);
+		return item;
+	}
+	
+	@Test
+	public void cursorTest() throws IOException {
+		bigArray = new BigArrayImpl(testDir, "cursor_test");
+		BigArrayImpl array = (BigArrayImpl) bigArray;
+		array.setCodec(null);
+		array.setVerifyChecksums(true);
+		try (BigArrayCursor cursor = bigArray.cursor()) {
+			assertFalse(cursor.hasNext());
+			try {
+				cursor.next();
+				fail("NoSuchElementException should be thrown here");
+			} catch (NoSuchElementException ex) {
+			}
+			
+			// items appended after the cursor was opened are visible, across index pages
+			int loop = BigArrayImpl.INDEX_ITEMS_PER_PAGE + 100;
+			for (int i = 0; i < loop; i++) {
+				bigArray.append(("" + i).getBytes());
+				if (i == loop - 50) {
+					array.setCodec(ItemCodecs.LZ4);
+				}
+			}
+			for (int i = 0; i < loop; i++) {
+				assertTrue(cursor.hasNext());
+				assertEquals(i, cursor.getIndex());
+				assertEquals("" + i, new String(cursor.next()));
+			}
+			assertFalse(cursor.hasNext());
+			bigArray.append("next".getBytes());
+			ByteBuffer buffer = ByteBuffer.allocateDirect(16);
+			assertEquals(4, cursor.next(buffer));
+			assertEquals(4, buffer.position());
+			
+			cursor.seek(10);
+			assertEquals("10", new String(cursor.next()));
+			cursor.seekToTimestamp(bigArray.getTimestamp(0) - 1000);
+			assertEquals(0L, cursor.getIndex());
+			try {
+				cursor.seek(loop + 2);
+				fail("IndexOutOfBoundsException should be thrown here");
+			} catch (IndexOutOfBoundsException ex) {
+			}
+			
+			// a cursor lagging behind the tail skips the removed items
+			cursor.seek(5);
+			assertEquals("5", new String(cursor.next()));
+			bigArray.removeBeforeIndex(BigArrayImpl.INDEX_ITEMS_PER_PAGE + 10);
+			assertTrue(cursor.hasNext());
+			assertEquals(BigArrayImpl.INDEX_ITEMS_PER_PAGE + 10, cursor.getIndex());
+			assertEquals("" + (BigArrayImpl.INDEX_ITEMS_PER_PAGE + 10), new String(cursor.next()));
+			
+			// and an emptied array moves it back to the head
+			bigArray.removeAll();
+			assertFalse(cursor.hasNext());
+			bigArray.append("again".getBytes());
+			assertEquals("again", new String(cursor.next()));
+		}
+	}
+	
+	@Test
+	public void streamTest() throws IOException {
+		bigArray = new BigArrayImpl(testDir, "stream_test");
+		int loop = BigArrayImpl.INDEX_ITEMS_PER_PAGE * 3 + 10;
+		for (int i = 0; i < loop; i++) {
+			bigArray.append(("" + i).getBytes());
+		}
+		
+		// splits fall on index page boundaries
+		BigArraySpliterator spliterator = new BigArraySpliterator((BigArrayImpl) bigArray, 5, loop);
+		Spliterator<byte[]> prefix = spliterator.trySplit();
+		assertEquals(2L * BigArrayImpl.INDEX_ITEMS_PER_PAGE - 5, prefix.estimateSize());
+		assertEquals(loop - 2L * BigArrayImpl.INDEX_ITEMS_PER_PAGE, spliterator.estimateSize());
+		assertEquals(BigArrayImpl.INDEX_ITEMS_PER_PAGE - 5, prefix.trySplit().estimateSize());
+		assertNull(prefix.trySplit());
+		
+		long expected = (long) loop * (loop - 1) / 2;
+		assertEquals(expected, bigArray.stream(0, loop).parallel().mapToLong(data -> Long.parseLong(new String(data))).sum());
+		assertEquals(expected, bigArray.stream(0, loop).mapToLong(data -> Long.parseLong(new String(data))).sum());
+		assertEquals("100", new String(bigArray.stream(100, 200).findFirst().get()));
+		assertEquals(0L, bigArray.stream(loop, loop).count());
+		try {
+			bigArray.stream(0, loop + 1);
+			fail("IndexOutOfBoundsException should be thrown here");
+		} catch (IndexOutOfBoundsException ex) {
+		}
+		
+		// items removed from the tail are skipped
+		Iterator<byte[]> iterator = bigArray.stream(0, loop).iterator();
+		assertEquals("0", new String(iterator.next()));
+		bigArray.removeBeforeIndex(BigArrayImpl.INDEX_ITEMS_PER_PAGE);
+		assertEquals("" + BigArrayImpl.INDEX_ITEMS_PER_PAGE, new String(iterator.next()));
+	}
+	
+	@Test
+	public void lockFreeAccessorsTest() throws Exception {
+		bigArray = new BigArrayImpl(testDir, "lock_free_accessors_test");
+		final int loop = 20000;
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		Thread writer = new Thread(() -> {
+			try {
+				for (int i = 0; i < loop; i++) {
+					long index = bigArray.append(("" + i).getBytes());
+					if (i % 100 == 99) {
+						bigArray.removeBeforeIndex(index);
+					}
+				}
+			} catch (Throwable t) {
+				failure.set(t);
+			}
+		});
+		writer.start();
+		
+		// size always describes a consistent head and tail
+		while (writer.isAlive()) {
+			long tail = bigArray.getTailIndex();
+			long size = bigArray.size();
+			long head = bigArray.getHeadIndex();
+			assertTrue("size " + size, size >= 0 && size <= 101); // 100 items appended after the last kept one
+			assertTrue(tail + " " + head, tail <= head);
+		}
+		writer.join();
+		assertNull(failure.get());
+		assertEquals(1L, bigArray.size());
+		assertEquals(loop, bigArray.getHeadIndex());
+	}
+	
+	@Test
+	public void timestampIndexTest() throws IOException {
+		bigArray = new BigArrayImpl(testDir, "timestamp_index_test");
+		BigArrayImpl array = (BigArrayImpl) bigArray;
+		TestClock testClock = new TestClock();
+		array.setClock(testClock);
+		int perPage = BigArrayImpl.INDEX_ITEMS_PER_PAGE;
+		int loop = 2 * perPage + perPage / 2;
+		for (int i = 0; i < loop; i++) {
+			if (i % perPage == 0) {
+				testClock.advanceClock(1000); // a gap between index pages
+			}
+			bigArray.append(("" + i).getBytes());
+		}
+		checkClosestIndexes(perPage, loop);
+		
+		// the entry of the head index page is only written on flush, the others when the next page started
+		TimestampIndex onDisk = new TimestampIndex(((BigArrayImpl) bigArray).getArrayDirectory());
+		assertEquals(bigArray.getTimestamp(perPage), onDisk.getMin(1));
+		assertEquals(0L, onDisk.getMin(2));
+		bigArray.flush();
+		assertEquals(bigArray.getTimestamp(2 * perPage), onDisk.getMin(2));
+		assertEquals(bigArray.getTimestamp(loop - 1), onDisk.getMax(2));
+		onDisk.releaseCachedPages();
+		
+		// the timestamp index is persisted
+		bigArray.close();
+		bigArray = new BigArrayImpl(testDir, "timestamp_index_test");
+		checkClosestIndexes(perPage, loop);
+		
+		// and rebuilt for arrays written without it
+		String arrayDirectory = ((BigArrayImpl) bigArray).getArrayDirectory();
+		bigArray.close();
+		FileUtil.deleteDirectory(new File(arrayDirectory + TimestampIndex.TIMESTAMP_INDEX_PAGE_FOLDER));
+		bigArray = new BigArrayImpl(testDir, "timestamp_index_test");
+		checkClosestIndexes(perPage, loop);
+		
+		// remove before is exact
+		long pageTimestamp = bigArray.getTimestamp(perPage);
+		bigArray.removeBefore(bigArray.getTimestamp(perPage + 5));
+		assertEquals(perPage + 5, bigArray.getTailIndex());
+		assertEquals(perPage + 5, bigArray.findClosestIndex(0L));
+		bigArray.removeBefore(pageTimestamp);
+		assertEquals(perPage + 5, bigArray.getTailIndex());
+		
+		// everything is older
+		bigArray.removeBefore(bigArray.getTimestamp(loop - 1) + 1);
+		assertTrue(bigArray.isEmpty());
+		assertEquals(loop, bigArray.getTailIndex());
+		assertEquals(IBigArray.NOT_FOUND, bigArray.findClosestIndex(0L));
+		((BigArrayImpl) bigArray).setClock(testClock);
+		assertEquals(loop, bigArray.append("next".getBytes()));
+		assertEquals(loop, bigArray.findClosestIndex(0L));
+		assertEquals("next", new String(bigArray.get(loop)));
+	}
+	
+	private void checkClosestIndexes(int perPage, int loop) throws IOException {
+		for (long index : new long[] {0, 100, perPage - 1, perPage, perPage + 5, 2 * perPage, loop - 1}) {
+			assertEquals(index, bigArray.findClosestIndex(bigArray.getTimestamp(index)));
+		}
+		assertEquals(0L, bigArray.findClosestIndex(0L));
+		assertEquals(loop - 1, bigArray.findClosestIndex(Long.MAX_VALUE));
+		// in the gap, the closest of the last item of a page and the first item of the next one
+		assertEquals(perPage - 1, bigArray.findClosestIndex(bigArray.getTimestamp(perPage - 1) + 10));
+		assertEquals(perPage, bigArray.findClosestIndex(bigArray.getTimestamp(perPage) - 10));
+	}
+	
+	@Test
+	public void checksumTest() throws IOException {
+		bigArray = new BigArrayImpl(testDir, "checksum_test");
+		BigArrayImpl array = (BigArrayImpl) bigArray;
+		array.setCodec(null);
+		array.setVerifyChecksums(true);
+		// 10 bytes per item, so item i starts at offset i * 10 of the first data page
+		for (int i = 0; i < 4; i++) {
+			bigArray.append(String.format("item-%05d", i).getBytes());
+		}
+		final int n = 4;
+		bigArray.append(10, buffer -> buffer.put(String.format("item-%05d", n).getBytes()));
+		List<byte[]> batch = new ArrayList<byte[]>();
+		for (int i = 5; i < 10; i++) {
+			batch.add(String.format("item-%05d", i).getBytes());
+		}
+		bigArray.appendBatch(batch);
+		assertEquals(BigArrayImpl.NOT_FOUND, array.verify(false));
+		for (int i = 0; i < 10; i++) {
+			assertEquals(String.format("item-%05d", i), new String(bigArray.get(i)));
+		}
+		
+		// flip a byte of item 6
+		IMappedPage dataPage = array.dataPageFactory.acquirePage(0);
+		dataPage.putByte(65, (byte) (dataPage.getByte(65) ^ 0xFF));
+		array.dataPageFactory.releasePage(0);
+		try {
+			bigArray.get(6);
+			fail("IOException should be thrown here");
+		} catch (IOException ex) {
+		}
+		ByteBuffer buffer = ByteBuffer.allocateDirect(16);
+		try {
+			bigArray.get(6, buffer);
+			fail("IOException should be thrown here");
+		} catch (IOException ex) {
+		}
+		assertEquals(0, buffer.position());
+		array.setVerifyChecksums(false);
+		assertEquals(10, bigArray.get(6).length);
+		
+		assertEquals(6L, array.verify(false));
+		assertEquals(10L, bigArray.getHeadIndex());
+		assertEquals(6L, array.verify(true));
+		assertEquals(6L, bigArray.getHeadIndex());
+		assertEquals(BigArrayImpl.NOT_FOUND, array.verify(false));
+		
+		// appending continues from the truncated head
+		bigArray.append("item-00006".getBytes());
+		array.setVerifyChecksums(true);
+		assertEquals("item-00006", new String(bigArray.get(6)));
+		
+		bigArray.close();
+		bigArray = new BigArrayImpl(testDir, "checksum_test");
+		assertEquals(7L, bigArray.size());
+		assertEquals(BigArrayImpl.NOT_FOUND, ((BigArrayImpl) bigArray).verify(false));
+	}
+	
+	@Test
+	public void recoveryTest() throws IOException {
+		bigArray = new BigArrayImpl(testDir, "recovery_test");
+		BigArrayImpl array = (BigArrayImpl) bigArray;
+		for (int i = 0; i < 10; i++) {
+			bigArray.append(String.format("item-%05d", i).getBytes());
+		}
+		
+		// a crash forced the meta page with head 15 but lost index items 10 to 14 and part of item 9
+		IMappedPage metaPage = array.metaPageFactory.acquirePage(BigArrayImpl.META_DATA_PAGE_INDEX);
+		metaPage.putLong(0, 15L);
+		metaPage.setDirty(true);
+		IMappedPage dataPage = array.dataPageFactory.acquirePage(0);
+		dataPage.putByte(95, (byte) 0);
+		dataPage.setDirty(true);
+		bigArray.close();
+		
+		bigArray = new BigArrayImpl(testDir, "recovery_test");
+		assertEquals(9L, bigArray.getHeadIndex());
+		assertEquals(9L, bigArray.size());
+		for (int i = 0; i < 9; i++) {
+			assertEquals(String.format("item-%05d", i), new String(bigArray.get(i)));
+		}
+		// appending continues right after item 8
+		bigArray.append("item-00009".getBytes());
+		assertEquals("item-00009", new String(bigArray.get(9)));
+		assertEquals(BigArrayImpl.NOT_FOUND, ((BigArrayImpl) bigArray).verify(false));
+		
+		// a consistent array is opened unchanged
+		bigArray.close();
+		bigArray = new BigArrayImpl(testDir, "recovery_test");
+		assertEquals(10L, bigArray.getHeadIndex());
+	}
+	
 	@Test 
 	public void removeBeforeIndexTest() throws IOException {
 	    bigArray = new BigArrayImpl(testDir, "remove_before_index_test");
@@ -313,6 +1222,16 @@ public class BigArrayUnitTest {
 		long lastTailIndex = bigArray.getTailIndex();
 		assertTrue(lastTailIndex > 0);
 		assertTrue(bigArray.getHeadIndex() == loop + 1);
+		// the new tail starts a data page, as recorded in the page start index
+		boolean pageStart = false;
+		for(long dataPageIndex = 0; dataPageIndex < 16; dataPageIndex++) {
+			pageStart |= ((BigArrayImpl) bigArray).pageStartIndex.get(dataPageIndex) == lastTailIndex;
+		}
+		assertTrue(pageStart);
+		// wrong entries are detected, the data page starts are then searched in the index pages
+		for(long dataPageIndex = 0; dataPageIndex < 16; dataPageIndex++) {
+			((BigArrayImpl) bigArray).pageStartIndex.put(dataPageIndex, lastTailIndex + 1);
+		}
 		
 		bigArray.limitBackFileSize(BigArrayImpl.INDEX_PAGE_SIZE * 8 + bigArray.getDataPageSize() * 2);
 		assertTrue(bigArray.getBackFileSize() <= BigArrayImpl.INDEX_PAGE_SIZE * 8 + bigArray.getDataPageSize() * 2);
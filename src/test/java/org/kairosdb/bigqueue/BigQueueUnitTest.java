@@ -5,6 +5,10 @@ import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.*;
 
 import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.*;
 import java.util.function.Consumer;
 
@@ -90,6 +94,133 @@ public class BigQueueUnitTest {
 		bigQueue.close();
 	}
 	
+	@Test
+	public void enqueueBatchTest() throws IOException {
+		bigQueue = new BigQueueImpl(testDir, "enqueue_batch_test");
+		assertNotNull(bigQueue);
+		
+		List<byte[]> batch = new ArrayList<byte[]>();
+		for(int i = 0; i < 1000; i++) {
+			batch.add(("" + i).getBytes());
+		}
+		bigQueue.enqueueBatch(batch);
+		bigQueue.enqueueBatch(new ArrayList<byte[]>());
+		assertTrue(bigQueue.size() == 1000L);
+		
+		for(int i = 0; i < 1000; i++) {
+			assertEquals("" + i, new String(bigQueue.dequeue()));
+		}
+		assertTrue(bigQueue.isEmpty());
+	}
+	
+	@Test
+	public void enqueueDurableTest() throws Exception {
+		bigQueue = new BigQueueImpl(testDir, "enqueue_durable_test");
+		((BigQueueImpl) bigQueue).setDurabilityPolicy(DurabilityPolicy.SYNC_ON_APPEND);
+		
+		for(int i = 0; i < 100; i++) {
+			assertTrue(bigQueue.enqueueDurable(("" + i).getBytes()).isDone());
+		}
+		assertEquals("0", new String(bigQueue.dequeue()));
+		
+		((BigQueueImpl) bigQueue).setDurabilityPolicy(DurabilityPolicy.periodic(20, TimeUnit.MILLISECONDS));
+		bigQueue.enqueueDurable("last".getBytes()).get(10, TimeUnit.SECONDS);
+		bigQueue.close();
+		
+		bigQueue = new BigQueueImpl(testDir, "enqueue_durable_test");
+		assertEquals(100L, bigQueue.size());
+		assertEquals("1", new String(bigQueue.dequeue()));
+	}
+	
+	@Test
+	public void skippedSlotTest() throws IOException {
+		bigQueue = new BigQueueImpl(testDir, "skipped_slot_test");
+		BigArrayImpl array = (BigArrayImpl) ((BigQueueImpl) bigQueue).innerArray;
+		array.setConcurrentAppend(true);
+		bigQueue.enqueue("item0".getBytes());
+		try {
+			array.append(8, buffer -> {
+				throw new IOException("serialization failed");
+			});
+			fail("IOException should be thrown here");
+		} catch (IOException ex) {
+		}
+		bigQueue.enqueue("item2".getBytes());
+		
+		// the skipped slot of the failed append is never returned
+		assertEquals("item0", new String(bigQueue.dequeue()));
+		assertEquals("item2", new String(bigQueue.peek()));
+		assertEquals(5, bigQueue.peekLength());
+		ByteBuffer buffer = ByteBuffer.allocate(64);
+		assertEquals(5, bigQueue.dequeue(buffer));
+		assertNull(bigQueue.dequeue());
+		assertTrue(bigQueue.isEmpty());
+	}
+	
+	@Test
+	public void dequeueIntoBufferTest() throws IOException {
+		bigQueue = new BigQueueImpl(testDir, "dequeue_into_buffer_test");
+		assertEquals(-1, bigQueue.peekLength());
+		for(int i = 0; i < 10; i++) {
+			bigQueue.enqueue(("item" + i).getBytes());
+		}
+		
+		ByteBuffer buffer = ByteBuffer.allocate(64);
+		assertEquals(5, bigQueue.peekLength());
+		assertEquals(5, bigQueue.dequeue(buffer));
+		assertEquals("item0", new String(buffer.array(), 0, buffer.position()));
+		
+		// an item that does not fit stays in the queue
+		ByteBuffer small = ByteBuffer.allocateDirect(3);
+		try {
+			bigQueue.dequeue(small);
+			fail("BufferOverflowException should be thrown here");
+		} catch (BufferOverflowException ex) {
+		}
+		assertEquals(0, small.position());
+		assertEquals(9L, bigQueue.size());
+		
+		ByteBuffer direct = ByteBuffer.allocateDirect(64);
+		for(int i = 1; i < 10; i++) {
+			direct.clear();
+			assertEquals(5, bigQueue.dequeue(direct));
+			direct.flip();
+			byte[] data = new byte[direct.remaining()];
+			direct.get(data);
+			assertEquals("item" + i, new String(data));
+		}
+		assertEquals(-1, bigQueue.dequeue(buffer));
+		assertTrue(bigQueue.isEmpty());
+	}
+	
+	@Test
+	public void removeBeforeTest() throws IOException {
+		bigQueue = new BigQueueImpl(testDir, "remove_before_test");
+		TestClock testClock = new TestClock();
+		((BigArrayImpl) ((BigQueueImpl) bigQueue).innerArray).setClock(testClock);
+		for(int i = 0; i < 10; i++) {
+			bigQueue.enqueue(("old" + i).getBytes());
+		}
+		bigQueue.dequeue();
+		bigQueue.dequeue();
+		long timestamp = testClock.getTime();
+		for(int i = 0; i < 5; i++) {
+			bigQueue.enqueue(("new" + i).getBytes());
+		}
+		
+		// expired items are dropped whether they were dequeued or not
+		bigQueue.removeBefore(timestamp);
+		assertEquals(5L, bigQueue.size());
+		assertEquals("new0", new String(bigQueue.dequeue()));
+		bigQueue.removeBefore(timestamp);
+		assertEquals(4L, bigQueue.size());
+		
+		bigQueue.removeBefore(testClock.getTime());
+		assertTrue(bigQueue.isEmpty());
+		bigQueue.enqueue("next".getBytes());
+		assertEquals("next", new String(bigQueue.dequeue()));
+	}
+	
 	@Test
 	public void loopTimingTest() throws IOException {
 		bigQueue = new BigQueueImpl(testDir, "loop_timing_test");
@@ -1,12 +1,20 @@
 package org.kairosdb.bigqueue;
 
+import java.io.File;
 import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.After;
 import org.junit.Test;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
@@ -69,6 +77,195 @@ public class FanOutQueueTest {
 		}
 	}
 	
+	@Test
+	public void enqueueBatchTest() throws IOException {
+		foQueue = new FanOutQueueImpl(testDir, "enqueue_batch");
+		assertNotNull(foQueue);
+		
+		foQueue.enqueue("0".getBytes());
+		List<byte[]> batch = new ArrayList<byte[]>();
+		for(int i = 1; i <= 1000; i++) {
+			batch.add(("" + i).getBytes());
+		}
+		assertEquals(1L, foQueue.enqueueBatch(batch));
+		assertEquals(1001L, foQueue.size());
+		
+		String fid = "enqueueBatchTest";
+		for(int i = 0; i <= 1000; i++) {
+			assertEquals("" + i, new String(foQueue.dequeue(fid)));
+		}
+		assertNull(foQueue.dequeue(fid));
+	}
+	
+	@Test
+	public void enqueueSliceAndBufferTest() throws IOException {
+		foQueue = new FanOutQueueImpl(testDir, "enqueue_slice_and_buffer");
+		assertNotNull(foQueue);
+		
+		assertEquals(0L, foQueue.enqueue("--hello--".getBytes(), 2, 5));
+		ByteBuffer buffer = ByteBuffer.allocateDirect(16);
+		buffer.put("world".getBytes());
+		buffer.flip();
+		assertEquals(1L, foQueue.enqueue(buffer));
+		
+		String fid = "enqueueSliceAndBufferTest";
+		assertEquals("hello", new String(foQueue.dequeue(fid)));
+		assertEquals("world", new String(foQueue.dequeue(fid)));
+		assertNull(foQueue.dequeue(fid));
+	}
+	
+	@Test
+	public void enqueueDurableTest() throws Exception {
+		foQueue = new FanOutQueueImpl(testDir, "enqueue_durable_test");
+		foQueue.setDurabilityPolicy(DurabilityPolicy.everyNItems(5));
+		
+		CompletableFuture<Long> durable = foQueue.enqueueDurable("first".getBytes());
+		for(int i = 0; i < 4; i++) {
+			foQueue.enqueue(("" + i).getBytes());
+		}
+		assertEquals(Long.valueOf(0L), durable.get(10, TimeUnit.SECONDS));
+		assertEquals("first", new String(foQueue.dequeue("fid")));
+		
+		foQueue.setDurabilityPolicy(DurabilityPolicy.NONE);
+		durable = foQueue.enqueueDurable("second".getBytes());
+		foQueue.flush();
+		assertEquals(Long.valueOf(5L), durable.get());
+	}
+	
+	@Test
+	public void closeWithPendingFlushTest() throws Exception {
+		foQueue = new FanOutQueueImpl(testDir, "close_pending_flush_test");
+		foQueue.removeAll(); // left over by a run stuck in close
+		foQueue.setDurabilityPolicy(DurabilityPolicy.periodic(60, TimeUnit.SECONDS));
+		for(int i = 0; i < 10; i++) {
+			foQueue.enqueue(("" + i).getBytes());
+		}
+		
+		// the final commit of the flusher must not wait for the closing queue
+		final FanOutQueueImpl closing = foQueue;
+		foQueue = null; // not cleaned up if the close gets stuck
+		Thread closer = new Thread(() -> {
+			try {
+				closing.close();
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		});
+		closer.setDaemon(true); // a stuck close does not keep the test run alive
+		closer.start();
+		closer.join(10000);
+		assertFalse(closer.isAlive());
+		
+		foQueue = new FanOutQueueImpl(testDir, "close_pending_flush_test");
+		assertEquals(10L, foQueue.size());
+		assertEquals("0", new String(foQueue.dequeue("fid")));
+	}
+	
+	@Test
+	public void dequeueLeaseTest() throws IOException {
+		foQueue = new FanOutQueueImpl(testDir, "dequeue_lease_test");
+		assertNull(foQueue.dequeueLease("fid"));
+		for(int i = 0; i < 10; i++) {
+			foQueue.enqueue(("item" + i).getBytes());
+		}
+		
+		for(int i = 0; i < 10; i++) {
+			try (ItemLease lease = foQueue.dequeueLease("fid")) {
+				assertEquals(i, lease.getIndex());
+				assertEquals(ByteBuffer.wrap(("item" + i).getBytes()), lease.getBuffer());
+			}
+		}
+		assertNull(foQueue.dequeueLease("fid"));
+		assertTrue(foQueue.isEmpty("fid"));
+		
+		try (ItemLease lease = foQueue.lease(3)) {
+			assertEquals(ByteBuffer.wrap("item3".getBytes()), lease.getBuffer());
+		}
+	}
+	
+	@Test
+	public void skippedSlotTest() throws IOException {
+		foQueue = new FanOutQueueImpl(testDir, "skipped_slot_test");
+		foQueue.innerArray.setConcurrentAppend(true);
+		foQueue.enqueue("item0".getBytes());
+		for(int i = 0; i < 2; i++) {
+			try {
+				foQueue.innerArray.append(8, buffer -> {
+					throw new IOException("serialization failed");
+				});
+				fail("IOException should be thrown here");
+			} catch (IOException ex) {
+			}
+		}
+		foQueue.enqueue("item3".getBytes());
+		foQueue.enqueue(new byte[0]);
+		
+		// the skipped slots of the failed appends are never returned
+		assertEquals("item0", new String(foQueue.dequeue("fid1")));
+		assertEquals("item3", new String(foQueue.peek("fid1")));
+		assertEquals(5, foQueue.peekLength("fid1"));
+		assertEquals("item3", new String(foQueue.dequeue("fid1")));
+		assertEquals(0, foQueue.dequeue("fid1").length);
+		assertNull(foQueue.dequeue("fid1"));
+		
+		ByteBuffer buffer = ByteBuffer.allocate(64);
+		assertEquals(5, foQueue.dequeue("fid2", buffer));
+		assertEquals(5, foQueue.dequeue("fid2", buffer));
+		assertEquals("item0item3", new String(buffer.array(), 0, buffer.position()));
+		
+		foQueue.dequeue("fid3");
+		try (ItemLease lease = foQueue.dequeueLease("fid3")) {
+			assertEquals(3L, lease.getIndex());
+		}
+		assertEquals(4L, foQueue.getFrontIndex("fid3"));
+	}
+	
+	@Test
+	public void streamTest() throws IOException {
+		foQueue = new FanOutQueueImpl(testDir, "stream_test");
+		for(int i = 0; i < 100; i++) {
+			foQueue.enqueue(("" + i).getBytes());
+		}
+		for(int i = 0; i < 40; i++) {
+			foQueue.dequeue("fid1");
+		}
+		
+		assertEquals(60L, foQueue.stream("fid1").count());
+		assertEquals(100L, foQueue.stream("fid2").parallel().count());
+		assertEquals("40", new String(foQueue.stream("fid1").findFirst().get()));
+		// streaming does not move the front
+		assertEquals(60L, foQueue.size("fid1"));
+	}
+	
+	@Test
+	public void dequeueIntoBufferTest() throws IOException {
+		foQueue = new FanOutQueueImpl(testDir, "dequeue_into_buffer_test");
+		for(int i = 0; i < 10; i++) {
+			foQueue.enqueue(("item" + i).getBytes());
+		}
+		
+		// each fan out reads into its own reused buffer
+		ByteBuffer buffer1 = ByteBuffer.allocate(64);
+		ByteBuffer buffer2 = ByteBuffer.allocateDirect(64);
+		for(int i = 0; i < 10; i++) {
+			buffer1.clear();
+			assertEquals(foQueue.peekLength("fid1"), foQueue.dequeue("fid1", buffer1));
+			assertEquals("item" + i, new String(buffer1.array(), 0, buffer1.position()));
+		}
+		assertEquals(-1, foQueue.dequeue("fid1", buffer1));
+		
+		buffer2.limit(2);
+		try {
+			foQueue.dequeue("fid2", buffer2);
+			fail("BufferOverflowException should be thrown here");
+		} catch (BufferOverflowException ex) {
+		}
+		buffer2.clear();
+		assertEquals(5, foQueue.dequeue("fid2", buffer2));
+		assertEquals(5, buffer2.position());
+		assertEquals(9L, foQueue.size("fid2"));
+	}
+
 	@Test
 	public void bigLoopTest() throws IOException {
 		foQueue = new FanOutQueueImpl(testDir, "big_loop_test");
@@ -207,41 +404,34 @@ public class FanOutQueueTest {
 		}
 	}
 
-	//This test needs to be broken up, too much is reliant upon file system modified times.
-	//@Test
-	public void removeBeforeTest() throws IOException, InterruptedException
+	@Test
+	public void removeBeforeTest() throws IOException
 	{
-		//removeBefore uses the file last modified time to determine what data to cleanup
+		//removeBefore uses the append timestamps of the items to determine what data to cleanup
 		foQueue = new FanOutQueueImpl(testDir, "remove_before", BigArrayImpl.MINIMUM_DATA_PAGE_SIZE);
-		//TestClock testClock = new TestClock();
-		//foQueue.innerArray.setClock(testClock);
+		TestClock testClock = new TestClock();
+		foQueue.innerArray.setClock(testClock);
 		
 		String randomString1 = TestUtil.randomString(32);
 		for(int i = 0; i < 1024 * 1024; i++) {
 			foQueue.enqueue(randomString1.getBytes());
 		}
 
-		Thread.sleep(1500);
-
 		String fid = "removeBeforeTest";
 		assertTrue(foQueue.size(fid) == 1024 * 1024);
 
-		long timestamp = System.currentTimeMillis();
-
-		Thread.sleep(1500);
+		long timestamp = testClock.getTime();
 
 		String randomString2 = TestUtil.randomString(32);
 		for(int i = 0; i < 1024 * 1024; i++) {
 			foQueue.enqueue(randomString2.getBytes());
 		}
 
-		Thread.sleep(1500);
-
 		foQueue.removeBefore(timestamp);
+		assertThat(foQueue.size(fid)).isEqualTo(1024 * 1024);
+		assertEquals(randomString2, new String(foQueue.peek(fid)));
 
-		timestamp = System.currentTimeMillis();
-
-		Thread.sleep(1500);
+		timestamp = testClock.getTime();
 
 		String randomString3 = TestUtil.randomString(32);
 		for(int i = 0; i < 1024 * 1024; i++) {
@@ -250,7 +440,6 @@ public class FanOutQueueTest {
 
 		foQueue.removeBefore(timestamp);
 
-		//assertTrue(foQueue.size(fid) == 9 * 128 * 1024);
 		assertThat(foQueue.size(fid)).isEqualTo(1024 * 1024);
 		assertEquals(randomString3, new String(foQueue.peek(fid)));
 	}
@@ -365,6 +554,89 @@ public class FanOutQueueTest {
 		assertEquals(randomString3, new String(foQueue.dequeue("test")));		
 	}
 	
+	@Test
+	public void gcTest() throws IOException {
+		foQueue = new FanOutQueueImpl(testDir, "gc_test");
+		
+		int itemsPerIndexPage = 1 << BigArrayImpl.INDEX_ITEMS_PER_PAGE_BITS;
+		for(int i = 0; i < 3 * itemsPerIndexPage; i++) {
+			foQueue.enqueue(("" + i).getBytes());
+		}
+		long backFileSize = foQueue.getBackFileSize();
+		foQueue.gc(); // no fan out yet
+		assertEquals(0L, foQueue.getFrontIndex());
+		
+		for(int i = 0; i < 2 * itemsPerIndexPage; i++) {
+			foQueue.dequeue("fast");
+		}
+		foQueue.dequeue("slow");
+		File manifest = new File(foQueue.innerArray.arrayDirectory + FanOutQueueImpl.FANOUT_MANIFEST_FILE_NAME);
+		assertTrue(manifest.exists());
+		foQueue.close();
+		assertTrue(manifest.delete()); // queues written before the manifest list their front directories once
+		
+		// the slow fan out is not loaded after reopening but still holds the items back
+		foQueue = new FanOutQueueImpl(testDir, "gc_test");
+		assertTrue(manifest.exists());
+		foQueue.dequeue("fast");
+		foQueue.gc();
+		assertEquals(1L, foQueue.getFrontIndex());
+		assertEquals(backFileSize, foQueue.getBackFileSize());
+		assertFalse(foQueue.queueFrontMap.containsKey("slow")); // read from the disk, not mapped
+		
+		for(int i = 0; i < itemsPerIndexPage; i++) {
+			foQueue.dequeue("slow");
+		}
+		foQueue.gc();
+		assertEquals(itemsPerIndexPage + 1, foQueue.getFrontIndex());
+		assertEquals(backFileSize - BigArrayImpl.INDEX_PAGE_SIZE, foQueue.getBackFileSize());
+		assertEquals("" + (itemsPerIndexPage + 1), new String(foQueue.dequeue("slow")));
+		assertEquals("" + (2 * itemsPerIndexPage + 1), new String(foQueue.dequeue("fast")));
+	}
+	
+	@Test
+	public void backFileSizeLimitTest() throws IOException {
+		foQueue = new FanOutQueueImpl(testDir, "back_file_size_limit", BigArrayImpl.MINIMUM_DATA_PAGE_SIZE);
+		assertNotNull(foQueue);
+		
+		int oneM = 1024 * 1024;
+		long sizeLimit = oneM * 4 * 32;
+		foQueue.setBackFileSizeLimit(sizeLimit);
+		
+		String randomString1 = TestUtil.randomString(32);
+		for(int i = 0; i < oneM; i++) { // 1 data page + 8 index pages
+			foQueue.enqueue(randomString1.getBytes());
+		}
+		assertEquals(randomString1, new String(foQueue.dequeue("test")));
+		String randomString2 = TestUtil.randomString(32);
+		for(int i = 0; i < 2 * oneM; i++) {
+			foQueue.enqueue(randomString2.getBytes());
+		}
+		
+		// truncated in the background
+		for(int i = 0; i < 100 && foQueue.getBackFileSize() > sizeLimit; i++) {
+			TestUtil.sleepQuietly(100);
+		}
+		assertTrue(foQueue.getBackFileSize() <= sizeLimit);
+		TestUtil.sleepQuietly(100);
+		// the queue front followed the tail
+		assertEquals(foQueue.getRearIndex() - foQueue.getFrontIndex(), foQueue.size("test"));
+		assertEquals(randomString2, new String(foQueue.dequeue("test")));
+		
+		foQueue.setBackFileSizeLimit(0); // disabled
+		for(int i = 0; i < oneM; i++) {
+			foQueue.enqueue(randomString2.getBytes());
+		}
+		TestUtil.sleepQuietly(500);
+		assertTrue(foQueue.getBackFileSize() > sizeLimit);
+		
+		try {
+			foQueue.setBackFileSizeLimit(-1);
+			fail("negative limit");
+		} catch (IllegalArgumentException expected) {
+		}
+	}
+	
 	
 	@After
 	public void clean() throws IOException {
@@ -0,0 +1,167 @@
+package org.kairosdb.bigqueue;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class RetentionManagerTest {
+
+	private String testDir = TestUtil.TEST_BASE_DIR + "retention/unit";
+	private RetentionManager manager;
+	private BigQueueImpl bigQueue;
+	private FanOutQueueImpl foQueue;
+	// reclaimed bytes reported by the manager, by queue name
+	private final ConcurrentMap<String, Long> reclaimed = new ConcurrentHashMap<String, Long>();
+
+	private RetentionManager newManager() {
+		return new RetentionManager(1, TimeUnit.HOURS) { // passes are run by the test
+			@Override
+			void reportReclaimed(String name, long bytes) {
+				reclaimed.merge(name, bytes, Long::sum);
+				super.reportReclaimed(name, bytes);
+			}
+		};
+	}
+
+	private long reclaimed(String name) {
+		return reclaimed.getOrDefault(name, 0L);
+	}
+
+	@Test
+	public void maxAgeTest() throws IOException {
+		manager = newManager();
+		bigQueue = new BigQueueImpl(testDir, "max_age_test");
+		TestClock testClock = new TestClock();
+		((BigArrayImpl) bigQueue.innerArray).setClock(testClock);
+		manager.setClock(testClock);
+		manager.register("max_age_test", bigQueue, RetentionPolicy.NONE.withMaxAge(1000, TimeUnit.MILLISECONDS));
+
+		for(int i = 0; i < 10; i++) {
+			bigQueue.enqueue(("old" + i).getBytes());
+		}
+		testClock.advanceClock(1000);
+		for(int i = 0; i < 5; i++) {
+			bigQueue.enqueue(("new" + i).getBytes());
+		}
+
+		manager.applyPolicies();
+		assertEquals(5L, bigQueue.size());
+		assertEquals("new0", new String(bigQueue.dequeue()));
+		assertEquals(0L, reclaimed("max_age_test")); // the pages still hold the new items
+
+		manager.unregister("max_age_test");
+		testClock.advanceClock(1000);
+		manager.applyPolicies();
+		assertEquals(4L, bigQueue.size());
+	}
+
+	@Test
+	public void maxBytesTest() throws IOException {
+		manager = newManager();
+		bigQueue = new BigQueueImpl(testDir, "max_bytes_test", BigArrayImpl.MINIMUM_DATA_PAGE_SIZE);
+		long maxBytes = 4 * BigArrayImpl.MINIMUM_DATA_PAGE_SIZE;
+		manager.register("max_bytes_test", bigQueue, RetentionPolicy.NONE.withMaxBytes(maxBytes));
+
+		int oneM = 1024 * 1024;
+		String randomString = TestUtil.randomString(32);
+		for(int i = 0; i < 3 * oneM; i++) { // 3 data pages + 24 index pages
+			bigQueue.enqueue(randomString.getBytes());
+		}
+
+		// limited on the retention thread of the array, not by the passes
+		long written = 3 * BigArrayImpl.MINIMUM_DATA_PAGE_SIZE + 24 * BigArrayImpl.INDEX_PAGE_SIZE;
+		for(int i = 0; i < 100 && reclaimed("max_bytes_test") + bigQueue.getBackFileSize() < written; i++) {
+			TestUtil.sleepQuietly(100);
+		}
+		assertTrue(bigQueue.getBackFileSize() <= maxBytes);
+		assertEquals(written - bigQueue.getBackFileSize(), reclaimed("max_bytes_test")); // reported by the retention thread
+		assertEquals(2 * oneM, bigQueue.size()); // the queue front followed the tail
+		assertEquals(randomString, new String(bigQueue.dequeue()));
+
+		manager.unregister("max_bytes_test"); // the limit is lifted
+		for(int i = 0; i < oneM; i++) {
+			bigQueue.enqueue(randomString.getBytes());
+		}
+		TestUtil.sleepQuietly(500);
+		assertTrue(bigQueue.getBackFileSize() > maxBytes);
+	}
+
+	@Test
+	public void deleteConsumedTest() throws IOException {
+		manager = newManager();
+		bigQueue = new BigQueueImpl(testDir, "delete_consumed_test");
+		foQueue = new FanOutQueueImpl(testDir, "delete_consumed_fanout_test");
+		RetentionPolicy policy = RetentionPolicy.NONE.withDeleteConsumed();
+		manager.register("delete_consumed_test", bigQueue, policy);
+		manager.register("delete_consumed_fanout_test", foQueue, policy);
+
+		int itemsPerIndexPage = 1 << BigArrayImpl.INDEX_ITEMS_PER_PAGE_BITS;
+		for(int i = 0; i < 3 * itemsPerIndexPage; i++) {
+			bigQueue.enqueue(("" + i).getBytes());
+			foQueue.enqueue(("" + i).getBytes());
+		}
+		long backFileSize = foQueue.getBackFileSize();
+		for(int i = 0; i < 2 * itemsPerIndexPage; i++) {
+			bigQueue.dequeue();
+			foQueue.dequeue("fast");
+		}
+		foQueue.dequeue("slow");
+
+		manager.applyPolicies();
+		assertEquals(backFileSize - BigArrayImpl.INDEX_PAGE_SIZE, bigQueue.getBackFileSize()); // gc keeps the last dequeued item
+		assertEquals(BigArrayImpl.INDEX_PAGE_SIZE, reclaimed("delete_consumed_test"));
+		assertEquals(backFileSize, foQueue.getBackFileSize()); // the slow fan out holds the items back
+		assertEquals(0L, reclaimed("delete_consumed_fanout_test"));
+
+		for(int i = 0; i < 2 * itemsPerIndexPage; i++) {
+			foQueue.dequeue("slow");
+		}
+		manager.applyPolicies();
+		assertEquals(backFileSize - 2 * BigArrayImpl.INDEX_PAGE_SIZE, foQueue.getBackFileSize());
+		assertEquals(2 * BigArrayImpl.INDEX_PAGE_SIZE, reclaimed("delete_consumed_fanout_test"));
+		assertEquals(BigArrayImpl.INDEX_PAGE_SIZE, reclaimed("delete_consumed_test")); // nothing left to collect
+		assertEquals(itemsPerIndexPage, bigQueue.size());
+		assertEquals(itemsPerIndexPage, foQueue.size("fast"));
+	}
+
+	@Test
+	public void invalidPolicyTest() {
+		try {
+			RetentionPolicy.NONE.withMaxAge(0, TimeUnit.SECONDS);
+			fail("invalid max age");
+		} catch (IllegalArgumentException expected) {
+		}
+		try {
+			RetentionPolicy.NONE.withMaxBytes(-1);
+			fail("invalid max bytes");
+		} catch (IllegalArgumentException expected) {
+		}
+		RetentionPolicy policy = RetentionPolicy.NONE.withMaxBytes(10).withDeleteConsumed();
+		assertEquals(10L, policy.getMaxBytes());
+		assertEquals(0L, policy.getMaxAgeMillis());
+		assertTrue(policy.isDeleteConsumed());
+	}
+
+	@After
+	public void clean() throws IOException {
+		if (manager != null) {
+			manager.close();
+		}
+		if (bigQueue != null) {
+			bigQueue.removeAll();
+			bigQueue.close();
+		}
+		if (foQueue != null) {
+			foQueue.removeAll();
+			foQueue.close();
+		}
+	}
+}
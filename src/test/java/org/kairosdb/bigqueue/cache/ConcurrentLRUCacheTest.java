@@ -0,0 +1,244 @@
+package org.kairosdb.bigqueue.cache;
+
+import static org.junit.Assert.*;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.kairosdb.bigqueue.TestClock;
+import org.kairosdb.bigqueue.TestUtil;
+import org.kairosdb.bigqueue.utils.SystemClockImpl;
+import org.junit.Test;
+
+public class ConcurrentLRUCacheTest {
+
+	@Test
+	public void singleThreadTest() throws IOException {
+		TestClock clock = new TestClock();
+		ConcurrentLRUCacheImpl<Integer, TestObject> cache = new ConcurrentLRUCacheImpl<Integer, TestObject>(clock, Long.MAX_VALUE); // swept by the test
+
+		TestObject obj = new TestObject();
+		cache.put(1, obj, 500);
+		assertEquals(obj, cache.get(1));
+		assertEquals(obj, cache.get(1));
+
+		clock.advanceClock(1000); // let 1 expire
+		assertEquals(0, cache.sweep()); // will not expire since there is reference count
+		assertEquals(obj, cache.get(1));
+		assertFalse(obj.isClosed());
+
+		cache.release(1); // release put
+		cache.release(1); // release first get
+		clock.advanceClock(1000);
+		assertEquals(0, cache.sweep());
+
+		cache.release(1); // release second get
+		cache.release(1); // release third get
+		assertEquals(obj, cache.get(1));
+		cache.release(1);
+		clock.advanceClock(100);
+		assertEquals(0, cache.sweep()); // accessed recently
+		clock.advanceClock(1000);
+		assertEquals(1, cache.sweep());
+		assertTrue(obj.isClosed());
+		assertNull(cache.get(1));
+		assertEquals(0, cache.size());
+
+		TestObject obj2 = new TestObject();
+		TestObject obj3 = new TestObject();
+		cache.put(2, obj2);
+		cache.put(3, obj3);
+		assertEquals(2, cache.size());
+		assertEquals(2, cache.getValues().size());
+
+		assertEquals(obj2, cache.remove(2));
+		assertFalse(obj2.isClosed()); // still referenced by the put
+		assertNull(cache.remove(2));
+		assertEquals(1, cache.size());
+		cache.release(2); // release put
+		assertTrue(obj2.isClosed());
+
+		cache.release(3); // release put
+		cache.removeAll();
+		assertTrue(obj3.isClosed());
+		assertEquals(0, cache.size());
+	}
+
+	@Test
+	public void removeReferencedTest() throws IOException {
+		TestClock clock = new TestClock();
+		ConcurrentLRUCacheImpl<Integer, TestObject> cache = new ConcurrentLRUCacheImpl<Integer, TestObject>(clock, Long.MAX_VALUE); // swept by the test
+
+		TestObject obj = new TestObject();
+		cache.put(1, obj);
+		assertEquals(obj, cache.get(1));
+		cache.remove(1);
+		assertFalse(obj.isClosed());
+		assertNull(cache.get(1));
+
+		// put again under the same key while the removed value is still referenced
+		TestObject obj2 = new TestObject();
+		cache.put(1, obj2);
+		cache.release(1, obj); // release put
+		assertFalse(obj.isClosed());
+		cache.release(1, obj); // release get
+		assertTrue(obj.isClosed());
+		assertFalse(obj2.isClosed());
+		cache.release(1, obj); // unbalanced release has no effect
+		assertEquals(obj2, cache.get(1));
+
+		// replaced while referenced
+		TestObject obj3 = new TestObject();
+		cache.put(1, obj3);
+		assertFalse(obj2.isClosed());
+		cache.release(1, obj2);
+		assertFalse(obj2.isClosed());
+		cache.release(1, obj2);
+		assertTrue(obj2.isClosed());
+
+		clock.advanceClock(ConcurrentLRUCacheImpl.DEFAULT_TTL + 1);
+		assertEquals(0, cache.sweep()); // obj3 still referenced by the put
+		cache.release(1, obj3);
+		assertEquals(1, cache.sweep());
+		assertTrue(obj3.isClosed());
+	}
+
+	@Test
+	public void backgroundSweepTest() {
+		ILRUCache<Integer, TestObject> cache = new ConcurrentLRUCacheImpl<Integer, TestObject>(new SystemClockImpl());
+
+		TestObject obj = new TestObject();
+		cache.put(1, obj, 100);
+		cache.release(1); // release put
+
+		TestUtil.sleepQuietly(ConcurrentLRUCacheImpl.SWEEP_INTERVAL + 100);
+		cache.put(2, new TestObject()); // schedules a sweep
+		for(int i = 0; i < 50 && !obj.isClosed(); i++) {
+			TestUtil.sleepQuietly(20);
+		}
+		assertTrue(obj.isClosed());
+		assertNull(cache.get(1));
+		assertEquals(1, cache.size());
+	}
+
+	@Test
+	public void multiThreadsTest() throws Exception {
+		TestClock clock = new TestClock();
+		final ConcurrentLRUCacheImpl<Integer, TestObject> cache = new ConcurrentLRUCacheImpl<Integer, TestObject>(clock, Long.MAX_VALUE); // swept by the test
+		final int keys = 16;
+		final AtomicInteger failures = new AtomicInteger();
+		for(int i = 0; i < keys; i++) {
+			cache.put(i, new TestObject(), 0);
+			cache.release(i); // release put
+		}
+
+		// readers racing the sweeper never see a closed value
+		Thread[] readers = new Thread[8];
+		for(int t = 0; t < readers.length; t++) {
+			readers[t] = new Thread(() -> {
+				Random random = new Random();
+				for(int i = 0; i < 100000; i++) {
+					int key = random.nextInt(keys);
+					TestObject obj = cache.get(key);
+					if (obj == null) {
+						synchronized (cache) {
+							obj = cache.get(key); // double check like the page factory
+							if (obj == null) {
+								obj = new TestObject();
+								cache.put(key, obj, 0);
+							}
+						}
+					}
+					if (obj.isClosed()) {
+						failures.incrementAndGet();
+					}
+					cache.release(key);
+				}
+			});
+			readers[t].start();
+		}
+		Thread sweeper = new Thread(() -> {
+			for(int i = 0; i < 10000; i++) {
+				clock.advanceClock(10);
+				cache.sweep();
+			}
+		});
+		sweeper.start();
+		for(Thread reader : readers) {
+			reader.join();
+		}
+		sweeper.join();
+
+		assertEquals(0, failures.get());
+		clock.advanceClock(10);
+		cache.sweep();
+		assertEquals(0, cache.size()); // all references released
+	}
+
+	@Test
+	public void sweepPutRaceTest() throws Exception {
+		TestClock clock = new TestClock();
+		final ConcurrentLRUCacheImpl<BlockingKey, TestObject> cache = new ConcurrentLRUCacheImpl<BlockingKey, TestObject>(clock, Long.MAX_VALUE); // swept by the test
+		BlockingKey key = new BlockingKey();
+
+		TestObject obj = new TestObject();
+		cache.put(key, obj, -1); // always expired
+		cache.release(key, obj); // release put
+
+		// the sweeper evicts the entry, then blocks before removing it from the map
+		key.block.set(true);
+		Thread sweeper = new Thread(cache::sweep);
+		sweeper.start();
+		key.blocked.await();
+
+		// the put replaces the evicted entry, the sweeper closes it
+		TestObject obj2 = new TestObject();
+		cache.put(key, obj2, -1);
+		key.unblock.countDown();
+		sweeper.join();
+
+		assertTrue(obj.isClosed());
+		assertEquals(0, cache.getDoomedSize()); // not left to a release which never comes
+		assertEquals(obj2, cache.get(key));
+		assertFalse(obj2.isClosed());
+	}
+
+	// a key whose next hash blocks once armed, so a map operation on it can be held
+	private static class BlockingKey {
+
+		final AtomicBoolean block = new AtomicBoolean(false);
+		final CountDownLatch blocked = new CountDownLatch(1);
+		final CountDownLatch unblock = new CountDownLatch(1);
+
+		@Override
+		public int hashCode() {
+			if (block.compareAndSet(true, false)) {
+				blocked.countDown();
+				try {
+					unblock.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			return 1;
+		}
+	}
+
+	private static class TestObject implements Closeable {
+
+		private volatile boolean closed = false;
+
+		public void close() throws IOException {
+			closed = true;
+		}
+
+		public boolean isClosed() {
+			return closed;
+		}
+
+	}
+}
@@ -0,0 +1,105 @@
+package org.kairosdb.bigqueue.codec;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class ItemCodecTest {
+
+	private static final ItemCodec[] CODECS = {ItemCodecs.LZ4, ItemCodecs.DEFLATE};
+
+	@Test
+	public void roundTripTest() throws IOException {
+		Random random = new Random(42);
+		for (ItemCodec codec : CODECS) {
+			assertSame(codec, ItemCodecs.forId(codec.getId()));
+
+			for (int length : new int[] {0, 1, 4, 12, 13, 17, 100, 255, 256, 1000, 65536, 300000}) {
+				// random bytes
+				byte[] data = new byte[length];
+				random.nextBytes(data);
+				assertRoundTrip(codec, data);
+
+				// repetitive text
+				StringBuilder sb = new StringBuilder();
+				while (sb.length() < length) {
+					sb.append("{\"metric\":\"cpu.load\",\"value\":").append(random.nextInt(100)).append("}\n");
+				}
+				assertRoundTrip(codec, sb.substring(0, length).getBytes());
+
+				// long runs, overlapping matches
+				byte[] runs = new byte[length];
+				for (int i = 0; i < length; i++) {
+					runs[i] = (byte) ((i / 1000) % 3);
+				}
+				assertRoundTrip(codec, runs);
+			}
+		}
+	}
+
+	@Test
+	public void compressionRatioTest() {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 1000; i++) {
+			sb.append("cpu.load,host=server").append(i % 10).append(" value=").append(i).append('\n');
+		}
+		byte[] data = sb.toString().getBytes();
+		for (ItemCodec codec : CODECS) {
+			byte[] compressed = new byte[codec.maxCompressedLength(data.length)];
+			int length = codec.compress(data, 0, data.length, compressed, 0);
+			assertTrue(codec.getName() + " compressed to " + length, length * 3 < data.length);
+		}
+	}
+
+	@Test
+	public void corruptedItemTest() {
+		byte[] data = "hello hello hello hello hello hello hello".getBytes();
+		for (ItemCodec codec : CODECS) {
+			byte[] compressed = new byte[codec.maxCompressedLength(data.length)];
+			int length = codec.compress(data, 0, data.length, compressed, 0);
+			byte[] restored = new byte[data.length + 10];
+
+			try {
+				codec.decompress(compressed, 0, length / 2, restored, 0, data.length);
+				fail("IOException should be thrown here");
+			} catch (IOException ex) {
+			}
+			try {
+				codec.decompress(compressed, 0, length, restored, 0, data.length + 10);
+				fail("IOException should be thrown here");
+			} catch (IOException ex) {
+			}
+		}
+	}
+
+	@Test
+	public void registerTest() {
+		try {
+			ItemCodecs.forId(100);
+			fail("IOException should be thrown here");
+		} catch (IOException ex) {
+		}
+		try {
+			ItemCodecs.register(new Lz4Codec());
+			fail("IllegalArgumentException should be thrown here");
+		} catch (IllegalArgumentException ex) {
+		}
+	}
+
+	private static void assertRoundTrip(ItemCodec codec, byte[] data) throws IOException {
+		// non zero offsets on both sides
+		byte[] src = new byte[data.length + 3];
+		System.arraycopy(data, 0, src, 3, data.length);
+		byte[] compressed = new byte[5 + codec.maxCompressedLength(data.length)];
+		int length = codec.compress(src, 3, data.length, compressed, 5);
+		assertTrue(length <= codec.maxCompressedLength(data.length));
+
+		byte[] restored = new byte[data.length + 7];
+		codec.decompress(compressed, 5, length, restored, 7, data.length);
+		assertTrue(codec.getName() + " round trip of " + data.length + " bytes", Arrays.equals(data, Arrays.copyOfRange(restored, 7, restored.length)));
+	}
+}
@@ -3,6 +3,7 @@ package org.kairosdb.bigqueue.page;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -58,6 +59,123 @@ public class MappedPageFactoryTest {
 	}
 	
 	
+	@Test
+	public void testMappedMemoryBudget() throws IOException {
+		MappedMemoryBudget budget = MappedMemoryBudget.getInstance();
+		TestClock testClock = new TestClock();
+		int pageSize = 1024 * 1024;
+		MappedPageFactoryImpl dataPages = new MappedPageFactoryImpl(pageSize, testDir + "/test_budget_data", 60 * 1000, testClock, new TestFileFactory());
+		MappedPageFactoryImpl indexPages = new MappedPageFactoryImpl(pageSize, testDir + "/test_budget_index", 60 * 1000, testClock, new TestFileFactory());
+		indexPages.setEvictionPriority(MappedMemoryBudget.INDEX_PAGE_PRIORITY);
+		mappedPageFactory = dataPages;
+		try {
+			long mappedBytes = budget.getMappedBytes();
+			IMappedPage indexPage0 = indexPages.acquirePage(0);
+			IMappedPage dataPage0 = dataPages.acquirePage(0);
+			IMappedPage dataPage1 = dataPages.acquirePage(1);
+			assertTrue(budget.getMappedBytes() == mappedBytes + 3 * pageSize);
+			indexPages.releasePage(0);
+			dataPages.releasePage(0);
+			dataPages.releasePage(1);
+			
+			// the least recently used data page goes first
+			budget.setMaxMappedBytes(budget.getMappedBytes() - pageSize);
+			assertTrue(dataPage0.isClosed());
+			assertTrue(!dataPage1.isClosed());
+			assertTrue(dataPages.getCacheSize() == 1);
+			
+			// pinned pages are kept, index pages go after data pages
+			dataPages.acquirePage(1);
+			budget.setMaxMappedBytes(budget.getMappedBytes() - pageSize);
+			assertTrue(indexPage0.isClosed());
+			assertTrue(!dataPage1.isClosed());
+			assertTrue(indexPages.getCacheSize() == 0);
+			
+			// over budget while pinned
+			IMappedPage dataPage2 = dataPages.acquirePage(2);
+			assertTrue(!dataPage2.isClosed());
+			assertTrue(budget.getMappedBytes() > budget.getMaxMappedBytes());
+			dataPages.releasePage(1);
+			dataPages.releasePage(2);
+			
+			long beforeRelease = budget.getMappedBytes();
+			dataPages.releaseCachedPages();
+			assertTrue(budget.getMappedBytes() == beforeRelease - 2 * pageSize);
+		} finally {
+			budget.setMaxMappedBytes(0);
+			indexPages.deleteAllPages();
+		}
+	}
+	
+	@Test
+	public void testMappedMemoryBudgetBackgroundEviction() throws IOException {
+		MappedMemoryBudget budget = MappedMemoryBudget.getInstance();
+		int pageSize = 1024 * 1024;
+		TestClock testClock = new TestClock();
+		MappedPageFactoryImpl dataPages = new MappedPageFactoryImpl(pageSize, testDir + "/test_budget_background", 60 * 1000, testClock, new TestFileFactory());
+		mappedPageFactory = dataPages;
+		try {
+			budget.setMaxMappedBytes(budget.getMappedBytes() + 10 * pageSize);
+			List<IMappedPage> pages = new ArrayList<IMappedPage>();
+			for (int i = 0; i < 10; i++) {
+				pages.add(dataPages.acquirePage(i));
+				dataPages.releasePage(i);
+				testClock.advanceClock(1);
+			}
+			// the mapping over budget returns before any eviction
+			IMappedPage page10 = dataPages.acquirePage(10);
+			assertTrue(!page10.isClosed());
+			// evicted down to the low watermark, so more than the single page over budget, least recently used first
+			for (int i = 0; i < 50 && dataPages.getCacheSize() > 9; i++) {
+				TestUtil.sleepQuietly(20);
+			}
+			assertTrue(dataPages.getCacheSize() <= 9);
+			assertTrue(pages.get(0).isClosed());
+			assertTrue(pages.get(1).isClosed());
+			assertTrue(!page10.isClosed());
+			dataPages.releasePage(10);
+		} finally {
+			budget.setMaxMappedBytes(0);
+		}
+	}
+	
+	@Test
+	public void testPageCatalog() throws IOException {
+		String pageDir = testDir + "/test_page_catalog";
+		File manifest = new File(pageDir, MappedPageFactoryImpl.CATALOG_FILE_NAME);
+		mappedPageFactory = new MappedPageFactoryImpl(1024, pageDir, 2 * 1000);
+		for(int i = 0; i < 10; i++ ) {
+			mappedPageFactory.acquirePage(i);
+		}
+		assertTrue(!manifest.exists());
+		mappedPageFactory.releaseCachedPages();
+		assertTrue(manifest.exists());
+		
+		// the catalog is loaded from the manifest
+		mappedPageFactory = new MappedPageFactoryImpl(1024, pageDir, 2 * 1000);
+		assertThat(mappedPageFactory.getExistingBackFileIndexSet()).hasSize(10);
+		assertTrue(1024 * 10 == mappedPageFactory.getBackPageFileSize());
+		
+		// and the manifest is removed as soon as the catalog changes
+		mappedPageFactory.deletePagesBeforePageIndex(3);
+		assertTrue(!manifest.exists());
+		Set<Long> indexSet = mappedPageFactory.getExistingBackFileIndexSet();
+		assertThat(indexSet).hasSize(7);
+		assertTrue(!indexSet.contains(2L) && indexSet.contains(3L));
+		assertTrue(mappedPageFactory.getPageFileLastModifiedTime(0) < 0);
+		mappedPageFactory.releaseCachedPages();
+		assertTrue(manifest.exists());
+		
+		// a damaged or missing manifest is rebuilt from the page files
+		Files.write(manifest.toPath(), new byte[] {1, 2, 3});
+		mappedPageFactory = new MappedPageFactoryImpl(1024, pageDir, 2 * 1000);
+		assertThat(mappedPageFactory.getExistingBackFileIndexSet()).hasSize(7);
+		FileUtil.deleteFile(manifest);
+		mappedPageFactory = new MappedPageFactoryImpl(1024, pageDir, 2 * 1000);
+		assertThat(mappedPageFactory.getExistingBackFileIndexSet()).hasSize(7);
+		assertTrue(1024 * 7 == mappedPageFactory.getBackPageFileSize());
+	}
+	
 	@Test
 	public void testSingleThread() throws IOException {
 
@@ -79,6 +197,7 @@ public class MappedPageFactoryTest {
 		testClock.advanceClock(2200);
 		///TestUtil.sleepQuietly(2200);// let page0 expire
 		mappedPageFactory.acquirePage(2);// trigger mark&sweep and purge old page0
+		waitForCacheSize(2); // swept in the background
 		mappedPage = mappedPageFactory.acquirePage(0);// create a new page0
 		assertNotSame(mappedPage, mappedPage0);
 		testClock.advanceClock(1000);
@@ -119,23 +238,10 @@ public class MappedPageFactoryTest {
 		indexSet = mappedPageFactory.getExistingBackFileIndexSet();
 		assertTrue(indexSet.size() == 0);
 		
-		//long start = System.currentTimeMillis();
-		long start = testClock.getTime();
 		for(long i = 0; i < 5; i++) {
-			testFileFactory.setLastModified(testDir + "/test_single_thread/page-"+i+".dat", start + (i * 1000L));
 			assertNotNull(this.mappedPageFactory.acquirePage(i));
-			//TestUtil.sleepQuietly(1000);
-			testClock.advanceClock(1000);
 		}
-
-		indexSet = mappedPageFactory.getPageIndexSetBefore(start - 1000);
-		assertThat(indexSet).hasSize(0);
-		indexSet = mappedPageFactory.getPageIndexSetBefore(start + 2500);
-		assertThat(indexSet).hasSize(3);
-		indexSet = mappedPageFactory.getPageIndexSetBefore(start + 5000);
-		assertThat(indexSet).hasSize(5);
-
-		mappedPageFactory.deletePagesBefore(start + 2500);
+		mappedPageFactory.deletePagesBeforePageIndex(3);
 		indexSet = mappedPageFactory.getExistingBackFileIndexSet();
 		assertThat(indexSet).hasSize(2);
 		assertTrue(mappedPageFactory.getCacheSize() == 2);
@@ -147,23 +253,6 @@ public class MappedPageFactoryTest {
 		mappedPageFactory.deleteAllPages();
 
 
-		//start = testClock.getTime();
-		/*start = (System.currentTimeMillis() / 1000) * 1000;
-		for(int i = 0; i < 100; i++) {
-			IMappedPage mappedPageI = mappedPageFactory.acquirePage(i);
-			mappedPageI.getLocal(0).put(("hello " + i).getBytes());
-			mappedPageI.setDirty(true);
-			mappedPageI.flush();
-			long currentTime = System.currentTimeMillis();
-			long iPageFileLastModifiedTime = mappedPageFactory.getPageFileLastModifiedTime(i);
-			assertThat(iPageFileLastModifiedTime).isGreaterThanOrEqualTo(start);
-			assertThat(iPageFileLastModifiedTime).isLessThanOrEqualTo(currentTime);
-
-			long index = mappedPageFactory.getFirstPageIndexBefore(currentTime + 1);
-			assertTrue(index == i);
-			
-			start = currentTime;
-		}*/
 		
 		mappedPageFactory.deleteAllPages();
 	}
@@ -193,6 +282,7 @@ public class MappedPageFactoryTest {
 		
 		TestUtil.sleepQuietly(2500);
 		this.mappedPageFactory.acquirePage(pageNumLimit + 1); // trigger mark&sweep
+		waitForCacheSize(1); // swept in the background
 		assertTrue(this.mappedPageFactory.getCacheSize() == 1);
 		Map<Integer, IMappedPage[]> sharedMap3 = this.testAndGetSharedMap(mappedPageFactory, threadNum, pageNumLimit);
 		assertTrue(this.mappedPageFactory.getCacheSize() == pageNumLimit + 1);
@@ -206,6 +296,12 @@ public class MappedPageFactoryTest {
 		assertTrue(((MappedPageFactoryImpl)mappedPageFactory).getLockMapSize() == 0);
 	}
 	
+	private void waitForCacheSize(int size) {
+		for(int i = 0; i < 100 && this.mappedPageFactory.getCacheSize() != size; i++) {
+			TestUtil.sleepQuietly(20);
+		}
+	}
+	
 	private void verifyClosed(Map<Integer, IMappedPage[]> map, int threadNum, int pageNumLimit, boolean closed) {
 		for(int i = 0; i < threadNum; i++) {
 			IMappedPage[] pageArray = map.get(i);
@@ -5,10 +5,8 @@ import static org.junit.Assert.*;
 import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
-import java.util.List;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -31,34 +29,75 @@ public class MappedPageTest {
 		IMappedPage mappedPage = this.mappedPageFactory.acquirePage(0);
 		assertNotNull(mappedPage);
 		
-		ByteBuffer buffer = mappedPage.getLocal(0);
-		assertTrue(buffer.limit() == pageSize);
-		assertTrue(buffer.position() == 0);
+		assertEquals(pageSize, mappedPage.size());
+		ByteBuffer view = mappedPage.slice(0, pageSize);
+		assertTrue(view.limit() == pageSize);
+		assertTrue(view.position() == 0);
 		
 		
 		for(int i = 0; i < 10000; i++) {
 			String hello = "hello world";
 			int length = hello.getBytes().length;
-			mappedPage.getLocal(i * 20).put(hello.getBytes());
-			assertTrue(Arrays.equals(mappedPage.getLocal(i * 20 , length), hello.getBytes()));
+			mappedPage.copyFrom(i * 20, hello.getBytes(), 0, length);
+			byte[] data = new byte[length];
+			mappedPage.copyTo(i * 20, data, 0, length);
+			assertTrue(Arrays.equals(data, hello.getBytes()));
 		}
 		
-		buffer = ByteBuffer.allocateDirect(16);
+		ByteBuffer buffer = ByteBuffer.allocateDirect(16);
 		buffer.putInt(1);
 		buffer.putInt(2);
 		buffer.putLong(3L);
 		for(int i = 0; i < 10000; i++) {
 			buffer.flip();
-			mappedPage.getLocal(i * 20).put(buffer);
+			mappedPage.copyFrom(i * 20, buffer);
+			assertEquals(16, buffer.position());
 		}
 		for(int i = 0; i < 10000; i++) {
-			ByteBuffer buf = mappedPage.getLocal(i * 20);
-			assertTrue(1 == buf.getInt());
-			assertTrue(2 == buf.getInt());
-			assertTrue(3L == buf.getLong());
+			assertTrue(1 == mappedPage.getInt(i * 20));
+			assertTrue(2 == mappedPage.getInt(i * 20 + 4));
+			assertTrue(3L == mappedPage.getLong(i * 20 + 8));
 		}
+		
+		ByteBuffer dst = ByteBuffer.allocateDirect(32);
+		dst.position(8);
+		mappedPage.copyTo(20, dst, 16);
+		assertEquals(24, dst.position());
+		assertEquals(1, dst.getInt(8));
+		assertEquals(3L, dst.getLong(16));
+		
+		mappedPage.putByte(7, (byte) 5);
+		mappedPage.putInt(8, 6);
+		mappedPage.putLong(12, 7L);
+		assertEquals((byte) 5, mappedPage.getByte(7));
+		assertEquals(6, view.getInt(8)); // views share the page
+		assertEquals(7L, mappedPage.slice(12, 8).getLong(0));
 	}
 	
+	@Test
+	public void testDirtyRegionFlush() throws IOException {
+		assertTrue(MappedBuffers.isUnmapSupported());
+		int pageSize = 1024 * 1024;
+		mappedPageFactory = new MappedPageFactoryImpl(pageSize, testDir + "/test_dirty_region", 2 * 1000);
+
+		IMappedPage mappedPage = this.mappedPageFactory.acquirePage(0);
+		mappedPage.putLong(4096, 1L);
+		mappedPage.setDirty(4096, 8);
+		mappedPage.putLong(pageSize - 8, 2L);
+		mappedPage.setDirty(pageSize - 8, 8);
+		mappedPage.flush();
+		mappedPage.flush(); // nothing left to force
+		this.mappedPageFactory.releasePage(0);
+		this.mappedPageFactory.releaseCachedPages();
+		assertTrue(mappedPage.isClosed());
+
+		mappedPage = this.mappedPageFactory.acquirePage(0);
+		assertFalse(mappedPage.isNew());
+		assertEquals(1L, mappedPage.getLong(4096));
+		assertEquals(2L, mappedPage.getLong(pageSize - 8));
+		this.mappedPageFactory.releasePage(0);
+	}
+
 	@Test
 	public void testMultiThreads() {
 		int pageSize = 1024 * 1024 * 32;
@@ -68,11 +107,10 @@ public class MappedPageTest {
 		int pageNumLimit = 50;
 		
 		Set<IMappedPage> pageSet = Collections.newSetFromMap(new ConcurrentHashMap<IMappedPage, Boolean>());
-		List<ByteBuffer> localBufferList = Collections.synchronizedList(new ArrayList<ByteBuffer>());
 		
 		Worker[] workers = new Worker[threadNum];
 		for(int i = 0; i < threadNum; i++) {
-			workers[i] = new Worker(i, mappedPageFactory, pageNumLimit, pageSet, localBufferList);
+			workers[i] = new Worker(i, mappedPageFactory, pageNumLimit, pageSet);
 		}
 		for(int i = 0; i < threadNum; i++) {
 			workers[i].start();
@@ -86,15 +124,12 @@ public class MappedPageTest {
 			}
 		}
 		
-		assertTrue(localBufferList.size() == threadNum * pageNumLimit);
 		assertTrue(pageSet.size() == pageNumLimit);
 		
-		// verify thread locality
-		for(int i = 0; i < localBufferList.size(); i++) {
-			for(int j = i + 1; j < localBufferList.size(); j++) {
-				if (localBufferList.get(i) == localBufferList.get(j)) {
-					fail("thread local buffer is not thread local");
-				}
+		// every worker sees its own writes and those of the others, pages hold no per thread state
+		for(IMappedPage page : pageSet) {
+			for(int i = 0; i < threadNum; i++) {
+				assertTrue(3L == page.getLong(i * 2048 + 99 * 20 + 8));
 			}
 		}
 	}
@@ -104,14 +139,12 @@ public class MappedPageTest {
 		private int pageNumLimit;
 		private IMappedPageFactory pageFactory;
 		private Set<IMappedPage> sharedPageSet;
-		private List<ByteBuffer> localBufferList;
 		
 		public Worker(int id, IMappedPageFactory pageFactory, int pageNumLimit, 
-				Set<IMappedPage> sharedPageSet, List<ByteBuffer> localBufferList) {
+				Set<IMappedPage> sharedPageSet) {
 			this.id = id;
 			this.pageFactory = pageFactory;
 			this.sharedPageSet = sharedPageSet;
-			this.localBufferList = localBufferList;
 			this.pageNumLimit = pageNumLimit;
 			
 		}
@@ -121,15 +154,16 @@ public class MappedPageTest {
 				try {
 					IMappedPage page = this.pageFactory.acquirePage(i);
 					sharedPageSet.add(page);
-					localBufferList.add(page.getLocal(0));
 					
 					int startPosition = this.id * 2048;
 					
 					for(int j = 0; j < 100; j++) {
 						String helloj = "hello world " + j;
 						int length = helloj.getBytes().length;
-						page.getLocal(startPosition + j * 20).put(helloj.getBytes());
-						assertTrue(Arrays.equals(page.getLocal(startPosition + j * 20 , length), helloj.getBytes()));
+						page.copyFrom(startPosition + j * 20, helloj.getBytes(), 0, length);
+						byte[] data = new byte[length];
+						page.copyTo(startPosition + j * 20, data, 0, length);
+						assertTrue(Arrays.equals(data, helloj.getBytes()));
 					}
 					
 					ByteBuffer buffer = ByteBuffer.allocateDirect(16);
@@ -138,13 +172,12 @@ public class MappedPageTest {
 					buffer.putLong(3L);
 					for(int j = 0; j < 100; j++) {
 						buffer.flip();
-						page.getLocal(startPosition + j * 20).put(buffer);
+						page.copyFrom(startPosition + j * 20, buffer);
 					}
 					for(int j = 0; j < 100; j++) {
-						ByteBuffer buf = page.getLocal(startPosition + j * 20);
-						assertTrue(1 == buf.getInt());
-						assertTrue(2 == buf.getInt());
-						assertTrue(3L == buf.getLong());
+						assertTrue(1 == page.getInt(startPosition + j * 20));
+						assertTrue(2 == page.getInt(startPosition + j * 20 + 4));
+						assertTrue(3L == page.getLong(startPosition + j * 20 + 8));
 					}
 					
 				} catch (IOException e) {
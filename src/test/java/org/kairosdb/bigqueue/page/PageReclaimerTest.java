@@ -0,0 +1,102 @@
+package org.kairosdb.bigqueue.page;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.After;
+import org.junit.Test;
+
+import org.kairosdb.bigqueue.TestUtil;
+import org.kairosdb.bigqueue.utils.FileUtil;
+
+public class PageReclaimerTest {
+
+	private MappedPageFactoryImpl mappedPageFactory;
+	private String testDir = TestUtil.TEST_BASE_DIR + "bigqueue/unit/page_reclaimer_test";
+
+	@Test
+	public void testEpochDefersUnmap() throws IOException {
+		PageReclaimer reclaimer = PageReclaimer.getInstance();
+		mappedPageFactory = new MappedPageFactoryImpl(1024 * 1024, testDir + "/test_epoch", 2 * 1000);
+		waitForUnmaps(reclaimer);
+
+		IMappedPage page = mappedPageFactory.acquirePage(0);
+		page.putLong(0, 42L);
+		reclaimer.enter();
+		reclaimer.enter(); // nested
+		ByteBuffer buffer = page.slice(0, page.size());
+		mappedPageFactory.releasePage(0);
+		mappedPageFactory.releaseCachedPages();
+		assertTrue(page.isClosed());
+
+		reclaimer.exit();
+		TestUtil.sleepQuietly(100);
+		assertEquals(1L, reclaimer.getPendingUnmaps());
+		assertEquals(42L, buffer.getLong(0)); // still mapped
+
+		reclaimer.exit();
+		waitForUnmaps(reclaimer);
+		assertEquals(0L, reclaimer.getPendingUnmaps());
+	}
+
+	@Test
+	public void testOtherThreadEpoch() throws Exception {
+		PageReclaimer reclaimer = PageReclaimer.getInstance();
+		mappedPageFactory = new MappedPageFactoryImpl(1024 * 1024, testDir + "/test_other_thread", 2 * 1000);
+		waitForUnmaps(reclaimer);
+
+		final CountDownLatch entered = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(1);
+		Thread reader = new Thread(() -> {
+			reclaimer.enter();
+			entered.countDown();
+			try {
+				done.await();
+			} catch (InterruptedException e) {
+				// ignore
+			}
+			reclaimer.exit();
+		});
+		reader.start();
+		entered.await();
+
+		mappedPageFactory.acquirePage(0);
+		mappedPageFactory.releasePage(0);
+		mappedPageFactory.releaseCachedPages();
+		TestUtil.sleepQuietly(100);
+		assertEquals(1L, reclaimer.getPendingUnmaps());
+
+		done.countDown();
+		reader.join();
+		waitForUnmaps(reclaimer);
+		assertEquals(0L, reclaimer.getPendingUnmaps());
+
+		// a thread dying inside its epoch does not hold pages back
+		Thread idle = new Thread(() -> reclaimer.enter());
+		idle.start();
+		idle.join();
+		mappedPageFactory.acquirePage(1);
+		mappedPageFactory.releasePage(1);
+		mappedPageFactory.releaseCachedPages();
+		waitForUnmaps(reclaimer);
+		assertEquals(0L, reclaimer.getPendingUnmaps());
+	}
+
+	private void waitForUnmaps(PageReclaimer reclaimer) {
+		for(int i = 0; i < 100 && reclaimer.getPendingUnmaps() > 0; i++) {
+			TestUtil.sleepQuietly(20);
+		}
+	}
+
+	@After
+	public void clear() throws IOException {
+		if (this.mappedPageFactory != null) {
+			this.mappedPageFactory.deleteAllPages();
+		}
+		FileUtil.deleteDirectory(new File(testDir));
+	}
+}
@@ -0,0 +1,80 @@
+package org.kairosdb.bigqueue.utils;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class Crc32cTest {
+
+	@Test
+	public void knownValueTest() {
+		byte[] data = "123456789".getBytes();
+		assertEquals(0xE3069283, Crc32c.compute(data, 0, data.length));
+		assertEquals(0, Crc32c.compute(new byte[0], 0, 0));
+
+		PureJavaCrc32c pure = new PureJavaCrc32c();
+		pure.update(data, 0, data.length);
+		assertEquals(0xE3069283L, pure.getValue());
+	}
+
+	@Test
+	public void pureJavaTest() {
+		Random random = new Random(11);
+		for (int length : new int[] {1, 7, 8, 9, 63, 1000, 65537}) {
+			byte[] data = new byte[length + 3];
+			random.nextBytes(data);
+			PureJavaCrc32c pure = new PureJavaCrc32c();
+			pure.update(data, 3, length);
+			assertEquals(Crc32c.compute(data, 3, length), (int) pure.getValue());
+
+			// byte by byte gives the same result
+			pure.reset();
+			for (int i = 3; i < data.length; i++) {
+				pure.update(data[i]);
+			}
+			assertEquals(Crc32c.compute(data, 3, length), (int) pure.getValue());
+		}
+	}
+
+	@Test
+	public void bufferTest() {
+		byte[] data = new byte[10000];
+		new Random(13).nextBytes(data);
+		int expected = Crc32c.compute(data, 100, 5000);
+
+		ByteBuffer heap = ByteBuffer.wrap(data);
+		heap.position(100).limit(5100);
+		assertEquals(expected, Crc32c.compute(heap.slice()));
+		assertEquals(expected, Crc32c.compute(heap));
+		assertEquals(100, heap.position());
+
+		ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+		direct.put(data).position(100).limit(5100);
+		assertEquals(expected, Crc32c.compute(direct));
+		assertEquals(100, direct.position());
+	}
+
+	@Test
+	public void reuseTest() {
+		// the checksum of the thread is reset between computations
+		byte[] data = "123456789".getBytes();
+		ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+		direct.put(data).flip();
+		for (int i = 0; i < 3; i++) {
+			assertEquals(0xE3069283, Crc32c.compute(data, 0, data.length));
+			assertEquals(0xE3069283, Crc32c.compute(direct));
+			assertEquals(0, direct.position());
+		}
+
+		PureJavaCrc32c pure = new PureJavaCrc32c();
+		pure.update(direct);
+		assertEquals(data.length, direct.position());
+		assertEquals(0xE3069283L, pure.getValue());
+		pure.reset();
+		pure.update(ByteBuffer.wrap(data));
+		assertEquals(0xE3069283L, pure.getValue());
+	}
+}